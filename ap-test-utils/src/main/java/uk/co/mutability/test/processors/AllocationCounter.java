@@ -0,0 +1,56 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Access to per-thread allocation counters, where the JVM provides them.
+ */
+final class AllocationCounter {
+    private AllocationCounter() {
+        /* Prevent construction */
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * @return true if {@link #currentThreadAllocatedBytes()} returns meaningful values on this JVM
+     */
+    static boolean isSupported() {
+        return THREADS instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported();
+    }
+
+    /**
+     * @return the number of bytes allocated so far by the current thread, or -1 if the JVM cannot measure this
+     */
+    static long currentThreadAllocatedBytes() {
+        if (!isSupported())
+            return -1;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        if (!threads.isThreadAllocatedMemoryEnabled())
+            return -1;
+
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A training workload for building an AppCDS archive of the classes a verification needs: the compiler, javax.tools, ap-test-utils itself, and the
+ * processors under test. Run it once with <code>-XX:ArchiveClassesAtExit=verifier.jsa</code>, then start verifier JVMs (test JVMs, or
+ * {@link ShardedRunner} workers) with <code>-XX:SharedArchiveFile=verifier.jsa</code> and the same class path, so that those classes are mapped from the
+ * archive rather than loaded, verified and linked again by every JVM.
+ * <p>
+ * The "appcds" Maven profile runs this during the package phase; see the README. Command-line usage:
+ * 
+ * <pre>
+ * AppCdsTraining [-iterations N] [testClassName...]
+ * </pre>
+ * 
+ * The workload verifies the named test classes, plus every test class with an expectation index on the class path, so by default it covers whatever
+ * test inputs were built alongside it. Failing verifications are reported but do not stop training. The archive only covers classes loaded from JAR
+ * files: the JVM refuses to archive with non-empty directories on the class path.
+ */
+public class AppCdsTraining {
+    /**
+     * Run the training workload.
+     * 
+     * @param classNames the test classes to verify
+     * @param iterations how many times to verify each class
+     * @return the number of verifications that reported problems
+     */
+    public static int train(List<String> classNames, int iterations) {
+        int failures = 0;
+        for (int i = 0; i < iterations; ++i) {
+            for (String className : classNames) {
+                try {
+                    if (!Verifier.verifyByName(className).isEmpty())
+                        ++failures;
+                } catch (ClassNotFoundException e) {
+                    System.err.println("warning: no such test class: " + className);
+                    ++failures;
+                } catch (RuntimeException e) {
+                    System.err.println("warning: training verification of " + className + " failed: " + e);
+                    ++failures;
+                } catch (LinkageError e) {
+                    System.err.println("warning: training verification of " + className + " failed: " + e);
+                    ++failures;
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Command-line entry point; see the class documentation for usage.
+     * 
+     * @param args command-line arguments
+     * @throws Exception if the class path cannot be searched for test classes
+     */
+    public static void main(String[] args) throws Exception {
+        int iterations = 1;
+        List<String> classNames = new ArrayList<String>();
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if (arg.equals("-iterations") && i + 1 < args.length)
+                iterations = Integer.parseInt(args[++i]);
+            else if (arg.length() == 0)
+                continue; // An empty Maven property
+            else if (!arg.startsWith("-"))
+                for (String className : arg.split(","))
+                    classNames.add(className.trim());
+            else
+                usage("Unexpected argument: " + arg);
+        }
+
+        for (String className : ShardedRunner.discover(System.getProperty("java.class.path"))) {
+            if (!classNames.contains(className))
+                classNames.add(className);
+        }
+        if (classNames.isEmpty())
+            usage("No test classes given, and none with expectation indexes found on the class path");
+
+        long start = System.nanoTime();
+        int failures = train(classNames, iterations);
+        System.err.println("Trained on " + classNames.size() + " test classes x " + iterations + " iterations in " + (System.nanoTime() - start) / 1000000 +
+                           "ms" + (failures > 0 ? " (" + failures + " verifications reported problems)" : ""));
+    }
+
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: AppCdsTraining [-iterations N] [testClassName...]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * The outcome of {@link Verifier#benchmark}: the distribution of timings and allocation over the measured iterations of a verification.
+ */
+public class BenchmarkResult {
+    /**
+     * The distribution of one measurement over the measured iterations.
+     */
+    public static final class Distribution {
+        private final long[] sorted;
+
+        Distribution(long[] values) {
+            this.sorted = values.clone();
+            Arrays.sort(sorted);
+        }
+
+        /** @return the smallest value */
+        public long getMin() {
+            return sorted[0];
+        }
+
+        /** @return the largest value */
+        public long getMax() {
+            return sorted[sorted.length - 1];
+        }
+
+        /** @return the median value */
+        public long getMedian() {
+            return getPercentile(50);
+        }
+
+        /** @return the 99th percentile value */
+        public long getP99() {
+            return getPercentile(99);
+        }
+
+        /**
+         * @param percentile a percentile between 0 and 100
+         * @return the value at that percentile, by the nearest-rank method
+         */
+        public long getPercentile(double percentile) {
+            int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+            return sorted[Math.min(sorted.length - 1, Math.max(0, rank - 1))];
+        }
+
+        /** @return the mean value */
+        public double getMean() {
+            double sum = 0;
+            for (long value : sorted)
+                sum += value;
+            return sum / sorted.length;
+        }
+    }
+
+    private final int iterations;
+    private final Distribution totalNanos;
+    private final Distribution processingNanos;
+    private final Distribution compilerNanos;
+    private final Distribution allocatedBytes;
+    private final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+
+    BenchmarkResult(long[] totalNanos, long[] processingNanos, long[] allocatedBytes, List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+        this.iterations = totalNanos.length;
+        this.totalNanos = new Distribution(totalNanos);
+        this.processingNanos = new Distribution(processingNanos);
+
+        long[] compiler = new long[iterations];
+        for (int i = 0; i < iterations; ++i)
+            compiler[i] = totalNanos[i] - processingNanos[i];
+        this.compilerNanos = new Distribution(compiler);
+
+        this.allocatedBytes = (allocatedBytes[0] < 0 ? null : new Distribution(allocatedBytes));
+        this.diagnostics = diagnostics;
+    }
+
+    /** @return the number of measured iterations */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /** @return the wall time of each whole compilation, including the compiler's own work */
+    public Distribution getTotalNanos() {
+        return totalNanos;
+    }
+
+    /** @return the wall time spent inside the processor under test's init() and process() methods */
+    public Distribution getProcessingNanos() {
+        return processingNanos;
+    }
+
+    /** @return the wall time spent outside the processor under test: parsing, class reading, the compiler's own processing and so on */
+    public Distribution getCompilerNanos() {
+        return compilerNanos;
+    }
+
+    /** @return the bytes allocated on the processing thread inside the processor under test, or null if the JVM cannot measure this */
+    public Distribution getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return the diagnostics from the last iteration; if this is not empty, the processor did not behave as the test input expects, and the timings may
+     *         not mean much
+     */
+    public List<Diagnostic<? extends JavaFileObject>> getDiagnostics() {
+        return diagnostics;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(iterations).append(" iterations\n");
+        sb.append(String.format("%-12s %12s %12s %12s%n", "", "min", "median", "p99"));
+        appendMillis(sb, "total", totalNanos);
+        appendMillis(sb, "processing", processingNanos);
+        appendMillis(sb, "compiler", compilerNanos);
+        if (allocatedBytes != null)
+            sb.append(String.format("%-12s %12d %12d %12d%n", "allocated", allocatedBytes.getMin(), allocatedBytes.getMedian(), allocatedBytes.getP99()));
+        if (!diagnostics.isEmpty())
+            sb.append("warning: ").append(diagnostics.size()).append(" diagnostics were reported; the processor did not behave as expected\n");
+        return sb.toString();
+    }
+
+    private static void appendMillis(StringBuilder sb, String name, Distribution nanos) {
+        sb.append(String.format("%-12s %10.3fms %10.3fms %10.3fms%n", name, nanos.getMin() / 1e6, nanos.getMedian() / 1e6, nanos.getP99() / 1e6));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Loads classes from a processor build before its parent, apart from platform classes, so that the build's version of a processor is used even if another
+ * version is on the class path. Classes the build does not contain come from the parent. The names of the classes loaded from the build are recorded, so
+ * that a caller can tell whether a changed class affects what was loaded.
+ */
+class BuildClassLoader extends URLClassLoader {
+    private final Set<String> loadedClassNames = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * @param build the JAR files and class directories of the build
+     * @param parent the loader for classes the build does not contain
+     */
+    BuildClassLoader(URL[] build, ClassLoader parent) {
+        super(build, parent);
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (name.startsWith("java.") || name.startsWith("javax."))
+            return super.loadClass(name, resolve);
+
+        Class<?> loaded = findLoadedClass(name);
+        if (loaded == null) {
+            try {
+                loaded = findClass(name);
+                loadedClassNames.add(name);
+            } catch (ClassNotFoundException e) {
+                return super.loadClass(name, resolve);
+            }
+        }
+        if (resolve)
+            resolveClass(loaded);
+        return loaded;
+    }
+
+    @Override
+    public URL getResource(String name) {
+        URL url = findResource(name);
+        return url != null ? url : super.getResource(name);
+    }
+
+    /** @return true if any of the named classes has been loaded from the build */
+    boolean loadedAny(Set<String> classNames) {
+        synchronized (loadedClassNames) {
+            for (String className : classNames) {
+                if (loadedClassNames.contains(className))
+                    return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * The outcome of {@link ProcessorComparison#run}: the measurements of each build, the differences between them with confidence intervals, and any
+ * differences in the diagnostics they produce.
+ */
+public class ComparisonResult {
+    /** Two-sided 95% quantiles of Student's t distribution, indexed by degrees of freedom */
+    private static final double[] T_975 = { Double.POSITIVE_INFINITY, 12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228, 2.201,
+                                            2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086, 2.080, 2.074, 2.069, 2.064, 2.060, 2.056,
+                                            2.052, 2.048, 2.045, 2.042 };
+
+    /**
+     * The difference in one measurement between the builds, from the paired samples of each measured iteration.
+     */
+    public static final class Difference {
+        private final double baselineMean;
+        private final double candidateMean;
+        private final double meanDifference;
+        private final double halfWidth;
+
+        Difference(long[] baseline, long[] candidate) {
+            int n = baseline.length;
+            double baselineSum = 0, candidateSum = 0;
+            for (int i = 0; i < n; ++i) {
+                baselineSum += baseline[i];
+                candidateSum += candidate[i];
+            }
+            this.baselineMean = baselineSum / n;
+            this.candidateMean = candidateSum / n;
+            this.meanDifference = candidateMean - baselineMean;
+
+            double squares = 0;
+            for (int i = 0; i < n; ++i) {
+                double deviation = (candidate[i] - baseline[i]) - meanDifference;
+                squares += deviation * deviation;
+            }
+            this.halfWidth = (n < 2 ? Double.POSITIVE_INFINITY : tQuantile(n - 1) * Math.sqrt(squares / (n - 1) / n));
+        }
+
+        /** @return the 97.5% quantile of Student's t distribution with the given degrees of freedom, approximated beyond the table */
+        private static double tQuantile(int degreesOfFreedom) {
+            if (degreesOfFreedom < T_975.length)
+                return T_975[degreesOfFreedom];
+            return 1.96 + 2.37 / degreesOfFreedom;
+        }
+
+        /** @return the mean of the baseline build's samples */
+        public double getBaselineMean() {
+            return baselineMean;
+        }
+
+        /** @return the mean of the candidate build's samples */
+        public double getCandidateMean() {
+            return candidateMean;
+        }
+
+        /** @return the mean of the candidate's sample minus the baseline's sample, over the measured iterations; negative if the candidate is lower */
+        public double getMeanDifference() {
+            return meanDifference;
+        }
+
+        /** @return the lower bound of the 95% confidence interval of the mean difference */
+        public double getLower() {
+            return meanDifference - halfWidth;
+        }
+
+        /** @return the upper bound of the 95% confidence interval of the mean difference */
+        public double getUpper() {
+            return meanDifference + halfWidth;
+        }
+
+        /** @return the mean difference as a fraction of the baseline mean */
+        public double getRelativeChange() {
+            return meanDifference / baselineMean;
+        }
+
+        /** @return true if the confidence interval excludes zero, so the builds differ at the 95% level */
+        public boolean isSignificant() {
+            return getLower() > 0 || getUpper() < 0;
+        }
+    }
+
+    private final BenchmarkResult baseline;
+    private final BenchmarkResult candidate;
+    private final Difference totalNanos;
+    private final Difference processingNanos;
+    private final Difference allocatedBytes;
+    private final List<String> diagnosticDifferences;
+
+    ComparisonResult(BenchmarkResult baseline, BenchmarkResult candidate, Difference totalNanos, Difference processingNanos, Difference allocatedBytes,
+                     List<String> diagnosticDifferences) {
+        this.baseline = baseline;
+        this.candidate = candidate;
+        this.totalNanos = totalNanos;
+        this.processingNanos = processingNanos;
+        this.allocatedBytes = allocatedBytes;
+        this.diagnosticDifferences = Collections.unmodifiableList(diagnosticDifferences);
+    }
+
+    /**
+     * List the diagnostics that only one build produced for a test input, counting repeated messages.
+     * 
+     * @param differences the list to add a line to for each difference
+     */
+    static void diff(String className, List<Diagnostic<? extends JavaFileObject>> baseline, List<Diagnostic<? extends JavaFileObject>> candidate,
+                     List<String> differences) {
+        List<String> candidateOnly = new ArrayList<String>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : candidate)
+            candidateOnly.add(diagnostic.getMessage(null));
+
+        for (Diagnostic<? extends JavaFileObject> diagnostic : baseline) {
+            String message = diagnostic.getMessage(null);
+            if (!candidateOnly.remove(message))
+                differences.add(className + ": baseline only: " + message);
+        }
+        for (String message : candidateOnly)
+            differences.add(className + ": candidate only: " + message);
+    }
+
+    /** @return the measurements of the baseline build */
+    public BenchmarkResult getBaseline() {
+        return baseline;
+    }
+
+    /** @return the measurements of the candidate build */
+    public BenchmarkResult getCandidate() {
+        return candidate;
+    }
+
+    /** @return the difference in the wall time of the whole compilations */
+    public Difference getTotalNanos() {
+        return totalNanos;
+    }
+
+    /** @return the difference in the wall time spent inside the processor */
+    public Difference getProcessingNanos() {
+        return processingNanos;
+    }
+
+    /** @return the difference in the bytes the processor allocated, or null if the JVM cannot measure this */
+    public Difference getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return one line for each diagnostic that only one of the builds produced in the last iteration, naming the test input and the build; empty if
+     *         the builds behaved the same
+     */
+    public List<String> getDiagnosticDifferences() {
+        return diagnosticDifferences;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(baseline.getIterations()).append(" iterations of each build\n");
+        sb.append(String.format("%-12s %14s %14s %26s %9s%n", "", "baseline", "candidate", "difference (95% CI)", "change"));
+        append(sb, "total", totalNanos, 1e6, 3, "ms");
+        append(sb, "processing", processingNanos, 1e6, 3, "ms");
+        if (allocatedBytes != null)
+            append(sb, "allocated", allocatedBytes, 1, 0, "B");
+        sb.append("* the 95% confidence interval excludes zero\n");
+        if (diagnosticDifferences.isEmpty()) {
+            sb.append("Both builds produced the same diagnostics\n");
+        } else {
+            sb.append("The builds produced different diagnostics:\n");
+            for (String difference : diagnosticDifferences)
+                sb.append("  ").append(difference).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String name, Difference difference, double scale, int decimals, String unit) {
+        String value = "%12." + decimals + "f%-2s", bound = "%+." + decimals + "f";
+        String interval = String.format(bound + ".." + bound + "%s", difference.getLower() / scale, difference.getUpper() / scale, unit);
+        sb.append(String.format("%-12s " + value + " " + value + " %26s %+8.1f%%%s%n", name, difference.getBaselineMean() / scale, unit,
+                                difference.getCandidateMean() / scale, unit, interval, difference.getRelativeChange() * 100,
+                                difference.isSignificant() ? " *" : ""));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A JVM-wide store that interns file content by value, so that identical outputs held by different {@link MemoryFileManager}s share one immutable buffer.
+ * <p>
+ * The store only refers to content weakly: an entry disappears once no file holds its content any longer.
+ */
+final class ContentStore {
+    private ContentStore() {
+        /* Prevent construction */
+    }
+
+    /**
+     * An immutable buffer of file content, compared by value. Holders must never modify {@link #bytes}.
+     */
+    static final class Content {
+        /** The content itself; never modified */
+        final byte[] bytes;
+        private final int hash;
+
+        Content(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+            if (!(o instanceof Content))
+                return false;
+            Content other = (Content) o;
+            return hash == other.hash && Arrays.equals(bytes, other.bytes);
+        }
+    }
+
+    /** Empty content, shared by all empty files */
+    static final Content EMPTY = new Content(new byte[0]);
+
+    /** Interned content. The value refers back to the key weakly, so that holding the key is what keeps an entry alive. */
+    private static final Map<Content,WeakReference<Content>> STORE = new WeakHashMap<Content,WeakReference<Content>>();
+
+    /**
+     * Find the shared copy of some content, adding it to the store if it is not already there.
+     * 
+     * @param bytes the content; must not be modified after this call
+     * @return the shared content equal to bytes
+     */
+    static Content intern(byte[] bytes) {
+        if (bytes.length == 0)
+            return EMPTY;
+
+        Content candidate = new Content(bytes);
+        synchronized (STORE) {
+            WeakReference<Content> existingRef = STORE.get(candidate);
+            Content existing = (existingRef == null ? null : existingRef.get());
+            if (existing != null)
+                return existing;
+
+            STORE.put(candidate, new WeakReference<Content>(candidate));
+            return candidate;
+        }
+    }
+
+    /**
+     * @return the number of distinct contents currently in the store
+     */
+    static int size() {
+        synchronized (STORE) {
+            return STORE.size();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.IOException;
+
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * Stands in for the source of a diagnostic once its compilation has finished. It keeps only the URI, name and kind of the original file object, so that
+ * holding on to a diagnostic does not keep the compiler's file manager and context reachable. Its content cannot be read.
+ */
+class DetachedFileObject extends SimpleJavaFileObject {
+    /** The name of the original file object, which is often not the path of its URI */
+    private final String name;
+
+    /**
+     * @param original the file object to stand in for
+     */
+    DetachedFileObject(JavaFileObject original) {
+        super(original.toUri(), original.getKind());
+        this.name = original.getName();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+        throw new IOException("The content of " + name + " is no longer available; it was detached from its compilation");
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof DetachedFileObject && uri.equals(((DetachedFileObject) other).uri);
+    }
+
+    @Override
+    public int hashCode() {
+        return uri.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,570 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.SimpleAnnotationValueVisitor6;
+
+/**
+ * A hash of the expectation annotations in a test class and its member classes, which {@link ExpectationIndexProcessor} stores in the index so that an
+ * index that no longer matches its class can be detected and ignored.
+ * <p>
+ * The processor computes it from annotation mirrors as the test class is compiled, and {@link #read} computes it again from the RuntimeVisibleAnnotations
+ * attributes of the compiled class files, without decoding anything else in them, which costs much less than visiting the class's elements in a compiler.
+ * Both hash each annotation together with the kind and internal name of the element it is on (a parameter by its method), its type and its explicit
+ * values, in the form they take in a class file, and add up the hashes of the annotations and of their values so that the order of elements does not
+ * matter.
+ */
+final class ExpectationFingerprint {
+    /** The annotations that are covered by a fingerprint */
+    private static final Set<String> EXPECTATION_ANNOTATIONS = new HashSet<String>(Arrays.asList(VerifyDiagnostics.class.getName(),
+                                                                                                 ExpectDiagnostic.class.getName(),
+                                                                                                 ExpectDiagnostics.class.getName(),
+                                                                                                 PerformanceBudget.class.getName()));
+    /** The descriptors of {@link #EXPECTATION_ANNOTATIONS}, as they appear in class files */
+    private static final String[] EXPECTATION_DESCRIPTORS;
+    static {
+        EXPECTATION_DESCRIPTORS = new String[EXPECTATION_ANNOTATIONS.size()];
+        int i = 0;
+        for (String name : EXPECTATION_ANNOTATIONS)
+            EXPECTATION_DESCRIPTORS[i++] = "L" + name.replace('.', '/') + ";";
+    }
+    /** Access flags of methods that the compiler generates, which may carry copies of the annotations of the methods they bridge to */
+    private static final int ACC_BRIDGE = 0x0040, ACC_SYNTHETIC = 0x1000;
+    /** The FNV-1a offset basis and prime, which {@link #hash(long, int)} is built on */
+    private static final long BASIS = 0xcbf29ce484222325L, PRIME = 0x100000001b3L;
+
+    private final Elements elements;
+    /** The sum of the hashes of the annotations added so far */
+    private long sum;
+    private final SimpleAnnotationValueVisitor6<Long,Void> valueHasher = new SimpleAnnotationValueVisitor6<Long,Void>() {
+        @Override
+        public Long visitBoolean(boolean value, Void p) {
+            return hash(hash(BASIS, 'Z'), value ? 1 : 0);
+        }
+
+        @Override
+        public Long visitByte(byte value, Void p) {
+            return hash(hash(BASIS, 'B'), value);
+        }
+
+        @Override
+        public Long visitChar(char value, Void p) {
+            return hash(hash(BASIS, 'C'), value);
+        }
+
+        @Override
+        public Long visitShort(short value, Void p) {
+            return hash(hash(BASIS, 'S'), value);
+        }
+
+        @Override
+        public Long visitInt(int value, Void p) {
+            return hash(hash(BASIS, 'I'), value);
+        }
+
+        @Override
+        public Long visitLong(long value, Void p) {
+            return hash(hash(BASIS, 'J'), value);
+        }
+
+        @Override
+        public Long visitFloat(float value, Void p) {
+            return hash(hash(BASIS, 'F'), Float.floatToIntBits(value));
+        }
+
+        @Override
+        public Long visitDouble(double value, Void p) {
+            return hash(hash(BASIS, 'D'), Double.doubleToLongBits(value));
+        }
+
+        @Override
+        public Long visitString(String value, Void p) {
+            return hash(hash(BASIS, 's'), value);
+        }
+
+        @Override
+        public Long visitType(TypeMirror type, Void p) {
+            return hash(hash(BASIS, 'c'), descriptor(type));
+        }
+
+        @Override
+        public Long visitEnumConstant(VariableElement constant, Void p) {
+            return hash(hash(hash(BASIS, 'e'), descriptor(constant.asType())), constant.getSimpleName());
+        }
+
+        @Override
+        public Long visitAnnotation(AnnotationMirror annotation, Void p) {
+            return hash(hash(BASIS, '@'), annotationHash(annotation));
+        }
+
+        @Override
+        public Long visitArray(List<? extends AnnotationValue> values, Void p) {
+            long hash = hash(hash(BASIS, '['), values.size());
+            for (AnnotationValue value : values)
+                hash = hash(hash, value.accept(this, null));
+            return hash;
+        }
+    };
+
+    /**
+     * Construct an empty fingerprint, to add the annotation mirrors of a test class's elements to.
+     * 
+     * @param elements the element utilities to find binary names with
+     */
+    ExpectationFingerprint(Elements elements) {
+        this.elements = elements;
+    }
+
+    /**
+     * Add the expectation annotations on an element, if it has any.
+     */
+    void add(Element element) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (EXPECTATION_ANNOTATIONS.contains(binaryName((TypeElement) mirror.getAnnotationType().asElement())))
+                sum += finish(hash(elementHash(element), annotationHash(mirror)));
+        }
+    }
+
+    /** @return the hash of the kind and internal name of an element, as {@link #readClass} hashes the same element in a class file */
+    private long elementHash(Element element) {
+        if (element instanceof TypeElement)
+            return hash(hash(BASIS, 'T'), internalName(element));
+        if (element instanceof ExecutableElement)
+            return hash(hash(hash(BASIS, 'M'), internalName(element.getEnclosingElement())), element.getSimpleName());
+
+        Element enclosing = element.getEnclosingElement();
+        if (element.getKind() == ElementKind.PARAMETER)
+            return hash(hash(hash(BASIS, 'P'), internalName(enclosing.getEnclosingElement())), enclosing.getSimpleName());
+        if (element instanceof VariableElement)
+            return hash(hash(hash(BASIS, 'F'), internalName(enclosing)), element.getSimpleName());
+        return hash(hash(BASIS, element.getKind().toString()), element.getSimpleName()); // Never found in class files, so the index is never used
+    }
+
+    private long annotationHash(AnnotationMirror mirror) {
+        long values = 0;
+        for (Map.Entry<? extends ExecutableElement,? extends AnnotationValue> entry : mirror.getElementValues().entrySet())
+            values += finish(hash(hash(BASIS, entry.getKey().getSimpleName()), entry.getValue().accept(valueHasher, null)));
+        return hash(hash(BASIS, descriptor(mirror.getAnnotationType())), values);
+    }
+
+    private String binaryName(TypeElement type) {
+        return elements.getBinaryName(type).toString();
+    }
+
+    private String internalName(Element type) {
+        return binaryName((TypeElement) type).replace('.', '/');
+    }
+
+    /** @return the descriptor of a type, as it appears in a class file */
+    private String descriptor(TypeMirror type) {
+        switch (type.getKind()) {
+        case ARRAY: return "[" + descriptor(((ArrayType) type).getComponentType());
+        case DECLARED: return "L" + internalName(((DeclaredType) type).asElement()) + ";";
+        case BOOLEAN: return "Z";
+        case BYTE: return "B";
+        case CHAR: return "C";
+        case DOUBLE: return "D";
+        case FLOAT: return "F";
+        case INT: return "I";
+        case LONG: return "J";
+        case SHORT: return "S";
+        case VOID: return "V";
+        default: return type.toString();
+        }
+    }
+
+    /**
+     * @return the fingerprint of the annotations added so far, as a hex string
+     */
+    String digest() {
+        return String.format("%016x", sum);
+    }
+
+    private static long hash(long hash, int value) {
+        return (hash ^ value) * PRIME;
+    }
+
+    private static long hash(long hash, long value) {
+        return hash(hash(hash, (int) (value >>> 32)), (int) value);
+    }
+
+    /** Hash the characters of a string, followed by a terminator that no character hashes the same as */
+    private static long hash(long hash, CharSequence value) {
+        for (int i = 0; i < value.length(); ++i)
+            hash = hash(hash, value.charAt(i));
+        return hash(hash, -1);
+    }
+
+    /** Mix the bits of a hash, so that adding up hashes does not cancel them out */
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Compute the fingerprint of a compiled test class from its class file and those of its member classes.
+     * 
+     * @param loader the class loader to find the class files with
+     * @param className the binary name of the test class
+     * @return the fingerprint, or null if the class file cannot be found
+     * @throws IOException if a class file cannot be read or is malformed
+     */
+    static String read(ClassLoader loader, String className) throws IOException {
+        ExpectationFingerprint fingerprint = new ExpectationFingerprint(null);
+        return fingerprint.readClass(loader, className.replace('.', '/')) ? fingerprint.digest() : null;
+    }
+
+    /**
+     * Add the expectation annotations in a class file, and then those in the class files of its member classes. Only the names of attributes are looked at
+     * for most elements, so this costs little more than reading the bytes of the class files.
+     * 
+     * @param internalName the internal name of the class
+     * @return false if the class file cannot be found
+     */
+    private boolean readClass(ClassLoader loader, String internalName) throws IOException {
+        InputStream in = loader.getResourceAsStream(internalName + ".class");
+        if (in == null)
+            return false;
+
+        ClassFile classFile;
+        try {
+            classFile = new ClassFile(in, internalName);
+        } finally {
+            in.close();
+        }
+
+        classFile.skip(2); // Access flags
+        int thisClass = classFile.classNameIndex(classFile.u2());
+        classFile.skip(2); // Super class
+        classFile.skip(2 * classFile.u2()); // Interfaces
+
+        for (char kind : new char[] { 'F', 'M' }) {
+            int count = classFile.u2();
+            for (int i = 0; i < count; ++i) {
+                int flags = classFile.u2();
+                int name = classFile.u2();
+                classFile.skip(2); // Descriptor
+                boolean generated = (flags & ACC_SYNTHETIC) != 0 || (kind == 'M' && (flags & ACC_BRIDGE) != 0);
+
+                int attributes = classFile.u2();
+                for (int j = 0; j < attributes; ++j) {
+                    int attributeName = classFile.u2();
+                    int end = classFile.u4() + classFile.position;
+                    if (generated) {
+                        // Skip it
+                    } else if (classFile.utf8Equals(attributeName, "RuntimeVisibleAnnotations")) {
+                        readAnnotations(classFile, classFile.hash(classFile.hash(hash(BASIS, kind), thisClass), name));
+                    } else if (kind == 'M' && classFile.utf8Equals(attributeName, "RuntimeVisibleParameterAnnotations")) {
+                        long element = classFile.hash(classFile.hash(hash(BASIS, 'P'), thisClass), name);
+                        int parameters = classFile.u1();
+                        for (int k = 0; k < parameters; ++k)
+                            readAnnotations(classFile, element);
+                    }
+                    classFile.position = end;
+                }
+            }
+        }
+
+        String[] memberClasses = new String[0];
+        int attributes = classFile.u2();
+        for (int i = 0; i < attributes; ++i) {
+            int attributeName = classFile.u2();
+            int end = classFile.u4() + classFile.position;
+            if (classFile.utf8Equals(attributeName, "RuntimeVisibleAnnotations")) {
+                readAnnotations(classFile, classFile.hash(hash(BASIS, 'T'), thisClass));
+            } else if (classFile.utf8Equals(attributeName, "InnerClasses")) {
+                int classes = classFile.u2();
+                for (int j = 0; j < classes; ++j) {
+                    int inner = classFile.u2();
+                    int outer = classFile.u2();
+                    int innerName = classFile.u2();
+                    classFile.skip(2); // Access flags
+                    if (outer != 0 && innerName != 0 && classFile.utf8Equals(classFile.classNameIndex(outer), internalName)) {
+                        memberClasses = Arrays.copyOf(memberClasses, memberClasses.length + 1);
+                        memberClasses[memberClasses.length - 1] = classFile.utf8(classFile.classNameIndex(inner));
+                    }
+                }
+            }
+            classFile.position = end;
+        }
+
+        for (String memberClass : memberClasses) {
+            if (!readClass(loader, memberClass))
+                throw new IOException("No class file found for member class " + memberClass);
+        }
+        return true;
+    }
+
+    /** Add the expectation annotations in a RuntimeVisibleAnnotations attribute, or one parameter's part of a RuntimeVisibleParameterAnnotations */
+    private void readAnnotations(ClassFile classFile, long element) throws IOException {
+        int count = classFile.u2();
+        for (int i = 0; i < count; ++i) {
+            boolean expectation = false;
+            int type = classFile.peekU2();
+            for (String descriptor : EXPECTATION_DESCRIPTORS)
+                expectation |= classFile.utf8Equals(type, descriptor);
+
+            long annotation = readAnnotation(classFile);
+            if (expectation)
+                sum += finish(hash(element, annotation));
+        }
+    }
+
+    /** Read an annotation, and hash it as {@link #annotationHash} does */
+    private static long readAnnotation(ClassFile classFile) throws IOException {
+        long type = classFile.hash(BASIS, classFile.u2());
+        long values = 0;
+        int count = classFile.u2();
+        for (int i = 0; i < count; ++i) {
+            long name = classFile.hash(BASIS, classFile.u2());
+            values += finish(hash(name, readValue(classFile)));
+        }
+        return hash(type, values);
+    }
+
+    /** Read an annotation element value, and hash it as {@link #valueHasher} does */
+    private static long readValue(ClassFile classFile) throws IOException {
+        int tag = classFile.u1();
+        long hash = hash(BASIS, tag);
+        switch (tag) {
+        case 'B': case 'C': case 'I': case 'S': case 'F':
+            return hash(hash, classFile.u4(classFile.u2(), tag == 'F' ? ClassFile.FLOAT : ClassFile.INTEGER));
+        case 'Z':
+            return hash(hash, classFile.u4(classFile.u2(), ClassFile.INTEGER) != 0 ? 1 : 0);
+        case 'J': case 'D':
+            return hash(hash, classFile.u8(classFile.u2(), tag == 'D' ? ClassFile.DOUBLE : ClassFile.LONG));
+        case 's': case 'c':
+            return classFile.hash(hash, classFile.u2());
+        case 'e':
+            hash = classFile.hash(hash, classFile.u2());
+            return classFile.hash(hash, classFile.u2());
+        case '@':
+            return hash(hash, readAnnotation(classFile));
+        case '[':
+            int count = classFile.u2();
+            hash = hash(hash, count);
+            for (int i = 0; i < count; ++i)
+                hash = hash(hash, readValue(classFile));
+            return hash;
+        default:
+            throw new IOException("Unknown annotation element value tag " + (char) tag);
+        }
+    }
+
+    /**
+     * The bytes of a class file, with a position to read from. The constant pool is only indexed as it is read; its entries are hashed or decoded when they
+     * are asked for, since most of them are never needed.
+     */
+    private static final class ClassFile {
+        static final int UTF8 = 1, INTEGER = 3, FLOAT = 4, LONG = 5, DOUBLE = 6, CLASS = 7;
+
+        private final String className;
+        private byte[] bytes;
+        private int length;
+        /** The tag of each constant pool entry */
+        private final byte[] tags;
+        /** The offset of the contents of each constant pool entry, just after its tag */
+        private final int[] offsets;
+        /** The offset of the next byte to read */
+        int position;
+
+        /**
+         * Read a class file, up to the end of its constant pool.
+         */
+        ClassFile(InputStream in, String className) throws IOException {
+            this.className = className;
+            this.bytes = new byte[Math.max(in.available() + 1, 8192)]; // One more than available, so that the end is seen without growing the buffer
+            int n;
+            while ((n = in.read(bytes, length, bytes.length - length)) != -1) {
+                length += n;
+                if (length == bytes.length)
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+
+            if (u4() != 0xCAFEBABE)
+                throw new IOException("Not a class file: " + className);
+            skip(4); // Minor and major versions
+
+            int count = u2();
+            tags = new byte[count];
+            offsets = new int[count];
+            for (int i = 1; i < count; ++i) {
+                int tag = u1();
+                tags[i] = (byte) tag;
+                offsets[i] = position;
+                switch (tag) {
+                case UTF8:
+                    skip(u2());
+                    break;
+                case LONG: case DOUBLE: // These take two entries
+                    skip(8);
+                    ++i;
+                    break;
+                case CLASS: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+                    skip(2);
+                    break;
+                case 15: // MethodHandle
+                    skip(3);
+                    break;
+                case INTEGER: case FLOAT: case 9: case 10: case 11: case 12: case 17: case 18: // Integer, Float, refs, NameAndType, Dynamic, InvokeDynamic
+                    skip(4);
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag + " in " + className);
+                }
+            }
+        }
+
+        void skip(int count) throws IOException {
+            if (count < 0 || position + count > length)
+                throw new IOException("Truncated class file: " + className);
+            position += count;
+        }
+
+        int u1() throws IOException {
+            skip(1);
+            return bytes[position - 1] & 0xff;
+        }
+
+        int u2() throws IOException {
+            skip(2);
+            return u2At(position - 2);
+        }
+
+        int peekU2() throws IOException {
+            int value = u2();
+            position -= 2;
+            return value;
+        }
+
+        int u4() throws IOException {
+            skip(4);
+            return u4At(position - 4);
+        }
+
+        private int u2At(int offset) {
+            return ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+        }
+
+        private int u4At(int offset) {
+            return (u2At(offset) << 16) | u2At(offset + 2);
+        }
+
+        /** @return the offset of the contents of a constant pool entry, after checking its tag */
+        private int offset(int index, int tag) throws IOException {
+            if (index <= 0 || index >= tags.length || tags[index] != tag)
+                throw new IOException("Bad constant pool index " + index + " in " + className);
+            return offsets[index];
+        }
+
+        /** @return the value of an Integer or Float entry, as its bits */
+        int u4(int index, int tag) throws IOException {
+            return u4At(offset(index, tag));
+        }
+
+        /** @return the value of a Long or Double entry, as its bits */
+        long u8(int index, int tag) throws IOException {
+            int offset = offset(index, tag);
+            return ((long) u4At(offset) << 32) | (u4At(offset + 4) & 0xffffffffL);
+        }
+
+        /** @return the index of the name of a Class entry */
+        int classNameIndex(int index) throws IOException {
+            return u2At(offset(index, CLASS));
+        }
+
+        /** @return true if a Utf8 entry holds an ASCII string, without decoding the entry */
+        boolean utf8Equals(int index, String ascii) throws IOException {
+            int offset = offset(index, UTF8);
+            if (u2At(offset) != ascii.length())
+                return false;
+            for (int i = 0; i < ascii.length(); ++i) {
+                if (bytes[offset + 2 + i] != ascii.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+
+        /** Hash the characters of a Utf8 entry as {@link ExpectationFingerprint#hash(long, CharSequence)} does, decoding them as it goes */
+        long hash(long hash, int index) throws IOException {
+            int offset = offset(index, UTF8);
+            int end = offset + 2 + u2At(offset);
+            for (int i = offset + 2; i < end;) {
+                int next = next(i, end, index);
+                hash = ExpectationFingerprint.hash(hash, charAt(i));
+                i = next;
+            }
+            return ExpectationFingerprint.hash(hash, -1);
+        }
+
+        String utf8(int index) throws IOException {
+            int offset = offset(index, UTF8);
+            int end = offset + 2 + u2At(offset);
+            StringBuilder sb = new StringBuilder(end - offset);
+            for (int i = offset + 2; i < end;) {
+                int next = next(i, end, index);
+                sb.append(charAt(i));
+                i = next;
+            }
+            return sb.toString();
+        }
+
+        /** @return the offset of the next character of a Utf8 entry, which is in modified UTF-8 */
+        private int next(int offset, int end, int index) throws IOException {
+            int b = bytes[offset] & 0xff;
+            int next = offset + (b < 0x80 ? 1 : b < 0xe0 ? 2 : 3);
+            if (next > end)
+                throw new IOException("Malformed string constant " + index + " in " + className);
+            return next;
+        }
+
+        private char charAt(int offset) {
+            int b = bytes[offset] & 0xff;
+            if (b < 0x80)
+                return (char) b;
+            if (b < 0xe0)
+                return (char) (((b & 0x1f) << 6) | (bytes[offset + 1] & 0x3f));
+            return (char) (((b & 0x0f) << 12) | ((bytes[offset + 1] & 0x3f) << 6) | (bytes[offset + 2] & 0x3f));
+        }
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * The expectations of one test class, as written by {@link ExpectationIndexProcessor} when the test sources are compiled and read back by
+ * {@link VerifyingProcessor} and {@link Verifier} in place of the annotations themselves.
+ * <p>
+ * The index is a UTF-8 text resource named by {@link #resourceName}, with one tab-separated record per line:
+ * <ul>
+ * <li><code>processor &lt;binary name&gt;</code> - the processor named by {@link VerifyDiagnostics#value()} on the test class;
+ * <li><code>fingerprint &lt;hex&gt;</code> - the {@link ExpectationFingerprint} of the expectation annotations that the index was built from;
+ * <li><code>general &lt;signature&gt; &lt;kind&gt; &lt;regex&gt;</code> - an expectation from {@link VerifyDiagnostics#generalDiagnostics()};
+ * <li><code>expect &lt;signature&gt; &lt;kind&gt; &lt;regex&gt;</code> - an expectation from {@link ExpectDiagnostic} or {@link ExpectDiagnostics};
+ * <li><code>budget &lt;signature&gt; &lt;millis&gt; &lt;allocated&gt; &lt;rounds&gt; &lt;generated&gt;</code> - a {@link PerformanceBudget}.
+ * </ul>
+ * Elements are identified by the signatures computed by {@link #signature}. Tabs, newlines and backslashes in regexes are escaped with backslashes.
+ */
+final class ExpectationIndex {
+    /** The directory, on the class path, that index resources are written to */
+    static final String RESOURCE_PREFIX = "META-INF/mutability-test/expectations/";
+    /**
+     * One expectation, or a performance budget, attached to an element.
+     */
+    static final class Record {
+        final String type;
+        final String signature;
+        final Diagnostic.Kind kind;
+        final String regex;
+        final long[] budget;
+
+        Record(String type, String signature, Diagnostic.Kind kind, String regex, long[] budget) {
+            this.type = type;
+            this.signature = signature;
+            this.kind = kind;
+            this.regex = regex;
+            this.budget = budget;
+        }
+    }
+
+    private String processorName;
+    private String fingerprint;
+    private final List<Record> records = new ArrayList<Record>();
+    private final Map<String,List<Record>> bySignature = new HashMap<String,List<Record>>();
+
+    /**
+     * @param qualifiedName the qualified name of a test class
+     * @return the name of the index resource for that class
+     */
+    static String resourceName(String qualifiedName) {
+        return RESOURCE_PREFIX + qualifiedName + ".idx";
+    }
+
+    /**
+     * Convert a performance budget to the limits array used by {@link VerifyingProcessor}: processing millis, allocated bytes, rounds and generated bytes.
+     */
+    static long[] limits(PerformanceBudget budget) {
+        return new long[] { budget.maxProcessingMillis(), budget.maxAllocatedBytes(), budget.maxRounds(), budget.maxGeneratedBytes() };
+    }
+
+    /**
+     * Compute a signature that identifies an element within its top-level type, and that is the same whether the element was read from source or from a
+     * class file: qualified names for types and packages; "type#name(erased parameter types)" for methods and constructors; "type#name" for fields;
+     * "method/index" for parameters; and "generic&lt;name" for type parameters.
+     * 
+     * @param element the element
+     * @param types the type utilities to erase parameter types with
+     * @return the signature
+     */
+    static String signature(Element element, Types types) {
+        if (element instanceof TypeElement)
+            return ((TypeElement) element).getQualifiedName().toString();
+        if (element instanceof PackageElement)
+            return ((PackageElement) element).getQualifiedName().toString();
+
+        if (element instanceof ExecutableElement) {
+            StringBuilder sb = new StringBuilder(signature(element.getEnclosingElement(), types));
+            sb.append('#').append(element.getSimpleName()).append('(');
+            boolean first = true;
+            for (VariableElement parameter : ((ExecutableElement) element).getParameters()) {
+                if (!first)
+                    sb.append(',');
+                first = false;
+                sb.append(types.erasure(parameter.asType()));
+            }
+            return sb.append(')').toString();
+        }
+
+        if (element instanceof TypeParameterElement)
+            return signature(((TypeParameterElement) element).getGenericElement(), types) + "<" + element.getSimpleName();
+
+        Element enclosing = element.getEnclosingElement();
+        if (element.getKind() == ElementKind.PARAMETER && enclosing instanceof ExecutableElement)
+            return signature(enclosing, types) + "/" + ((ExecutableElement) enclosing).getParameters().indexOf(element);
+        if (element instanceof VariableElement)
+            return signature(enclosing, types) + "#" + element.getSimpleName();
+        return signature(enclosing, types) + "/" + element.getSimpleName();
+    }
+
+    /** @return the binary name of the processor to verify with */
+    String getProcessorName() {
+        return processorName;
+    }
+
+    void setProcessorName(String processorName) {
+        this.processorName = processorName;
+    }
+
+    /** @return the fingerprint of the annotations that this index was built from, or null if it does not record one */
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Check that this index is up to date with a compiled test class, by comparing its fingerprint with one read from the class files. This reads the
+     * class files' annotation attributes rather than the elements of the class, so it is cheap even for large test classes.
+     * 
+     * @param loader the class loader to read the class files with
+     * @param className the binary name of the test class
+     * @return true if the fingerprints match, or false if the index is stale or the class files cannot be read
+     */
+    boolean matches(ClassLoader loader, String className) {
+        if (fingerprint == null)
+            return false;
+
+        try {
+            return fingerprint.equals(ExpectationFingerprint.read(loader, className));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void add(Record record) {
+        records.add(record);
+        List<Record> list = bySignature.get(record.signature);
+        if (list == null) {
+            list = new ArrayList<Record>();
+            bySignature.put(record.signature, list);
+        }
+        list.add(record);
+    }
+
+    /** @return all the records, in index order */
+    List<Record> getRecords() {
+        return records;
+    }
+
+    /**
+     * @param signature an element signature
+     * @return the records attached to that element, in index order
+     */
+    List<Record> getRecords(String signature) {
+        List<Record> list = bySignature.get(signature);
+        return list == null ? Collections.<Record> emptyList() : list;
+    }
+
+    /**
+     * Find the elements that the records of this index are attached to. Members are looked up by name, and signatures are only computed for overloaded
+     * members, so this costs much less than visiting every element of the test class. This relies on the index having been checked with {@link #matches},
+     * which guarantees that an annotated member of each name and kind that the index names still exists.
+     * 
+     * @param testClass the test class that the index was written for
+     * @param elements the element utilities to find names with
+     * @param types the type utilities to compute signatures with
+     * @return the element for each signature in the index, or null if some signature no longer names an element
+     */
+    Map<String,Element> resolve(TypeElement testClass, Elements elements, Types types) {
+        // Every identifier in the signatures, which includes the name of every member they name
+        Set<Name> names = new HashSet<Name>();
+        names.add(elements.getName("<init>"));
+        for (String signature : bySignature.keySet()) {
+            int start = 0;
+            for (int i = 0; i <= signature.length(); ++i) {
+                if (i == signature.length() || !Character.isJavaIdentifierPart(signature.charAt(i))) {
+                    if (i > start)
+                        names.add(elements.getName(signature.substring(start, i)));
+                    start = i + 1;
+                }
+            }
+        }
+
+        Resolver resolver = new Resolver(testClass, names, elements, types);
+        for (String signature : bySignature.keySet()) {
+            if (resolver.find(signature) == null)
+                return null;
+        }
+        return resolver.found;
+    }
+
+    /**
+     * Finds elements by their {@link #signature}, remembering what it has found.
+     */
+    private static final class Resolver {
+        private final Elements elements;
+        private final Types types;
+        private final String testClassSignature;
+        /** The names of the members that may be looked up; no other members need to be remembered */
+        private final Set<Name> names;
+        private final Map<String,Element> found = new HashMap<String,Element>();
+        /** The members of each enclosing element looked at so far, by simple name */
+        private final Map<Element,Map<Name,List<Element>>> members = new HashMap<Element,Map<Name,List<Element>>>();
+
+        Resolver(TypeElement testClass, Set<Name> names, Elements elements, Types types) {
+            this.names = names;
+            this.elements = elements;
+            this.types = types;
+            this.testClassSignature = signature(testClass, types);
+            found.put(testClassSignature, testClass);
+        }
+
+        /** @return the element with a signature, or null if there is none */
+        Element find(String signature) {
+            if (found.containsKey(signature))
+                return found.get(signature);
+
+            Element element = lookUp(signature);
+            found.put(signature, element);
+            return element;
+        }
+
+        private Element lookUp(String signature) {
+            if (signature.endsWith(")")) {
+                // An executable: the parameter types may contain any separator but '#'
+                int hash = signature.lastIndexOf('#', signature.lastIndexOf('('));
+                return hash == -1 ? null : member(signature.substring(0, hash), signature.substring(hash + 1, signature.lastIndexOf('(')), signature,
+                                                  ExecutableElement.class);
+            }
+
+            int separator = Math.max(signature.lastIndexOf('#'), Math.max(signature.lastIndexOf('/'), signature.lastIndexOf('<')));
+            if (separator == -1) {
+                // Look member types up in the test class rather than by name, which can mean searching every module
+                int dot = signature.lastIndexOf('.');
+                if (signature.startsWith(testClassSignature + "."))
+                    return member(signature.substring(0, dot), signature.substring(dot + 1), signature, TypeElement.class);
+
+                Element type = elements.getTypeElement(signature);
+                return type != null ? type : elements.getPackageElement(signature);
+            }
+
+            String enclosing = signature.substring(0, separator);
+            String name = signature.substring(separator + 1);
+            switch (signature.charAt(separator)) {
+            case '<':
+                Element generic = find(enclosing);
+                List<? extends TypeParameterElement> typeParameters;
+                if (generic instanceof TypeElement)
+                    typeParameters = ((TypeElement) generic).getTypeParameters();
+                else if (generic instanceof ExecutableElement)
+                    typeParameters = ((ExecutableElement) generic).getTypeParameters();
+                else
+                    return null;
+                for (TypeParameterElement parameter : typeParameters) {
+                    if (parameter.getSimpleName().contentEquals(name))
+                        return parameter;
+                }
+                return null;
+
+            case '/':
+                if (enclosing.endsWith(")") && name.matches("[0-9]+")) {
+                    Element method = find(enclosing);
+                    if (!(method instanceof ExecutableElement))
+                        return null;
+                    List<? extends VariableElement> parameters = ((ExecutableElement) method).getParameters();
+                    int index = Integer.parseInt(name);
+                    return index < parameters.size() ? parameters.get(index) : null;
+                }
+                return member(enclosing, name, signature, Element.class);
+
+            default:
+                return member(enclosing, name, signature, VariableElement.class);
+            }
+        }
+
+        /**
+         * @return the member of an element with a simple name, kind and signature, or null if there is none. The signature is only checked if several
+         *         members have the name.
+         */
+        private Element member(String enclosingSignature, String name, String signature, Class<? extends Element> kind) {
+            Element enclosing = find(enclosingSignature);
+            if (enclosing == null)
+                return null;
+
+            Map<Name,List<Element>> byName = members.get(enclosing);
+            if (byName == null) {
+                byName = new HashMap<Name,List<Element>>();
+                for (Element member : enclosing.getEnclosedElements()) {
+                    if (!names.contains(member.getSimpleName()))
+                        continue;
+
+                    List<Element> list = byName.get(member.getSimpleName());
+                    if (list == null) {
+                        list = new ArrayList<Element>(1);
+                        byName.put(member.getSimpleName(), list);
+                    }
+                    list.add(member);
+                }
+                members.put(enclosing, byName);
+            }
+
+            List<Element> candidates = new ArrayList<Element>(1);
+            List<Element> named = byName.get(elements.getName(name));
+            if (named != null) {
+                for (Element candidate : named) {
+                    if (kind.isInstance(candidate))
+                        candidates.add(candidate);
+                }
+            }
+            if (candidates.size() == 1)
+                return candidates.get(0);
+
+            for (Element candidate : candidates) {
+                if (signature(candidate, types).equals(signature))
+                    return candidate;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Write this index.
+     * 
+     * @param out the writer to write to; it is not closed
+     * @throws IOException if writing fails
+     */
+    void write(Writer out) throws IOException {
+        out.write("processor\t" + processorName + "\n");
+        if (fingerprint != null)
+            out.write("fingerprint\t" + fingerprint + "\n");
+        for (Record record : records) {
+            out.write(record.type);
+            out.write('\t');
+            out.write(escape(record.signature));
+            if (record.budget != null) {
+                for (long limit : record.budget)
+                    out.write("\t" + limit);
+            } else {
+                out.write("\t" + record.kind.name() + "\t" + escape(record.regex));
+            }
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Read an index.
+     * 
+     * @param in the stream to read from; it is closed
+     * @return the index
+     * @throws IOException if reading fails, or the index is malformed
+     */
+    static ExpectationIndex read(InputStream in) throws IOException {
+        ExpectationIndex index = new ExpectationIndex();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                try {
+                    if (fields[0].equals("processor")) {
+                        index.setProcessorName(fields[1]);
+                    } else if (fields[0].equals("fingerprint")) {
+                        index.setFingerprint(fields[1]);
+                    } else if (fields[0].equals("budget")) {
+                        long[] budget = new long[4];
+                        for (int i = 0; i < budget.length; ++i)
+                            budget[i] = Long.parseLong(fields[i + 2]);
+                        index.add(new Record(fields[0], unescape(fields[1]), null, null, budget));
+                    } else if (fields[0].equals("general") || fields[0].equals("expect")) {
+                        index.add(new Record(fields[0], unescape(fields[1]), Diagnostic.Kind.valueOf(fields[2]), unescape(fields[3]), null));
+                    } else {
+                        throw new IOException("Unknown expectation index record: " + line);
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException("Malformed expectation index record: " + line, e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (index.processorName == null)
+            throw new IOException("Expectation index does not name a processor");
+        return index;
+    }
+
+    /** Escape tabs, newlines and backslashes so that a string fits in one tab-separated field */
+    static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /** Reverse {@link #escape} */
+    static String unescape(String s) {
+        if (s.indexOf('\\') == -1)
+            return s;
+
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.util.ElementScanner6;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * An annotation processor that runs when test sources are compiled, and writes an index of the expectations of each top-level test class annotated with
+ * {@link VerifyDiagnostics}: the processor to verify with, the expected diagnostics and the signatures of the elements they are attached to, and any
+ * {@link PerformanceBudget}. {@link VerifyingProcessor} and {@link Verifier} read this index, when it is on the class path, instead of reading the
+ * annotations at verification time.
+ * <p>
+ * This processor is not registered as a service, so that it does not run, and trigger -Xlint:processing warnings, in every compilation that has
+ * ap-test-utils on its class path. Name it explicitly when compiling test sources: with javac's -processor option, or in the annotationProcessors
+ * configuration of maven-compiler-plugin.
+ */
+@SupportedAnnotationTypes("uk.co.mutability.test.processors.VerifyDiagnostics")
+public class ExpectationIndexProcessor extends AbstractProcessor {
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(VerifyDiagnostics.class)) {
+            if (element.getEnclosingElement().getKind() != ElementKind.PACKAGE)
+                continue; // Only top-level test classes get an index; verifying a nested one falls back to reading its annotations
+
+            TypeElement testClass = (TypeElement) element;
+            try {
+                writeIndex(testClass, buildIndex(testClass));
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Unable to write expectation index: " + e.getMessage(), testClass);
+            }
+        }
+
+        return false; // Let other processors see @VerifyDiagnostics too
+    }
+
+    /**
+     * Build the index for a test class by scanning its elements for expectations, in the same way that {@link VerifyingProcessor} does when there is no
+     * index.
+     */
+    private ExpectationIndex buildIndex(TypeElement testClass) {
+        final ExpectationIndex index = new ExpectationIndex();
+        final ExpectationFingerprint fingerprint = new ExpectationFingerprint(processingEnv.getElementUtils());
+        index.setProcessorName(processorName(testClass));
+
+        new ElementScanner6<Void,Void>() {
+            @Override
+            public Void scan(Element annotatedElement, Void p) {
+                fingerprint.add(annotatedElement);
+                String signature = null;
+
+                VerifyDiagnostics verify = annotatedElement.getAnnotation(VerifyDiagnostics.class);
+                if (verify != null) {
+                    signature = signature(annotatedElement);
+                    for (ExpectDiagnostic diag : verify.generalDiagnostics())
+                        index.add(new ExpectationIndex.Record("general", signature, diag.kind(), diag.value(), null));
+
+                    PerformanceBudget budget = annotatedElement.getAnnotation(PerformanceBudget.class);
+                    if (budget != null)
+                        index.add(new ExpectationIndex.Record("budget", signature, null, null, ExpectationIndex.limits(budget)));
+                }
+
+                ExpectDiagnostic singleDiag = annotatedElement.getAnnotation(ExpectDiagnostic.class);
+                if (singleDiag != null) {
+                    signature = (signature != null ? signature : signature(annotatedElement));
+                    index.add(new ExpectationIndex.Record("expect", signature, singleDiag.kind(), singleDiag.value(), null));
+                }
+
+                ExpectDiagnostics diags = annotatedElement.getAnnotation(ExpectDiagnostics.class);
+                if (diags != null) {
+                    signature = (signature != null ? signature : signature(annotatedElement));
+                    for (ExpectDiagnostic diag : diags.value())
+                        index.add(new ExpectationIndex.Record("expect", signature, diag.kind(), diag.value(), null));
+                }
+
+                return super.scan(annotatedElement, p);
+            }
+        }.scan(testClass, null);
+
+        index.setFingerprint(fingerprint.digest());
+        return index;
+    }
+
+    private String signature(Element element) {
+        return ExpectationIndex.signature(element, processingEnv.getTypeUtils());
+    }
+
+    /**
+     * Find the binary name of the processor named by {@link VerifyDiagnostics#value()}. The class itself may not be loadable here, so this reads the
+     * annotation mirror rather than the annotation.
+     */
+    private String processorName(TypeElement testClass) {
+        for (AnnotationMirror mirror : testClass.getAnnotationMirrors()) {
+            if (!((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(VerifyDiagnostics.class.getName()))
+                continue;
+
+            for (Map.Entry<? extends ExecutableElement,? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+                if (entry.getKey().getSimpleName().contentEquals("value")) {
+                    TypeElement processor = (TypeElement) ((DeclaredType) entry.getValue().getValue()).asElement();
+                    return processingEnv.getElementUtils().getBinaryName(processor).toString();
+                }
+            }
+        }
+
+        throw new IllegalStateException("No @VerifyDiagnostics value found on " + testClass);
+    }
+
+    private void writeIndex(TypeElement testClass, ExpectationIndex index) throws IOException {
+        FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+                                                                  ExpectationIndex.resourceName(testClass.getQualifiedName().toString()), testClass);
+        Writer out = new OutputStreamWriter(file.openOutputStream(), "UTF-8");
+        try {
+            index.write(out);
+        } finally {
+            out.close();
+        }
+    }
+}
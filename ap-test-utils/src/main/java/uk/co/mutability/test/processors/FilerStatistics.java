@@ -0,0 +1,224 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaFileObject;
+
+/**
+ * A record of the files written by a delegate processor through its {@link javax.annotation.processing.Filer}, collected by {@link VerifyingProcessor}.
+ * <p>
+ * Each file created is recorded with the processing round it was created in, the elements the processor named as its originating elements, the number of
+ * bytes written to it, and the time spent inside its output streams. Attempts to create the same file twice, and files whose output stream was opened more
+ * than once, are flagged.
+ * <p>
+ * Instances are safe to read while the processor is still writing, but the totals are only final once processing is complete.
+ */
+public final class FilerStatistics {
+    /**
+     * The record of one file created through the Filer.
+     */
+    public static final class Output {
+        private final int round;
+        private final JavaFileObject.Kind kind;
+        private final String name;
+        private final List<String> originatingElements;
+        private final boolean duplicate;
+        private long bytesWritten;
+        private long writeNanos;
+        private int opens;
+
+        Output(int round, JavaFileObject.Kind kind, String name, List<String> originatingElements, boolean duplicate) {
+            this.round = round;
+            this.kind = kind;
+            this.name = name;
+            this.originatingElements = Collections.unmodifiableList(originatingElements);
+            this.duplicate = duplicate;
+        }
+
+        /** @return the processing round in which the file was created, starting from 1 */
+        public int getRound() {
+            return round;
+        }
+
+        /** @return SOURCE or CLASS for generated types, or OTHER for resources */
+        public JavaFileObject.Kind getKind() {
+            return kind;
+        }
+
+        /** @return the type name for source and class files, or the location-qualified path for resources */
+        public String getName() {
+            return name;
+        }
+
+        /** @return descriptions of the originating elements the processor gave when creating the file */
+        public List<String> getOriginatingElements() {
+            return originatingElements;
+        }
+
+        /** @return true if a file with the same name had already been created during this processing run */
+        public boolean isDuplicate() {
+            return duplicate;
+        }
+
+        /** @return true if the file's content was written more than once */
+        public synchronized boolean isOverwritten() {
+            return opens > 1;
+        }
+
+        /** @return the number of bytes written to the file; for Writers, the UTF-8 encoded length of the characters written */
+        public synchronized long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        /** @return the wall time spent inside the file's output stream or writer */
+        public synchronized long getWriteNanos() {
+            return writeNanos;
+        }
+
+        synchronized void opened() {
+            ++opens;
+        }
+
+        synchronized void wrote(long bytes, long nanos) {
+            bytesWritten += bytes;
+            writeNanos += nanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("round ").append(round).append(' ').append(kind).append(' ').append(name).append(": ");
+            sb.append(getBytesWritten()).append(" bytes, ").append(getWriteNanos() / 1000).append(" us");
+            if (duplicate)
+                sb.append(" [DUPLICATE]");
+            if (isOverwritten())
+                sb.append(" [OVERWRITTEN]");
+            if (!originatingElements.isEmpty())
+                sb.append(" from ").append(originatingElements);
+            return sb.toString();
+        }
+    }
+
+    /** All outputs, in creation order */
+    private final List<Output> outputs = new ArrayList<Output>();
+
+    FilerStatistics() {
+    }
+
+    synchronized void add(Output output) {
+        outputs.add(output);
+    }
+
+    /** @return a snapshot of all files created, in creation order */
+    public synchronized List<Output> getOutputs() {
+        return new ArrayList<Output>(outputs);
+    }
+
+    /** @return the number of files created */
+    public synchronized int getFileCount() {
+        return outputs.size();
+    }
+
+    /** @return the number of files created in the given round */
+    public synchronized int getFileCount(int round) {
+        int count = 0;
+        for (Output output : outputs) {
+            if (output.getRound() == round)
+                ++count;
+        }
+        return count;
+    }
+
+    /** @return the total number of bytes written to all files */
+    public synchronized long getBytesWritten() {
+        long total = 0;
+        for (Output output : outputs)
+            total += output.getBytesWritten();
+        return total;
+    }
+
+    /** @return the number of bytes written to files created in the given round */
+    public synchronized long getBytesWritten(int round) {
+        long total = 0;
+        for (Output output : outputs) {
+            if (output.getRound() == round)
+                total += output.getBytesWritten();
+        }
+        return total;
+    }
+
+    /** @return the total wall time spent inside output streams and writers */
+    public synchronized long getWriteNanos() {
+        long total = 0;
+        for (Output output : outputs)
+            total += output.getWriteNanos();
+        return total;
+    }
+
+    /**
+     * Total the bytes written per originating element. A file with several originating elements is counted against each of them; a file with none is
+     * counted against "".
+     * 
+     * @return a map from originating element description to bytes written, in order of first appearance
+     */
+    public synchronized Map<String,Long> getBytesWrittenByElement() {
+        Map<String,Long> totals = new LinkedHashMap<String,Long>();
+        for (Output output : outputs) {
+            List<String> elements = output.getOriginatingElements();
+            if (elements.isEmpty())
+                elements = Collections.singletonList("");
+
+            for (String element : elements) {
+                Long previous = totals.get(element);
+                totals.put(element, (previous == null ? 0L : previous.longValue()) + output.getBytesWritten());
+            }
+        }
+        return totals;
+    }
+
+    /** @return the outputs that were flagged as duplicate or overwritten */
+    public synchronized List<Output> getSuspiciousOutputs() {
+        List<Output> found = new ArrayList<Output>();
+        for (Output output : outputs) {
+            if (output.isDuplicate() || output.isOverwritten())
+                found.add(output);
+        }
+        return found;
+    }
+
+    /**
+     * @return a human-readable report of all outputs
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getFileCount()).append(" files, ").append(getBytesWritten()).append(" bytes, ").append(getWriteNanos() / 1000).append(" us writing");
+        for (Output output : outputs)
+            sb.append("\n  ").append(output);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A read-only, memory-mapped JAR or ZIP file.
+ * <p>
+ * The file is mapped once, and its central directory is read once when it is opened; after that, finding an entry is a hash lookup, and listing a
+ * directory is a lookup in a directory index. Entries that are stored uncompressed are read directly from the mapping without copying; compressed
+ * entries are inflated as they are read. Add an archive to a {@link MemoryFileManager} with {@link MemoryFileManager#addArchive} to use it as a
+ * read-only class path, source path or processor path.
+ * <p>
+ * ZIP64 archives, and archives larger than 2GB, are not supported. The mapping is released when the archive is garbage collected, since mapped buffers
+ * cannot be unmapped explicitly. {@link SupportClassSet} also uses this class to index archives built on-heap, which have no file.
+ */
+public final class MappedJarArchive {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+    private static final int END_LENGTH = 22;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    /**
+     * One file entry in the archive.
+     */
+    public static final class Entry {
+        private final String name;
+        private final int method;
+        private final int compressedSize;
+        private final int size;
+        private final int localHeaderOffset;
+
+        Entry(String name, int method, int compressedSize, int size, int localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        /** @return the path of the entry within the archive, using '/' as a separator */
+        public String getName() {
+            return name;
+        }
+
+        /** @return the uncompressed size of the entry */
+        public int getSize() {
+            return size;
+        }
+
+        /** @return true if the entry is stored uncompressed, and so can be read without copying */
+        public boolean isStored() {
+            return method == STORED;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final File file;
+    /** The path used in URIs for entries, and a description of the archive in messages */
+    private final String path;
+    private final ByteBuffer mapping;
+    private final Map<String,Entry> entries = new LinkedHashMap<String,Entry>();
+    /** The entries directly in each directory, keyed by directory path without a trailing '/'; the root is "" */
+    private final Map<String,List<Entry>> directories = new LinkedHashMap<String,List<Entry>>();
+
+    private MappedJarArchive(File file, String path, ByteBuffer mapping) {
+        this.file = file;
+        this.path = path;
+        this.mapping = mapping;
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Map an archive and index its central directory.
+     * 
+     * @param file the JAR or ZIP file
+     * @return the archive
+     * @throws IOException if the file cannot be read or is not a supported archive
+     */
+    public static MappedJarArchive open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer mapping;
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Archive too large to map: " + file);
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close(); // The mapping stays valid after the channel is closed
+        }
+
+        MappedJarArchive archive = new MappedJarArchive(file, file.getAbsoluteFile().toURI().getPath(), mapping);
+        archive.readCentralDirectory();
+        return archive;
+    }
+
+    /**
+     * Index an archive held in a buffer rather than a file.
+     * 
+     * @param name a name for the archive, unique within the JVM, for use in URIs and messages; it should start with '/'
+     * @param content the archive; its content must not change afterwards
+     * @return the archive
+     * @throws IOException if the buffer does not hold a supported archive
+     */
+    static MappedJarArchive wrap(String name, ByteBuffer content) throws IOException {
+        MappedJarArchive archive = new MappedJarArchive(null, name, content.slice());
+        archive.readCentralDirectory();
+        return archive;
+    }
+
+    private void readCentralDirectory() throws IOException {
+        int end = findEndOfCentralDirectory();
+        int count = mapping.getShort(end + 10) & 0xffff;
+        int offset = mapping.getInt(end + 16);
+        if (count == 0xffff || offset == -1)
+            throw new IOException("ZIP64 archives are not supported: " + path);
+
+        for (int i = 0; i < count; ++i) {
+            if (offset + CENTRAL_HEADER_LENGTH > mapping.limit() || mapping.getInt(offset) != CENTRAL_HEADER_SIGNATURE)
+                throw new IOException("Corrupt central directory in " + path);
+
+            int method = mapping.getShort(offset + 10) & 0xffff;
+            int compressedSize = mapping.getInt(offset + 20);
+            int size = mapping.getInt(offset + 24);
+            int nameLength = mapping.getShort(offset + 28) & 0xffff;
+            int extraLength = mapping.getShort(offset + 30) & 0xffff;
+            int commentLength = mapping.getShort(offset + 32) & 0xffff;
+            int localHeaderOffset = mapping.getInt(offset + 42);
+            String name = decodeName(offset + CENTRAL_HEADER_LENGTH, nameLength);
+            offset += CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+
+            if (name.endsWith("/"))
+                continue; // A directory entry; directories are indexed from file names instead
+            if (compressedSize == -1 || size == -1 || localHeaderOffset == -1)
+                throw new IOException("ZIP64 archives are not supported: " + path);
+            if (method != STORED && method != DEFLATED)
+                throw new IOException("Unsupported compression method " + method + " for " + name + " in " + path);
+
+            Entry entry = new Entry(name, method, compressedSize, size, localHeaderOffset);
+            entries.put(name, entry);
+
+            int slash = name.lastIndexOf('/');
+            String directory = (slash == -1 ? "" : name.substring(0, slash));
+            List<Entry> list = directories.get(directory);
+            if (list == null) {
+                list = new ArrayList<Entry>();
+                directories.put(directory, list);
+            }
+            list.add(entry);
+        }
+    }
+
+    /** @return the offset of the end of central directory record, which is followed by an archive comment of up to 64KB */
+    private int findEndOfCentralDirectory() throws IOException {
+        int lowest = Math.max(0, mapping.limit() - END_LENGTH - 0xffff);
+        for (int offset = mapping.limit() - END_LENGTH; offset >= lowest; --offset) {
+            if (mapping.getInt(offset) == END_SIGNATURE)
+                return offset;
+        }
+        throw new IOException("Not a ZIP or JAR file: " + path);
+    }
+
+    private String decodeName(int offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        ByteBuffer buffer = mapping.duplicate();
+        buffer.position(offset);
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /** @return the file this archive was mapped from, or null if it was not read from a file */
+    public File getFile() {
+        return file;
+    }
+
+    /** @return the names of all file entries, in central directory order */
+    public Set<String> getEntryNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * @param name the path of an entry
+     * @return the entry, or null if there is none
+     */
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * List the file entries in a directory.
+     * 
+     * @param directory the directory path, without a trailing '/'; "" for the root
+     * @param recurse true to include entries in subdirectories
+     * @return the entries found
+     */
+    public List<Entry> list(String directory, boolean recurse) {
+        if (!recurse) {
+            List<Entry> list = directories.get(directory);
+            return list == null ? Collections.<Entry> emptyList() : Collections.unmodifiableList(list);
+        }
+
+        List<Entry> found = new ArrayList<Entry>();
+        String prefix = directory + "/";
+        for (Map.Entry<String,List<Entry>> candidate : directories.entrySet()) {
+            if (directory.length() == 0 || candidate.getKey().equals(directory) || candidate.getKey().startsWith(prefix))
+                found.addAll(candidate.getValue());
+        }
+        return found;
+    }
+
+    /** @return a read-only view of the compressed or stored data of an entry, within the mapping */
+    private ByteBuffer data(Entry entry) throws IOException {
+        int local = entry.localHeaderOffset;
+        if (local + LOCAL_HEADER_LENGTH > mapping.limit() || mapping.getInt(local) != LOCAL_HEADER_SIGNATURE)
+            throw new IOException("Corrupt local header for " + entry.name + " in " + path);
+
+        // The local header's name and extra field lengths can differ from those in the central directory
+        int start = local + LOCAL_HEADER_LENGTH + (mapping.getShort(local + 26) & 0xffff) + (mapping.getShort(local + 28) & 0xffff);
+        if ((long) start + (entry.compressedSize & 0xffffffffL) > mapping.limit())
+            throw new IOException("Corrupt local header for " + entry.name + " in " + path + ": its data runs past the end of the archive");
+
+        ByteBuffer data = mapping.asReadOnlyBuffer();
+        data.position(start);
+        data.limit(start + entry.compressedSize);
+        return data.slice();
+    }
+
+    /**
+     * Get the content of a stored (uncompressed) entry as a read-only view of the mapping, without copying.
+     * 
+     * @param entry an entry of this archive
+     * @return the content of the entry
+     * @throws IOException if the entry is compressed, or the archive is corrupt
+     */
+    public ByteBuffer getStoredContent(Entry entry) throws IOException {
+        if (!entry.isStored())
+            throw new IOException("Entry is compressed: " + entry.name);
+        return data(entry);
+    }
+
+    /**
+     * Open an entry for reading. Stored entries are read straight from the mapping; compressed entries are inflated as they are read, and the inflater's
+     * native memory is released when the stream is closed.
+     * 
+     * @param entry an entry of this archive
+     * @return an input stream for the entry's content
+     * @throws IOException if the archive is corrupt
+     */
+    public InputStream openInputStream(Entry entry) throws IOException {
+        InputStream data = new ByteBufferInputStream(data(entry));
+        if (entry.isStored())
+            return data;
+
+        // Inflater needs an extra dummy byte at the end of raw (nowrap) input
+        return new EntryInflaterInputStream(new SequenceInputStream(data, new ByteArrayInputStream(new byte[1])));
+    }
+
+    /**
+     * Read the whole content of an entry.
+     * 
+     * @param entry an entry of this archive
+     * @return the content
+     * @throws IOException if the archive is corrupt
+     */
+    public byte[] read(Entry entry) throws IOException {
+        byte[] bytes = new byte[entry.size];
+        InputStream in = openInputStream(entry);
+        try {
+            int done = 0;
+            while (done < bytes.length) {
+                int n = in.read(bytes, done, bytes.length - done);
+                if (n < 0)
+                    throw new IOException("Truncated entry " + entry.name + " in " + path);
+                done += n;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Build a URI for an entry; it is unique to this archive file and entry.
+     * 
+     * @param entry an entry of this archive
+     * @return a mappedjar: URI
+     */
+    URI toURI(Entry entry) {
+        try {
+            return new URI("mappedjar", null, path + "!/" + entry.name, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid entry name: URI construction failed", e);
+        }
+    }
+
+    /**
+     * Build a URL that can be opened to read an entry, for class loaders.
+     * 
+     * @param entry an entry of this archive
+     * @return a mappedjar: URL
+     */
+    URL toURL(Entry entry) {
+        try {
+            return new URL("mappedjar", null, -1, path + "!/" + entry.name, urlHandler);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid entry name: URL construction failed", e);
+        }
+    }
+
+    private final URLStreamHandler urlHandler = new URLStreamHandler() {
+        @Override
+        protected URLConnection openConnection(URL url) throws IOException {
+            String path = url.getPath();
+            final Entry entry = entries.get(path.substring(path.indexOf("!/") + 2));
+            if (entry == null)
+                throw new IOException("No such entry: " + url);
+
+            return new URLConnection(url) {
+                @Override
+                public void connect() {
+                    connected = true;
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return openInputStream(entry);
+                }
+            };
+        }
+    };
+
+    @Override
+    public String toString() {
+        return path + " (" + entries.size() + " entries)";
+    }
+
+    /**
+     * An input stream that inflates raw deflate data with an inflater of its own, which it ends when closed. InflaterInputStream only ends inflaters that it
+     * created itself, and otherwise leaves them to finalization.
+     */
+    private static final class EntryInflaterInputStream extends InflaterInputStream {
+        EntryInflaterInputStream(InputStream in) {
+            super(in, new Inflater(true));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+
+    /**
+     * An input stream over a byte buffer, which reads without copying the buffer first.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.min(n, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+    }
+}
@@ -22,16 +22,32 @@ package uk.co.mutability.test.processors;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import javax.tools.FileObject;
 import javax.tools.ForwardingJavaFileManager;
@@ -42,12 +58,25 @@ import javax.tools.SimpleJavaFileObject;
 import javax.tools.StandardLocation;
 
 /**
- * A JavaFileManager that implements on-heap storage for CLASS_OUTPUT and SOURCE_OUTPUT locations,
- * and delegates other access to another file manager.
+ * A JavaFileManager that implements on-heap storage for all output locations, such as CLASS_OUTPUT and SOURCE_OUTPUT, and delegates other access to
+ * another file manager.
  * <p>
  * This is useful for tests where the output of annotation processing is only interesting for the duration of the test.
+ * <p>
+ * Source and class files and resources can also be added to CLASS_PATH, SOURCE_PATH and ANNOTATION_PROCESSOR_PATH in memory. These are found before the
+ * delegate's files for the same location, unless the location is isolated with {@link #setIsolated}, in which case the delegate is not consulted at all.
+ * Read-only, memory-mapped archives can be added to the same locations with {@link #addArchive}, and the content of the file manager can be exported to
+ * an archive with {@link #exportArchive}.
+ * <p>
+ * Optionally, identical file content can be shared between file managers; see {@link #setSharedContent}. The content of each location can be kept,
+ * discarded as it is written, or kept only if it is read back; see {@link #setRetention}. {@link #getStatistics()} reports how much is held.
+ * <p>
+ * The in-memory files can also be read as a read-only file system; see {@link MemoryFileSystem#of}.
  */
 public class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+    /** The system property that, if "true", makes new file managers share content by default; see {@link #setSharedContent}. */
+    public static final String SHARED_CONTENT_PROPERTY = "mutabilty.test.sharedContent";
+
     /**
      * Build a URI for an internally-stored file from a canonical path.
      * 
@@ -57,35 +86,142 @@ public class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager
      */
     private static URI makeURI(String canonicalPath) {
         try {
-            return new URI("memfile", canonicalPath, "");
+            return new URI("memfile", null, "/" + canonicalPath, null);
         } catch (URISyntaxException e) {
             throw new IllegalArgumentException("Invalid canonical path: URI construction failed", e);
         }
     }
 
+    /**
+     * What to do with the content written to files in a location.
+     */
+    public enum Retention {
+        /** Keep the content of every file on heap until the file is deleted or replaced. This is the default. */
+        KEEP,
+        /**
+         * Discard all content as it is written, counting only its size. Reading such a file back fails with an IOException, so this is only suitable for
+         * locations that nothing reads back, such as CLASS_OUTPUT in a test that only checks diagnostics.
+         */
+        DISCARD,
+        /**
+         * Keep content until the compiler flushes the file manager (at the end of compilation, and on some compilers at the end of each round), then discard
+         * the content of any file that has not been read back by then.
+         */
+        KEEP_READ
+    }
+
+    /**
+     * A snapshot of how many files, and how many bytes, a file manager holds.
+     */
+    public static final class Statistics {
+        private final Map<Location,long[]> counters;
+        private final long peakStoredBytes;
+
+        Statistics(Map<Location,long[]> counters, long peakStoredBytes) {
+            this.counters = counters;
+            this.peakStoredBytes = peakStoredBytes;
+        }
+
+        /** @return the locations that have held files */
+        public Set<Location> getLocations() {
+            return Collections.unmodifiableSet(counters.keySet());
+        }
+
+        /** @return the number of files currently in a location, including those whose content was discarded */
+        public int getFileCount(Location location) {
+            long[] c = counters.get(location);
+            return c == null ? 0 : (int) c[FILES];
+        }
+
+        /** @return the number of bytes of content currently held on heap for a location */
+        public long getStoredBytes(Location location) {
+            long[] c = counters.get(location);
+            return c == null ? 0 : c[STORED];
+        }
+
+        /** @return the total number of bytes ever written to files in a location, whether or not the content was kept */
+        public long getWrittenBytes(Location location) {
+            long[] c = counters.get(location);
+            return c == null ? 0 : c[WRITTEN];
+        }
+
+        /** @return the number of files currently held, in all locations */
+        public int getFileCount() {
+            int total = 0;
+            for (long[] c : counters.values())
+                total += c[FILES];
+            return total;
+        }
+
+        /** @return the number of bytes of content currently held on heap, in all locations */
+        public long getStoredBytes() {
+            long total = 0;
+            for (long[] c : counters.values())
+                total += c[STORED];
+            return total;
+        }
+
+        /** @return the largest number of bytes of content held on heap at any one time, in all locations */
+        public long getPeakStoredBytes() {
+            return peakStoredBytes;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(getFileCount()).append(" files, ").append(getStoredBytes()).append(" bytes stored, ").append(peakStoredBytes).append(" bytes peak");
+            for (Map.Entry<Location,long[]> entry : counters.entrySet()) {
+                long[] c = entry.getValue();
+                sb.append("\n  ").append(entry.getKey().getName()).append(": ").append(c[FILES]).append(" files, ").append(c[STORED]).append(" bytes stored, ")
+                    .append(c[WRITTEN]).append(" bytes written");
+            }
+            return sb.toString();
+        }
+    }
+
+    /** Indexes into the per-location counter arrays */
+    private static final int FILES = 0, STORED = 1, WRITTEN = 2;
+
     /**
      * Internal implementation and storage of a single FileObject or JavaFileObject.
      */
     private class MemoryJavaFileObject extends SimpleJavaFileObject {
+        /** The location this file is stored in. */
+        private final Location location;
+
         /** The canonical path of this file; used by {@link #delete}. */
         private final String canonicalPath;
 
         /** The original type name, if this file is a JavaFileObject, or "" otherwise */
         private final String typeName;
 
-        /** A stream containing the current content of the file. */
-        private ByteArrayOutputStream content = new ByteArrayOutputStream();
+        /** The content of the file as of the last time an output stream was closed. */
+        private ContentStore.Content content = ContentStore.EMPTY;
+
+        /** The output stream currently being written, or null if there is none. Until it is closed, reads see what has been written so far. */
+        private OutputStream writing;
 
         /** Whether this file has been deleted. */
         private boolean deleted;
 
+        /** Whether this file has been replaced by a new file of the same name. It stays readable, but is no longer stored or counted. */
+        private boolean replaced;
+
+        /** Whether this file's content has been read back. */
+        private boolean read;
+
+        /** Whether this file's content was discarded by the retention policy. */
+        private boolean discarded;
+
         /**
+         * @param location the location this file will be stored in
          * @param canonicalPath the canonical path this file will be stored as
          * @param typeName the typename of the file, if it represents a class or source file; otherwise "".
          * @param kind the kind of file (source, class, or OTHER for resources)
          */
-        public MemoryJavaFileObject(String canonicalPath, String typeName, JavaFileObject.Kind kind) {
+        public MemoryJavaFileObject(Location location, String canonicalPath, String typeName, JavaFileObject.Kind kind) {
             super(makeURI(canonicalPath), kind);
+            this.location = location;
             this.canonicalPath = canonicalPath;
             this.typeName = typeName;
         }
@@ -97,74 +233,642 @@ public class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager
          */
         @Override
         public boolean delete() {
+            synchronized (this) {
+                if (deleted)
+                    return false;
+            }
+
+            synchronized (files) {
+                if (files.get(canonicalPath) == this)
+                    files.remove(canonicalPath); // Unless it has been replaced
+            }
+            removed();
+            return true;
+        }
+
+        /**
+         * Called when this file is deleted.
+         */
+        private synchronized void removed() {
             if (deleted)
-                return false;
+                return;
 
             deleted = true;
-            files.remove(canonicalPath);
-            content.reset();
-            return true;
+            if (!replaced)
+                fileRemoved(location, content.bytes.length);
+            content = ContentStore.EMPTY;
+            writing = null;
+        }
+
+        /**
+         * Called when this file is replaced in the internal map by a new file of the same name. Its content is left alone, so that anyone still holding this
+         * file object can read it, but it is no longer counted in the statistics.
+         */
+        private synchronized void replaced() {
+            if (deleted || replaced)
+                return;
+
+            replaced = true;
+            fileRemoved(location, content.bytes.length);
+        }
+
+        /**
+         * Update the statistics for a change to this file's content, unless it has been replaced.
+         */
+        private void changed(long oldStored, long newStored, long written) {
+            if (!replaced)
+                contentChanged(location, oldStored, newStored, written);
+        }
+
+        /** @return the current content of the file; the caller must not modify it */
+        private synchronized byte[] currentBytes() throws IOException {
+            if (deleted)
+                throw new IOException("This file is deleted");
+            if (discarded)
+                throw new IOException("The content of this file was discarded by the retention policy for " + location.getName());
+
+            read = true;
+            if (writing instanceof ContentOutputStream)
+                return ((ContentOutputStream) writing).toByteArray();
+            return content.bytes;
+        }
+
+        /** @return the current content of the file for export, without counting as a read; or null if there is none to export */
+        private synchronized byte[] exportBytes() {
+            if (deleted || discarded)
+                return null;
+            if (writing instanceof ContentOutputStream)
+                return ((ContentOutputStream) writing).toByteArray();
+            return content.bytes;
         }
 
         /**
          * Decodes a CharSequence from the current file content using the JVM's default encoding.
          * 
-         * @throws IOException if this file has been deleted.
+         * @throws IOException if this file has been deleted, or its content discarded.
          */
         @Override
         public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
-            if (deleted)
-                throw new IOException("This file is deleted");
-            return new String(content.toByteArray());
+            return new String(currentBytes());
         }
 
         /**
-         * Gets an input stream for the current content of this file. The input stream refers to a copy of the content at the point of the call.
+         * Gets an input stream for the current content of this file. The input stream refers to a snapshot of the content at the point of the call.
          * 
          * @return an input stream
-         * @throws IOException if this file has been deleted
+         * @throws IOException if this file has been deleted, or its content discarded
          */
         @Override
         public InputStream openInputStream() throws IOException {
-            if (deleted)
-                throw new IOException("This file is deleted");
-            return new ByteArrayInputStream(content.toByteArray());
+            return new ByteArrayInputStream(currentBytes());
         }
 
         /**
-         * Gets an output stream that modifies the content of the file. Any existing content is discarded.
+         * Gets an output stream that modifies the content of the file. Any existing content is discarded. Depending on the retention policy for the file's
+         * location, the content written may be kept or only counted.
          * 
          * @return an output stream
          * @throws IOException if this file has been deleted
          */
         @Override
-        public OutputStream openOutputStream() throws IOException {
+        public synchronized OutputStream openOutputStream() throws IOException {
             if (deleted)
                 throw new IOException("This file is deleted");
-            content.reset();
-            content = new ByteArrayOutputStream();
-            return content;
+
+            changed(content.bytes.length, 0, 0);
+            content = ContentStore.EMPTY;
+            read = false;
+            discarded = (getRetention(location) == Retention.DISCARD);
+            writing = (discarded ? new DiscardingOutputStream(this) : new ContentOutputStream(this));
+            return writing;
+        }
+
+        /**
+         * Set the content of a new file directly, as if it had been written and closed.
+         */
+        private synchronized void setContent(byte[] bytes) {
+            content = (sharedContent ? ContentStore.intern(bytes.clone()) : new ContentStore.Content(bytes.clone()));
+            changed(0, bytes.length, bytes.length);
+        }
+
+        /**
+         * Called when an output stream is closed, to make what was written the file's content.
+         */
+        private synchronized void closed(ContentOutputStream stream) {
+            if (stream != writing)
+                return; // Superseded by a later openOutputStream(), or deleted
+
+            byte[] bytes = stream.toByteArray();
+            content = (sharedContent ? ContentStore.intern(bytes) : new ContentStore.Content(bytes));
+            writing = null;
+            changed(0, bytes.length, bytes.length);
+        }
+
+        /**
+         * Called when a discarding output stream is closed, to count what was written.
+         */
+        private synchronized void closed(DiscardingOutputStream stream) {
+            if (stream != writing)
+                return; // Superseded by a later openOutputStream(), or deleted
+
+            writing = null;
+            changed(0, 0, stream.count);
+        }
+
+        /**
+         * Discard the content of this file if it has not been read back; used by the KEEP_READ retention policy.
+         */
+        private synchronized void releaseIfUnread() {
+            if (deleted || read || discarded || writing != null)
+                return;
+
+            changed(content.bytes.length, 0, 0);
+            content = ContentStore.EMPTY;
+            discarded = true;
+        }
+    }
+
+    /**
+     * The output stream for a {@link MemoryJavaFileObject}, which fixes the file's content when closed.
+     */
+    private static class ContentOutputStream extends ByteArrayOutputStream {
+        private final MemoryJavaFileObject file;
+        private boolean closed;
+
+        ContentOutputStream(MemoryJavaFileObject file) {
+            this.file = file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            file.closed(this);
+        }
+    }
+
+    /**
+     * The output stream for a {@link MemoryJavaFileObject} in a location whose content is discarded; it counts the bytes written and nothing else.
+     */
+    private static class DiscardingOutputStream extends OutputStream {
+        private final MemoryJavaFileObject file;
+        private long count;
+        private boolean closed;
+
+        DiscardingOutputStream(MemoryJavaFileObject file) {
+            this.file = file;
+        }
+
+        @Override
+        public void write(int b) {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            file.closed(this);
         }
     }
 
     /**
-     * On-heap storage of all files in CLASS_OUTPUT or SOURCE_OUTPUT locations. Each file is keyed by its canonical path (see {@link #canonicalise} and
+     * On-heap storage of all files in output locations and in-memory input locations. Each file is keyed by its canonical path (see {@link #canonicalise} and
      * {@link canonicalizePath}).
      */
     private final Map<String,MemoryJavaFileObject> files = Collections.synchronizedMap(new HashMap<String,MemoryJavaFileObject>());
 
+    /** If true, the content of closed files is interned in the JVM-wide {@link ContentStore}. */
+    private volatile boolean sharedContent = Boolean.getBoolean(SHARED_CONTENT_PROPERTY);
+
+    /** The retention policy for each location that does not use the default of KEEP */
+    private final Map<Location,Retention> retention = Collections.synchronizedMap(new HashMap<Location,Retention>());
+
+    /** Counters of files, stored bytes and written bytes per location; see {@link #FILES}, {@link #STORED} and {@link #WRITTEN}. Guarded by itself. */
+    private final Map<Location,long[]> counters = new LinkedHashMap<Location,long[]>();
+    /** Total bytes currently stored, and the peak of that total; guarded by {@link #counters} */
+    private long storedBytes, peakStoredBytes;
+
+    /** Read-only archives added to each input location, in the order they are searched */
+    private final Map<Location,List<MappedJarArchive>> archives = new HashMap<Location,List<MappedJarArchive>>();
+
+    /** Input locations for which the delegate is not consulted */
+    private final Set<Location> isolated = Collections.synchronizedSet(new HashSet<Location>());
+
+    /** Shared, immutable class path content, searched after our own archives */
+    private volatile SupportClassSet supportClasses = SupportClassSet.getRegistered();
+
     /**
-     * Construct a new file manager that stores CLASS_OUTPUT and SOURCE_OUTPUT on-heap, and delegates all other non-output locations to another file manager.
+     * Construct a new file manager that stores all output locations on-heap, and delegates input locations to another file manager.
      * 
      * @param delegate the file manager to delegate input locations to
      */
     public MemoryFileManager(JavaFileManager delegate) {
         super(delegate);
+        VerifierStatistics.fileManagerCreated(this, counters);
+    }
+
+    /**
+     * Choose whether to share identical file content with other file managers. When enabled, the content of each output file is interned by value into a
+     * JVM-wide, weakly-referenced store when its output stream is closed, so that files with identical content (in this or any other file manager) share a
+     * single immutable buffer. This saves heap when many verifications generate the same output and their file managers are retained or run in parallel,
+     * at the cost of hashing each file once.
+     * <p>
+     * The default is taken from the {@link #SHARED_CONTENT_PROPERTY} system property. Changing this only affects files closed afterwards.
+     * 
+     * @param sharedContent true to intern file content
+     */
+    public void setSharedContent(boolean sharedContent) {
+        this.sharedContent = sharedContent;
+    }
+
+    /**
+     * Set what to do with content written to a location. The default for all locations is {@link Retention#KEEP}. Changing this only affects files opened
+     * for output afterwards.
+     * 
+     * @param location the location; must be one that this file manager stores
+     * @param policy the retention policy
+     */
+    public void setRetention(Location location, Retention policy) {
+        if (!handles(location))
+            throw new IllegalArgumentException("Location not handled here: " + location.getName());
+        retention.put(location, policy);
+    }
+
+    /**
+     * @param location a location
+     * @return the retention policy for that location
+     */
+    public Retention getRetention(Location location) {
+        Retention policy = retention.get(location);
+        return policy == null ? Retention.KEEP : policy;
+    }
+
+    /**
+     * @return a snapshot of the number of files and bytes this file manager holds
+     */
+    public Statistics getStatistics() {
+        synchronized (counters) {
+            Map<Location,long[]> copy = new LinkedHashMap<Location,long[]>();
+            for (Map.Entry<Location,long[]> entry : counters.entrySet())
+                copy.put(entry.getKey(), entry.getValue().clone());
+            return new Statistics(copy, peakStoredBytes);
+        }
+    }
+
+    /** @return the counters for a location; the caller must hold the lock on {@link #counters} */
+    private long[] countersFor(Location location) {
+        long[] c = counters.get(location);
+        if (c == null) {
+            c = new long[3];
+            counters.put(location, c);
+        }
+        return c;
+    }
+
+    private void fileAdded(Location location) {
+        synchronized (counters) {
+            ++countersFor(location)[FILES];
+        }
+        VerifierStatistics.storageChanged(1, 0);
+    }
+
+    private void fileRemoved(Location location, long stored) {
+        synchronized (counters) {
+            long[] c = countersFor(location);
+            --c[FILES];
+            c[STORED] -= stored;
+            storedBytes -= stored;
+        }
+        VerifierStatistics.storageChanged(-1, -stored);
+    }
+
+    private void contentChanged(Location location, long oldStored, long newStored, long written) {
+        synchronized (counters) {
+            long[] c = countersFor(location);
+            c[STORED] += newStored - oldStored;
+            c[WRITTEN] += written;
+            storedBytes += newStored - oldStored;
+            if (storedBytes > peakStoredBytes)
+                peakStoredBytes = storedBytes;
+        }
+        VerifierStatistics.storageChanged(0, newStored - oldStored);
+    }
+
+    /**
+     * @param counters the counters of a file manager, which may have been garbage collected
+     * @return the number of files and bytes those counters say are held
+     */
+    static long[] totals(Map<Location,long[]> counters) {
+        long[] totals = new long[2];
+        synchronized (counters) {
+            for (long[] c : counters.values()) {
+                totals[0] += c[FILES];
+                totals[1] += c[STORED];
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Store a new file, replacing any existing file with the same path. File objects for the replaced file stay readable.
+     */
+    private void store(MemoryJavaFileObject newFile) {
+        fileAdded(newFile.location);
+        MemoryJavaFileObject oldFile = files.put(newFile.canonicalPath, newFile);
+        if (oldFile != null)
+            oldFile.replaced();
+    }
+
+    /**
+     * @param file a file object
+     * @return the canonical path of the file, if it is one of this file manager's in-memory files, or null
+     */
+    String canonicalPath(FileObject file) {
+        if (!(file instanceof MemoryJavaFileObject) || files.get(((MemoryJavaFileObject) file).canonicalPath) != file)
+            return null;
+        return ((MemoryJavaFileObject) file).canonicalPath;
+    }
+
+    /**
+     * Read the content of an in-memory file for {@link MemoryFileSystem}. The content is not copied, so the caller must not modify it.
+     * 
+     * @param canonicalPath the canonical path of the file
+     * @return the content
+     * @throws FileNotFoundException if there is no such file
+     * @throws IOException if its content was discarded
+     */
+    byte[] readContent(String canonicalPath) throws IOException {
+        MemoryJavaFileObject file = files.get(canonicalPath);
+        if (file == null)
+            throw new FileNotFoundException("/" + canonicalPath);
+        return file.currentBytes();
+    }
+
+    /**
+     * @param canonicalPath the canonical path of a file
+     * @return the size of the file's content, without counting as a read; 0 if its content was discarded, or -1 if there is no such file
+     */
+    long contentSize(String canonicalPath) {
+        MemoryJavaFileObject file = files.get(canonicalPath);
+        if (file == null)
+            return -1;
+        byte[] bytes = file.exportBytes();
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    /**
+     * @param prefix a prefix of canonical paths, such as "classes/com/example/"
+     * @return the canonical paths of all in-memory files that start with the prefix, in no particular order
+     */
+    List<String> canonicalPaths(String prefix) {
+        List<String> found = new ArrayList<String>();
+        synchronized (files) {
+            for (String canonicalPath : files.keySet()) {
+                if (canonicalPath.startsWith(prefix))
+                    found.add(canonicalPath);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Flushes the delegate file manager, then applies the {@link Retention#KEEP_READ} retention policy by discarding the content of any file in such a
+     * location that has not been read back.
+     */
+    @Override
+    public void flush() throws IOException {
+        super.flush();
+
+        List<MemoryJavaFileObject> candidates;
+        synchronized (files) {
+            candidates = new ArrayList<MemoryJavaFileObject>(files.values());
+        }
+
+        for (MemoryJavaFileObject file : candidates) {
+            if (getRetention(file.location) == Retention.KEEP_READ)
+                file.releaseIfUnread();
+        }
+    }
+
+    /**
+     * Make an input location exclusively in-memory: the delegate file manager is no longer consulted for it, so only files added with
+     * {@link #addJavaFile} or {@link #addFile} are found there. By default, in-memory input files are found first, then those of the delegate.
+     * 
+     * @param location CLASS_PATH, SOURCE_PATH or ANNOTATION_PROCESSOR_PATH
+     * @param isolated true to stop consulting the delegate for this location
+     */
+    public void setIsolated(Location location, boolean isolated) {
+        if (!isInput(location))
+            throw new IllegalArgumentException("Not an in-memory input location: " + location.getName());
+
+        if (isolated)
+            this.isolated.add(location);
+        else
+            this.isolated.remove(location);
+    }
+
+    /**
+     * Add a source or class file to a location, replacing any existing file for the same type.
+     * 
+     * @param location the location; an output location, or CLASS_PATH, SOURCE_PATH or ANNOTATION_PROCESSOR_PATH
+     * @param className the fully qualified class name of the type
+     * @param kind the kind of file; SOURCE or CLASS
+     * @param content the content of the file
+     * @return the new file
+     */
+    public JavaFileObject addJavaFile(Location location, String className, Kind kind, byte[] content) {
+        if (!handles(location))
+            throw new IllegalArgumentException("Location not handled here: " + location.getName());
+
+        MemoryJavaFileObject newFile = new MemoryJavaFileObject(location, canonicalizeClass(location, className, kind), className, kind);
+        newFile.setContent(content);
+        store(newFile);
+        return newFile;
+    }
+
+    /**
+     * Add a Java source file to SOURCE_PATH, encoded with the JVM's default encoding.
+     * 
+     * @param className the fully qualified class name of the type
+     * @param source the source code
+     * @return the new file
+     */
+    public JavaFileObject addSourceFile(String className, CharSequence source) {
+        return addJavaFile(StandardLocation.SOURCE_PATH, className, Kind.SOURCE, source.toString().getBytes());
+    }
+
+    /**
+     * Add a resource to a location, replacing any existing file with the same name.
+     * 
+     * @param location the location; an output location, or CLASS_PATH, SOURCE_PATH or ANNOTATION_PROCESSOR_PATH
+     * @param packageName the package name for the resource, or "" for the default package
+     * @param relativeName the resource name, relative to the package
+     * @param content the content of the file
+     * @return the new file
+     */
+    public FileObject addFile(Location location, String packageName, String relativeName, byte[] content) {
+        if (!handles(location))
+            throw new IllegalArgumentException("Location not handled here: " + location.getName());
+
+        MemoryJavaFileObject newFile = new MemoryJavaFileObject(location, canonicalize(location, packageName, relativeName), "", JavaFileObject.Kind.OTHER);
+        newFile.setContent(content);
+        store(newFile);
+        return newFile;
+    }
+
+    /**
+     * Add a read-only, memory-mapped archive to an input location. Its entries are found after in-memory files and before the delegate's files, and
+     * archives are searched in the order they were added.
+     * 
+     * @param location CLASS_PATH, SOURCE_PATH or ANNOTATION_PROCESSOR_PATH
+     * @param archive the archive
+     */
+    public void addArchive(Location location, MappedJarArchive archive) {
+        if (!isInput(location))
+            throw new IllegalArgumentException("Not an in-memory input location: " + location.getName());
+
+        synchronized (archives) {
+            List<MappedJarArchive> list = archives.get(location);
+            if (list == null) {
+                list = new ArrayList<MappedJarArchive>();
+                archives.put(location, list);
+            }
+            list.add(archive);
+        }
+    }
+
+    /**
+     * Choose the shared support classes to add to CLASS_PATH. The default is the set registered with {@link SupportClassSet#register} when this file
+     * manager was created.
+     * 
+     * @param supportClasses the support classes, or null for none
+     */
+    public void setSupportClasses(SupportClassSet supportClasses) {
+        this.supportClasses = supportClasses;
+    }
+
+    /** @return the shared support classes on CLASS_PATH, or null if there are none */
+    public SupportClassSet getSupportClasses() {
+        return supportClasses;
+    }
+
+    /** @return a snapshot of the archives added to a location, followed by the support classes for CLASS_PATH */
+    private List<MappedJarArchive> archivesFor(Location location) {
+        SupportClassSet support = (location == StandardLocation.CLASS_PATH ? supportClasses : null);
+        synchronized (archives) {
+            List<MappedJarArchive> list = archives.get(location);
+            if (list == null && support == null)
+                return Collections.<MappedJarArchive> emptyList();
+
+            List<MappedJarArchive> snapshot = (list == null ? new ArrayList<MappedJarArchive>(1) : new ArrayList<MappedJarArchive>(list));
+            if (support != null)
+                snapshot.add(support.getArchive());
+            return snapshot;
+        }
+    }
+
+    /** @return a file object for an archive entry in a location, or null if no archive in the location has the entry */
+    private ArchiveFileObject findInArchives(Location location, String path) {
+        for (MappedJarArchive archive : archivesFor(location)) {
+            MappedJarArchive.Entry entry = archive.getEntry(path);
+            if (entry != null)
+                return new ArchiveFileObject(archive, entry);
+        }
+        return null;
+    }
+
+    /**
+     * Write the content of every file to a ZIP archive, streaming each file in turn to a channel. Entries are named by their canonical paths, so each
+     * location appears as a top-level directory ("classes/", "src/" and so on). This is useful for inspecting the output of a failed test. Files whose
+     * content was discarded by a retention policy are skipped.
+     * 
+     * @param channel the channel to write to; it is not closed
+     * @param compress true to deflate entries, false to store them uncompressed so that they can be mapped without copying by {@link MappedJarArchive}
+     * @throws IOException if writing fails
+     */
+    public void exportArchive(WritableByteChannel channel, boolean compress) throws IOException {
+        exportArchive(channel, "", compress);
+    }
+
+    /**
+     * Write the content of the files in one location to a JAR or ZIP archive, streaming each file in turn to a channel. Entries are named relative to the
+     * location, so exporting CLASS_OUTPUT produces a JAR that can be used as a class path, for example with {@link #addArchive}.
+     * 
+     * @param channel the channel to write to; it is not closed
+     * @param location the location to export
+     * @param compress true to deflate entries, false to store them uncompressed so that they can be mapped without copying by {@link MappedJarArchive}
+     * @throws IOException if writing fails
+     */
+    public void exportArchive(WritableByteChannel channel, Location location, boolean compress) throws IOException {
+        if (!handles(location))
+            throw new IllegalArgumentException("Location not handled here: " + location.getName());
+
+        exportArchive(channel, basePath(location), compress);
+    }
+
+    private void exportArchive(WritableByteChannel channel, String prefix, boolean compress) throws IOException {
+        TreeMap<String,MemoryJavaFileObject> sorted = new TreeMap<String,MemoryJavaFileObject>();
+        synchronized (files) {
+            for (MemoryJavaFileObject file : files.values()) {
+                if (file.canonicalPath.startsWith(prefix))
+                    sorted.put(file.canonicalPath.substring(prefix.length()), file);
+            }
+        }
+
+        ZipOutputStream out = new ZipOutputStream(Channels.newOutputStream(channel));
+        for (Map.Entry<String,MemoryJavaFileObject> file : sorted.entrySet()) {
+            byte[] bytes = file.getValue().exportBytes();
+            if (bytes == null)
+                continue;
+
+            ZipEntry entry = new ZipEntry(file.getKey());
+            if (!compress) {
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(bytes.length);
+                entry.setCompressedSize(bytes.length);
+                entry.setCrc(crc.getValue());
+            }
+            out.putNextEntry(entry);
+            out.write(bytes);
+            out.closeEntry();
+        }
+        out.finish(); // Not close(), which would close the caller's channel
+        out.flush();
     }
 
     /** @return true if we should handle this location ourselves */
     private boolean handles(Location location) {
-        return (location == StandardLocation.CLASS_OUTPUT || location == StandardLocation.SOURCE_OUTPUT);
+        return location.isOutputLocation() || isInput(location);
+    }
+
+    /** @return true if this is an input location that may have in-memory content */
+    private static boolean isInput(Location location) {
+        return (location == StandardLocation.CLASS_PATH || location == StandardLocation.SOURCE_PATH || location == StandardLocation.ANNOTATION_PROCESSOR_PATH);
+    }
+
+    /** @return true if this is an input location where the delegate should be consulted */
+    private boolean delegates(Location location) {
+        return isInput(location) && !isolated.contains(location);
+    }
+
+    /** @return true if any in-memory file or archive is stored in a location */
+    private boolean hasContent(Location location) {
+        synchronized (counters) {
+            long[] c = counters.get(location);
+            if (c != null && c[FILES] > 0)
+                return true;
+        }
+        return !archivesFor(location).isEmpty();
     }
 
     /** @return the path prefix to use for a given location */
@@ -173,6 +877,14 @@ public class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager
             return "classes/";
         else if (location == StandardLocation.SOURCE_OUTPUT)
             return "src/";
+        else if (location == StandardLocation.CLASS_PATH)
+            return "classpath/";
+        else if (location == StandardLocation.SOURCE_PATH)
+            return "sourcepath/";
+        else if (location == StandardLocation.ANNOTATION_PROCESSOR_PATH)
+            return "processorpath/";
+        else if (location.isOutputLocation())
+            return location.getName().toLowerCase(Locale.ENGLISH).replace('_', '-') + "/";
         else
             throw new IllegalArgumentException("Location not handled here: " + location.getName());
     }
@@ -180,12 +892,12 @@ public class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager
     /**
      * Compute the canonical path for a resource. The canonical path for a resource is:
      * <ul>
-     * <li>"classes/" or "src/" depending on its location; plus
+     * <li>a prefix such as "classes/" or "src/" depending on its location; plus
      * <li>the package of the resource, with '/' as a separator for subpackages; plus
      * <li>the path of the resource relative to its package.
      * </ul>
      * 
-     * @param location the location of the resource; must be CLASS_OUTPUT or SOURCE_OUTPUT
+     * @param location the location of the resource; must be one that is handled in memory
      * @param packageName the package name for the resource, or "" for the default package
      * @param relativeName the resource name, relative to the package
      * @return the canonical path for the resource
@@ -200,12 +912,12 @@ public class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager
     /**
      * Compute the canonical path for a source or class file representing a particular type. The canonical path for a type-related file is:
      * <ul>
-     * <li>"classes/" or "src/" depending on its location; plus
+     * <li>a prefix such as "classes/" or "src/" depending on its location; plus
      * <li>the fully qualified class name of the type, with '.' replaced with '/'; plus
      * <li>".class" or ".java" depending on whether it is a class or source file.
      * </ul>
      * 
-     * @param location the location of the type; must be CLASS_OUTPUT or SOURCE_OUTPUT
+     * @param location the location of the type; must be one that is handled in memory
      * @param className the fully qualified class name of the type
      * @param kind the kind of file that is being canonicalized
      * @return the canonical path for the file
@@ -214,12 +926,26 @@ public class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager
         return basePath(location) + className.replace('.', '/') + kind.extension;
     }
 
+    /**
+     * Returns a class loader for in-memory class and resource files in CLASS_PATH or ANNOTATION_PROCESSOR_PATH, whose parent is the delegate's class
+     * loader for the location (or the platform's loader, if the location is isolated). If the location has no in-memory files, this is just the
+     * delegate's class loader. Output locations have no class loader.
+     */
     @Override
     public ClassLoader getClassLoader(Location location) {
         if (!handles(location))
             return super.getClassLoader(location);
+        if (!isInput(location))
+            return null;
 
-        return null;
+        if (delegates(location)) {
+            ClassLoader parent = super.getClassLoader(location);
+            if (!hasContent(location))
+                return parent;
+            return new MemoryClassLoader(location, parent != null ? parent : MemoryFileManager.class.getClassLoader());
+        }
+
+        return new MemoryClassLoader(location, ClassLoader.getSystemClassLoader().getParent());
     }
 
     @Override
@@ -227,17 +953,21 @@ public class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager
         if (!handles(location))
             return super.getFileForInput(location, packageName, relativeName);
 
-        return files.get(canonicalize(location, packageName, relativeName));
+        FileObject file = files.get(canonicalize(location, packageName, relativeName));
+        if (file == null && isInput(location))
+            file = findInArchives(location, packageName.length() == 0 ? relativeName : packageName.replace('.', '/') + "/" + relativeName);
+        if (file == null && delegates(location))
+            return super.getFileForInput(location, packageName, relativeName);
+        return file;
     }
 
     @Override
     public FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling) throws IOException {
-        if (!handles(location))
+        if (!location.isOutputLocation())
             throw new IOException("Location not supported for output: " + location.getName());
 
-        String canonical = canonicalize(location, packageName, relativeName);
-        MemoryJavaFileObject newFile = new MemoryJavaFileObject(canonical, "", JavaFileObject.Kind.OTHER);
-        files.put(canonical, newFile);
+        MemoryJavaFileObject newFile = new MemoryJavaFileObject(location, canonicalize(location, packageName, relativeName), "", JavaFileObject.Kind.OTHER);
+        store(newFile);
         return newFile;
     }
 
@@ -246,41 +976,61 @@ public class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager
         if (!handles(location))
             return super.getJavaFileForInput(location, className, kind);
 
-        return files.get(canonicalizeClass(location, className, kind));
+        JavaFileObject file = files.get(canonicalizeClass(location, className, kind));
+        if (file == null && isInput(location))
+            file = findInArchives(location, className.replace('.', '/') + kind.extension);
+        if (file == null && delegates(location))
+            return super.getJavaFileForInput(location, className, kind);
+        return file;
     }
 
     @Override
     public JavaFileObject getJavaFileForOutput(Location location, String className, Kind kind, FileObject sibling) throws IOException {
-        if (!handles(location))
+        if (!location.isOutputLocation())
             throw new IOException("Location not supported for output: " + location.getName());
 
-        String canonical = canonicalizeClass(location, className, kind);
-        MemoryJavaFileObject newFile = new MemoryJavaFileObject(canonical, className, kind);
-        files.put(canonical, newFile);
+        MemoryJavaFileObject newFile = new MemoryJavaFileObject(location, canonicalizeClass(location, className, kind), className, kind);
+        store(newFile);
         return newFile;
     }
 
+    /**
+     * Output locations are always available. The supported input locations are available if they have in-memory files, or are isolated, or the delegate
+     * has them.
+     */
     @Override
     public boolean hasLocation(Location location) {
-        return handles(location) || super.hasLocation(location);
+        if (location.isOutputLocation())
+            return true;
+        if (isInput(location) && (hasContent(location) || !delegates(location)))
+            return true;
+        return super.hasLocation(location);
     }
 
     @Override
     public String inferBinaryName(Location location, JavaFileObject file) {
-        if (!handles(location))
-            return super.inferBinaryName(location, file);
+        if (file instanceof MemoryJavaFileObject)
+            return ((MemoryJavaFileObject) file).typeName;
+        if (file instanceof ArchiveFileObject)
+            return ((ArchiveFileObject) file).binaryName();
 
-        return ((MemoryJavaFileObject) file).typeName;
+        return super.inferBinaryName(location, file);
     }
 
     @Override
     public boolean isSameFile(FileObject a, FileObject b) {
         if (a instanceof MemoryJavaFileObject && b instanceof MemoryJavaFileObject)
             return (a == b);
+        if (a instanceof ArchiveFileObject && b instanceof ArchiveFileObject)
+            return ((ArchiveFileObject) a).isSameEntry((ArchiveFileObject) b);
 
         return super.isSameFile(a, b);
     }
 
+    /**
+     * Lists in-memory files in a location, followed by entries of any archives added to it, followed by the delegate's files for input locations that are
+     * not isolated.
+     */
     @Override
     public Iterable<JavaFileObject> list(Location location, String packageName, Set<Kind> kinds, boolean recurse) throws IOException {
         if (!handles(location))
@@ -289,9 +1039,9 @@ public class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager
         // We scan for all files matching a prefix that matches the package name, including a trailing '/'
         String prefix;
         if (packageName.length() == 0)
-            prefix = basePath(location) + packageName.replace('.', '/') + '/';
-        else
             prefix = basePath(location);
+        else
+            prefix = basePath(location) + packageName.replace('.', '/') + '/';
 
         ArrayList<JavaFileObject> found = new ArrayList<JavaFileObject>();
         synchronized (files) { // Grab the lock while we scan to avoid concurrent access causing problems
@@ -312,6 +1062,137 @@ public class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager
             }
         }
 
+        for (MappedJarArchive archive : archivesFor(location)) {
+            for (MappedJarArchive.Entry entry : archive.list(packageName.replace('.', '/'), recurse)) {
+                if (kinds.contains(kindOf(entry.getName())))
+                    found.add(new ArchiveFileObject(archive, entry));
+            }
+        }
+
+        if (delegates(location)) {
+            for (JavaFileObject file : super.list(location, packageName, kinds, recurse))
+                found.add(file);
+        }
+
         return found;
     }
+
+    /** @return the kind of file an archive entry holds, judged by its extension */
+    private static Kind kindOf(String name) {
+        for (Kind kind : Kind.values()) {
+            if (kind != Kind.OTHER && name.endsWith(kind.extension))
+                return kind;
+        }
+        return Kind.OTHER;
+    }
+
+    /**
+     * A read-only file object for an entry in a {@link MappedJarArchive}.
+     */
+    private static class ArchiveFileObject extends SimpleJavaFileObject {
+        private final MappedJarArchive archive;
+        private final MappedJarArchive.Entry entry;
+
+        ArchiveFileObject(MappedJarArchive archive, MappedJarArchive.Entry entry) {
+            super(archive.toURI(entry), kindOf(entry.getName()));
+            this.archive = archive;
+            this.entry = entry;
+        }
+
+        /** @return the binary name of the type this entry holds, if it is a source or class file */
+        String binaryName() {
+            String name = entry.getName();
+            if (getKind() != Kind.OTHER)
+                name = name.substring(0, name.length() - getKind().extension.length());
+            return name.replace('/', '.');
+        }
+
+        boolean isSameEntry(ArchiveFileObject other) {
+            return archive == other.archive && entry == other.entry;
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            return archive.openInputStream(entry);
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            return new String(archive.read(entry));
+        }
+    }
+
+    /**
+     * A class loader for the in-memory class and resource files of one location.
+     */
+    private class MemoryClassLoader extends ClassLoader {
+        private final Location location;
+
+        MemoryClassLoader(Location location, ClassLoader parent) {
+            super(parent);
+            this.location = location;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            MemoryJavaFileObject file = files.get(canonicalizeClass(location, name, Kind.CLASS));
+            ArchiveFileObject archived = (file == null ? findInArchives(location, name.replace('.', '/') + Kind.CLASS.extension) : null);
+            if (file == null && archived == null)
+                throw new ClassNotFoundException(name);
+
+            try {
+                byte[] bytes = (file != null ? file.currentBytes() : archived.archive.read(archived.entry));
+                return defineClass(name, bytes, 0, bytes.length);
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+
+        @Override
+        protected URL findResource(String name) {
+            String canonicalPath = basePath(location) + name;
+            if (!files.containsKey(canonicalPath)) {
+                ArchiveFileObject archived = findInArchives(location, name);
+                return archived == null ? null : archived.archive.toURL(archived.entry);
+            }
+
+            try {
+                return new URL("memfile", null, -1, "/" + canonicalPath, urlHandler);
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+
+        @Override
+        protected Enumeration<URL> findResources(String name) {
+            URL url = findResource(name);
+            if (url == null)
+                return Collections.enumeration(Collections.<URL> emptyList());
+            return Collections.enumeration(Collections.singletonList(url));
+        }
+    }
+
+    /**
+     * Opens memfile: URLs handed out by {@link MemoryClassLoader}, so that ServiceLoader and getResourceAsStream can read in-memory resources.
+     */
+    private final URLStreamHandler urlHandler = new URLStreamHandler() {
+        @Override
+        protected URLConnection openConnection(URL url) throws IOException {
+            final MemoryJavaFileObject file = files.get(url.getPath().substring(1));
+            if (file == null)
+                throw new FileNotFoundException(url.toString());
+
+            return new URLConnection(url) {
+                @Override
+                public void connect() {
+                    connected = true;
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return file.openInputStream();
+                }
+            };
+        }
+    };
 }
@@ -0,0 +1,349 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
+
+import javax.tools.FileObject;
+
+/**
+ * A read-only file system over the in-memory files of a {@link MemoryFileManager}, for code that works with {@link Path}s; see {@link #of}. It is kept
+ * apart from the file manager, so that the file manager itself does not depend on java.nio.file.
+ * <p>
+ * The file manager stores files by canonical path, such as "classes/com/example/Foo.class", and the file system adds a root, so that file's path is
+ * "/classes/com/example/Foo.class". There are no stored directories: a directory exists while any file is stored beneath it. The root always exists.
+ */
+public final class MemoryFileSystem extends FileSystem {
+    /** The file system of each file manager, held weakly so that neither keeps the other reachable; guarded by itself */
+    private static final Map<MemoryFileManager,WeakReference<MemoryFileSystem>> FILE_SYSTEMS = new WeakHashMap<MemoryFileManager,WeakReference<MemoryFileSystem>>();
+
+    private final MemoryFileManager fileManager;
+    private final MemoryFileSystemProvider provider = new MemoryFileSystemProvider(this);
+    private final MemoryPath root = new MemoryPath(this, true);
+    private volatile boolean open = true;
+
+    /** The single store holding all files */
+    private final FileStore store = new FileStore() {
+        @Override
+        public String name() {
+            return "memory";
+        }
+
+        @Override
+        public String type() {
+            return MemoryFileSystemProvider.SCHEME;
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        /** @return the bytes currently stored by the file manager */
+        @Override
+        public long getTotalSpace() {
+            return fileManager.getStatistics().getStoredBytes();
+        }
+
+        @Override
+        public long getUsableSpace() {
+            return 0;
+        }
+
+        @Override
+        public long getUnallocatedSpace() {
+            return 0;
+        }
+
+        @Override
+        public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
+            return type == BasicFileAttributeView.class;
+        }
+
+        @Override
+        public boolean supportsFileAttributeView(String name) {
+            return name.equals("basic");
+        }
+
+        @Override
+        public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+            return null;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws IOException {
+            throw new UnsupportedOperationException("No file store attributes are supported");
+        }
+    };
+
+    private MemoryFileSystem(MemoryFileManager fileManager) {
+        this.fileManager = fileManager;
+    }
+
+    /**
+     * Returns a read-only view of the in-memory files of a file manager as a file system. Each location is a top-level directory, such as "/classes" or
+     * "/src", as in {@link MemoryFileManager#exportArchive}, and directories are implied by the files in them. The paths of files match the memfile: URIs
+     * of their file objects. The view is live: it sees files as they are written, replaced and deleted. Files are read through
+     * {@link java.nio.channels.SeekableByteChannel}s over their stored content, without copying it, and reading a file counts as reading it back for
+     * {@link MemoryFileManager.Retention#KEEP_READ}. Files in archives and in the delegate are not included.
+     * 
+     * @param fileManager the file manager
+     * @return the file system; the same one is returned while it is open and still referenced
+     */
+    public static MemoryFileSystem of(MemoryFileManager fileManager) {
+        synchronized (FILE_SYSTEMS) {
+            WeakReference<MemoryFileSystem> reference = FILE_SYSTEMS.get(fileManager);
+            MemoryFileSystem fileSystem = (reference == null ? null : reference.get());
+            if (fileSystem == null || !fileSystem.isOpen()) {
+                fileSystem = new MemoryFileSystem(fileManager);
+                FILE_SYSTEMS.put(fileManager, new WeakReference<MemoryFileSystem>(fileSystem));
+            }
+            return fileSystem;
+        }
+    }
+
+    /**
+     * @param file a file object created by this file system's file manager
+     * @return the path of the file
+     * @throws IllegalArgumentException if the file is not one of the file manager's in-memory files
+     */
+    public Path getPath(FileObject file) {
+        if (fileManager.canonicalPath(file) == null)
+            throw new IllegalArgumentException("Not an in-memory file of this file manager: " + file.toUri());
+        return provider.getPath(file.toUri());
+    }
+
+    MemoryFileManager getFileManager() {
+        return fileManager;
+    }
+
+    /**
+     * @throws ClosedFileSystemException if this file system has been closed
+     */
+    void checkOpen() {
+        if (!open)
+            throw new ClosedFileSystemException();
+    }
+
+    /**
+     * @param path a path in this file system
+     * @return true if the path is a directory: the root, or a path with files beneath it
+     */
+    boolean isDirectory(MemoryPath path) {
+        String canonicalPath = path.canonicalPath();
+        return canonicalPath.length() == 0 || !fileManager.canonicalPaths(canonicalPath + "/").isEmpty();
+    }
+
+    /**
+     * @param directory a directory in this file system
+     * @return the names of the files and directories directly inside it, in order
+     * @throws NoSuchFileException if there is no such directory
+     */
+    Set<String> list(MemoryPath directory) throws NoSuchFileException {
+        String prefix = directory.canonicalPath();
+        if (prefix.length() > 0)
+            prefix += "/";
+
+        Set<String> names = new TreeSet<String>();
+        for (String canonicalPath : fileManager.canonicalPaths(prefix)) {
+            int end = canonicalPath.indexOf('/', prefix.length());
+            names.add(canonicalPath.substring(prefix.length(), end == -1 ? canonicalPath.length() : end));
+        }
+        if (names.isEmpty() && prefix.length() > 0)
+            throw new NoSuchFileException(directory.toString());
+        return names;
+    }
+
+    @Override
+    public MemoryFileSystemProvider provider() {
+        return provider;
+    }
+
+    /**
+     * Closes this view. The file manager and its files are not affected, and {@link #of} will return a new view.
+     */
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return Collections.<Path> singleton(root);
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return Collections.singleton(store);
+    }
+
+    FileStore getFileStore() {
+        return store;
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Collections.singleton("basic");
+    }
+
+    @Override
+    public Path getPath(String first, String... more) {
+        StringBuilder path = new StringBuilder(first);
+        for (String name : more)
+            path.append('/').append(name);
+        return MemoryPath.parse(this, path.toString());
+    }
+
+    /**
+     * Supports the "glob" and "regex" syntaxes. Globs support "*", "**", "?", "[...]" and "{...,...}", as described by {@link FileSystem#getPathMatcher}.
+     */
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        int colon = syntaxAndPattern.indexOf(':');
+        if (colon <= 0)
+            throw new IllegalArgumentException("Expected syntax:pattern, but was " + syntaxAndPattern);
+        String syntax = syntaxAndPattern.substring(0, colon);
+        String pattern = syntaxAndPattern.substring(colon + 1);
+
+        final Pattern regex;
+        if (syntax.equalsIgnoreCase("regex"))
+            regex = Pattern.compile(pattern);
+        else if (syntax.equalsIgnoreCase("glob"))
+            regex = Pattern.compile(globToRegex(pattern));
+        else
+            throw new UnsupportedOperationException("Unsupported path matcher syntax: " + syntax);
+
+        return new PathMatcher() {
+            @Override
+            public boolean matches(Path path) {
+                return regex.matcher(path.toString()).matches();
+            }
+        };
+    }
+
+    /**
+     * Translate a glob into a regular expression, where "*" and "?" do not cross directory boundaries, and "**" does.
+     */
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+        for (int i = 0; i < glob.length(); ++i) {
+            char c = glob.charAt(i);
+            switch (c) {
+            case '*':
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    ++i;
+                } else {
+                    regex.append("[^/]*");
+                }
+                break;
+            case '?':
+                regex.append("[^/]");
+                break;
+            case '{':
+                if (inGroup)
+                    throw new IllegalArgumentException("Nested groups are not supported: " + glob);
+                regex.append("(?:");
+                inGroup = true;
+                break;
+            case '}':
+                regex.append(inGroup ? ")" : "\\}");
+                inGroup = false;
+                break;
+            case ',':
+                regex.append(inGroup ? "|" : ",");
+                break;
+            case '[':
+                int end = glob.indexOf(']', i + 2);
+                if (end == -1)
+                    throw new IllegalArgumentException("Unclosed bracket expression: " + glob);
+                String set = glob.substring(i + 1, end);
+                if (set.startsWith("!"))
+                    set = "^" + set.substring(1);
+                regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                i = end;
+                break;
+            case '\\':
+                if (++i == glob.length())
+                    throw new IllegalArgumentException("Trailing escape: " + glob);
+                regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+                break;
+            default:
+                if ("\\^$.|+()]".indexOf(c) != -1)
+                    regex.append('\\');
+                regex.append(c);
+            }
+        }
+        if (inGroup)
+            throw new IllegalArgumentException("Unclosed group: " + glob);
+        return regex.toString();
+    }
+
+    /**
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException("In-memory files have no owners");
+    }
+
+    /**
+     * @throws UnsupportedOperationException always; in-memory files cannot be watched
+     */
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("In-memory files cannot be watched");
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The provider of one {@link MemoryFileSystem}. Each file system has a provider of its own, so that the same memfile: URI can be resolved in the file
+ * system of each file manager; the provider is not installed, so use {@link FileSystem#provider()} rather than {@link java.nio.file.Paths#get(URI)}.
+ * Every operation that would modify a file fails with {@link ReadOnlyFileSystemException}.
+ */
+final class MemoryFileSystemProvider extends FileSystemProvider {
+    /** The URI scheme of in-memory files */
+    static final String SCHEME = "memfile";
+
+    /** Memory files have no timestamps */
+    private static final FileTime EPOCH = FileTime.fromMillis(0);
+
+    /** The names of the attributes of the basic view, in the order they are returned */
+    private static final List<String> BASIC_ATTRIBUTES = Arrays.asList("lastModifiedTime", "lastAccessTime", "creationTime", "size", "isRegularFile",
+                                                                       "isDirectory", "isSymbolicLink", "isOther", "fileKey");
+
+    private final MemoryFileSystem fileSystem;
+
+    MemoryFileSystemProvider(MemoryFileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * @throws ProviderMismatchException if the path does not belong to our file system
+     * @throws java.nio.file.ClosedFileSystemException if our file system has been closed
+     */
+    private MemoryPath check(Path path) {
+        if (!(path instanceof MemoryPath) || ((MemoryPath) path).getFileSystem() != fileSystem)
+            throw new ProviderMismatchException();
+        fileSystem.checkOpen();
+        return (MemoryPath) path;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the URI is not an absolute memfile: URI
+     */
+    private static void checkUri(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme()) || uri.getPath() == null || !uri.getPath().startsWith("/"))
+            throw new IllegalArgumentException("Not an absolute " + SCHEME + ": URI: " + uri);
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    /**
+     * @throws UnsupportedOperationException always; memory file systems are created by {@link MemoryFileSystem#of}
+     */
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String,?> env) {
+        throw new UnsupportedOperationException("Memory file systems are created by MemoryFileSystem.of()");
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+        checkUri(uri);
+        return fileSystem;
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        checkUri(uri);
+        return MemoryPath.parse(fileSystem, uri.getPath());
+    }
+
+    /**
+     * Opens a file for reading. The channel reads a snapshot of the file's content as it was when opened, without copying it.
+     * 
+     * @throws ReadOnlyFileSystemException if asked to open the file for writing
+     */
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attributes) throws IOException {
+        MemoryPath file = check(path);
+        if (options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND))
+            throw new ReadOnlyFileSystemException();
+        if (attributes.length > 0)
+            throw new UnsupportedOperationException("File attributes cannot be set on in-memory files");
+        if (fileSystem.isDirectory(file))
+            throw new FileSystemException(file.toString(), null, "Is a directory");
+
+        byte[] content;
+        try {
+            content = fileSystem.getFileManager().readContent(file.canonicalPath());
+        } catch (FileNotFoundException e) {
+            throw new NoSuchFileException(file.toString());
+        }
+        return new ContentChannel(ByteBuffer.wrap(content).asReadOnlyBuffer());
+    }
+
+    /**
+     * Opens a directory. The entries are listed when it is opened, so later changes to the file manager are not seen.
+     */
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        MemoryPath directory = check(dir);
+        if (fileSystem.getFileManager().contentSize(directory.canonicalPath()) >= 0)
+            throw new NotDirectoryException(directory.toString());
+
+        final List<Path> entries = new ArrayList<Path>();
+        for (String name : fileSystem.list(directory)) {
+            Path entry = directory.resolve(name);
+            if (filter == null || filter.accept(entry))
+                entries.add(entry);
+        }
+
+        return new DirectoryStream<Path>() {
+            private boolean iterated;
+            private boolean closed;
+
+            @Override
+            public synchronized Iterator<Path> iterator() {
+                if (iterated || closed)
+                    throw new IllegalStateException(closed ? "Directory stream is closed" : "Directory stream has already been iterated");
+                iterated = true;
+                return entries.iterator();
+            }
+
+            @Override
+            public synchronized void close() {
+                closed = true;
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attributes) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete(Path path) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) {
+        return check(path).toAbsolutePath().normalize().equals(path2.toAbsolutePath().normalize());
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        check(path);
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) throws IOException {
+        checkAccess(path);
+        return fileSystem.getFileStore();
+    }
+
+    /**
+     * @throws NoSuchFileException if there is no such file or directory
+     * @throws AccessDeniedException if asked for write or execute access
+     */
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        readAttributes(check(path));
+        for (AccessMode mode : modes) {
+            if (mode != AccessMode.READ)
+                throw new AccessDeniedException(path.toString(), null, "In-memory files are read-only");
+        }
+    }
+
+    /** @return the attributes of a file or directory */
+    private BasicFileAttributes readAttributes(MemoryPath path) throws NoSuchFileException {
+        long size = fileSystem.getFileManager().contentSize(path.canonicalPath());
+        if (size >= 0)
+            return new Attributes(size, false);
+        if (fileSystem.isDirectory(path))
+            return new Attributes(0, true);
+        throw new NoSuchFileException(path.toString());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        final MemoryPath file = check(path);
+        if (type != BasicFileAttributeView.class)
+            return null;
+
+        return (V) new BasicFileAttributeView() {
+            @Override
+            public String name() {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return MemoryFileSystemProvider.this.readAttributes(file);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) {
+                throw new ReadOnlyFileSystemException();
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+        MemoryPath file = check(path);
+        if (type != BasicFileAttributes.class)
+            throw new UnsupportedOperationException("Only basic file attributes are supported");
+        return (A) readAttributes(file);
+    }
+
+    /**
+     * Reads attributes of the "basic" view, by name or with "*".
+     */
+    @Override
+    public Map<String,Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+        MemoryPath file = check(path);
+        String names = attributes;
+        int colon = attributes.indexOf(':');
+        if (colon != -1) {
+            if (!attributes.substring(0, colon).equals("basic"))
+                throw new UnsupportedOperationException("Only basic file attributes are supported");
+            names = attributes.substring(colon + 1);
+        }
+
+        BasicFileAttributes read = readAttributes(file);
+        Map<String,Object> values = new LinkedHashMap<String,Object>();
+        for (String name : names.split(",")) {
+            if (name.equals("*")) {
+                for (String basic : BASIC_ATTRIBUTES)
+                    values.put(basic, attribute(read, basic));
+            } else if (BASIC_ATTRIBUTES.contains(name)) {
+                values.put(name, attribute(read, name));
+            } else {
+                throw new IllegalArgumentException("Unknown attribute: " + name);
+            }
+        }
+        return values;
+    }
+
+    private static Object attribute(BasicFileAttributes attributes, String name) {
+        if (name.equals("size"))
+            return attributes.size();
+        if (name.equals("isRegularFile"))
+            return attributes.isRegularFile();
+        if (name.equals("isDirectory"))
+            return attributes.isDirectory();
+        if (name.equals("isSymbolicLink") || name.equals("isOther"))
+            return false;
+        if (name.equals("fileKey"))
+            return null;
+        return EPOCH;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    /**
+     * The attributes of an in-memory file or directory.
+     */
+    private static final class Attributes implements BasicFileAttributes {
+        private final long size;
+        private final boolean directory;
+
+        Attributes(long size, boolean directory) {
+            this.size = size;
+            this.directory = directory;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return EPOCH;
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return EPOCH;
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return EPOCH;
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return !directory;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public Object fileKey() {
+            return null;
+        }
+    }
+
+    /**
+     * A read-only channel over a file's stored content. Reads copy straight from the stored bytes into the caller's buffer.
+     */
+    private static final class ContentChannel implements SeekableByteChannel {
+        private final ByteBuffer content;
+        private long position;
+        private boolean open = true;
+
+        ContentChannel(ByteBuffer content) {
+            this.content = content;
+        }
+
+        private void checkOpen() throws ClosedChannelException {
+            if (!open)
+                throw new ClosedChannelException();
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer destination) throws IOException {
+            checkOpen();
+            if (position >= content.limit())
+                return -1;
+
+            int count = (int) Math.min(destination.remaining(), content.limit() - position);
+            ByteBuffer source = content.duplicate();
+            source.position((int) position).limit((int) position + count);
+            destination.put(source);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public synchronized long position() throws IOException {
+            checkOpen();
+            return position;
+        }
+
+        @Override
+        public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+            checkOpen();
+            if (newPosition < 0)
+                throw new IllegalArgumentException("Negative position: " + newPosition);
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public synchronized long size() throws IOException {
+            checkOpen();
+            return content.limit();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public synchronized void close() {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A path in a {@link MemoryFileSystem}: an optional root followed by a sequence of names, separated by '/'.
+ */
+final class MemoryPath implements Path {
+    private final MemoryFileSystem fileSystem;
+    private final boolean absolute;
+    private final String[] names;
+
+    MemoryPath(MemoryFileSystem fileSystem, boolean absolute, String... names) {
+        this.fileSystem = fileSystem;
+        this.absolute = absolute;
+        this.names = names;
+    }
+
+    /**
+     * Parse a path string, ignoring empty names, so that "a//b/" is the same as "a/b".
+     */
+    static MemoryPath parse(MemoryFileSystem fileSystem, String path) {
+        List<String> names = new ArrayList<String>();
+        for (String name : path.split("/")) {
+            if (name.length() > 0)
+                names.add(name);
+        }
+        return new MemoryPath(fileSystem, path.startsWith("/"), names.toArray(new String[names.size()]));
+    }
+
+    /**
+     * @return the canonical path of this path within its {@link MemoryFileManager}, such as "classes/com/example/Foo.class"; "" for the root
+     */
+    String canonicalPath() {
+        String path = ((MemoryPath) toAbsolutePath().normalize()).toString();
+        return path.substring(1);
+    }
+
+    /**
+     * @throws ProviderMismatchException if a path does not belong to the same file system
+     */
+    private MemoryPath check(Path other) {
+        if (!(other instanceof MemoryPath) || ((MemoryPath) other).fileSystem != fileSystem)
+            throw new ProviderMismatchException();
+        return (MemoryPath) other;
+    }
+
+    private MemoryPath subpathOf(boolean absolute, int beginIndex, int endIndex) {
+        return new MemoryPath(fileSystem, absolute, Arrays.copyOfRange(names, beginIndex, endIndex));
+    }
+
+    @Override
+    public MemoryFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return absolute;
+    }
+
+    @Override
+    public Path getRoot() {
+        return absolute ? new MemoryPath(fileSystem, true) : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        return names.length == 0 ? null : subpathOf(false, names.length - 1, names.length);
+    }
+
+    @Override
+    public Path getParent() {
+        if (names.length == 0 || (names.length == 1 && !absolute))
+            return null;
+        return subpathOf(absolute, 0, names.length - 1);
+    }
+
+    @Override
+    public int getNameCount() {
+        return names.length;
+    }
+
+    @Override
+    public Path getName(int index) {
+        if (index < 0 || index >= names.length)
+            throw new IllegalArgumentException("No name at index " + index + " of " + this);
+        return subpathOf(false, index, index + 1);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || beginIndex >= names.length || endIndex <= beginIndex || endIndex > names.length)
+            throw new IllegalArgumentException("Invalid subpath [" + beginIndex + ", " + endIndex + ") of " + this);
+        return subpathOf(false, beginIndex, endIndex);
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        if (!(other instanceof MemoryPath) || ((MemoryPath) other).fileSystem != fileSystem)
+            return false;
+        MemoryPath prefix = (MemoryPath) other;
+        if (prefix.absolute != absolute || prefix.names.length > names.length)
+            return false;
+        for (int i = 0; i < prefix.names.length; ++i) {
+            if (!prefix.names[i].equals(names[i]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startsWith(String other) {
+        return startsWith(parse(fileSystem, other));
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        if (!(other instanceof MemoryPath) || ((MemoryPath) other).fileSystem != fileSystem)
+            return false;
+        MemoryPath suffix = (MemoryPath) other;
+        if (suffix.absolute)
+            return equals(suffix);
+        if (suffix.names.length > names.length)
+            return false;
+        int offset = names.length - suffix.names.length;
+        for (int i = 0; i < suffix.names.length; ++i) {
+            if (!suffix.names[i].equals(names[offset + i]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(String other) {
+        return endsWith(parse(fileSystem, other));
+    }
+
+    @Override
+    public Path normalize() {
+        List<String> normal = new ArrayList<String>();
+        for (String name : names) {
+            if (name.equals("."))
+                continue;
+            if (name.equals("..") && !normal.isEmpty() && !normal.get(normal.size() - 1).equals(".."))
+                normal.remove(normal.size() - 1);
+            else if (!(name.equals("..") && absolute)) // There is nothing above the root
+                normal.add(name);
+        }
+        return new MemoryPath(fileSystem, absolute, normal.toArray(new String[normal.size()]));
+    }
+
+    @Override
+    public Path resolve(Path other) {
+        MemoryPath relative = check(other);
+        if (relative.absolute)
+            return relative;
+        String[] resolved = Arrays.copyOf(names, names.length + relative.names.length);
+        System.arraycopy(relative.names, 0, resolved, names.length, relative.names.length);
+        return new MemoryPath(fileSystem, absolute, resolved);
+    }
+
+    @Override
+    public Path resolve(String other) {
+        return resolve(parse(fileSystem, other));
+    }
+
+    @Override
+    public Path resolveSibling(Path other) {
+        Path parent = getParent();
+        return parent == null ? check(other) : parent.resolve(other);
+    }
+
+    @Override
+    public Path resolveSibling(String other) {
+        return resolveSibling(parse(fileSystem, other));
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        MemoryPath target = check(other);
+        if (target.absolute != absolute)
+            throw new IllegalArgumentException("Cannot relativize " + other + " against " + this);
+
+        int common = 0;
+        while (common < names.length && common < target.names.length && names[common].equals(target.names[common]))
+            ++common;
+        List<String> relative = new ArrayList<String>();
+        for (int i = common; i < names.length; ++i)
+            relative.add("..");
+        relative.addAll(Arrays.asList(target.names).subList(common, target.names.length));
+        return new MemoryPath(fileSystem, false, relative.toArray(new String[relative.size()]));
+    }
+
+    /**
+     * @return a memfile: URI, which for a file is the same as the URI of its file object
+     */
+    @Override
+    public URI toUri() {
+        try {
+            return new URI(MemoryFileSystemProvider.SCHEME, null, toAbsolutePath().toString(), null);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid path: URI construction failed", e);
+        }
+    }
+
+    /**
+     * @return this path resolved against the root, which is the working directory of a memory file system
+     */
+    @Override
+    public Path toAbsolutePath() {
+        return absolute ? this : new MemoryPath(fileSystem, true, names);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException {
+        Path real = toAbsolutePath().normalize();
+        fileSystem.provider().checkAccess(real);
+        return real;
+    }
+
+    /**
+     * @throws UnsupportedOperationException always; in-memory files have no File
+     */
+    @Override
+    public File toFile() {
+        throw new UnsupportedOperationException("In-memory files cannot be accessed as a File");
+    }
+
+    /**
+     * @throws UnsupportedOperationException always; in-memory files cannot be watched
+     */
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException("In-memory files cannot be watched");
+    }
+
+    /**
+     * @throws UnsupportedOperationException always; in-memory files cannot be watched
+     */
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events) {
+        throw new UnsupportedOperationException("In-memory files cannot be watched");
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        List<Path> elements = new ArrayList<Path>(names.length);
+        for (int i = 0; i < names.length; ++i)
+            elements.add(getName(i));
+        return elements.iterator();
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return toString().compareTo(check(other).toString());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof MemoryPath && ((MemoryPath) other).fileSystem == fileSystem && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(absolute ? "/" : "");
+        for (int i = 0; i < names.length; ++i)
+            sb.append(i == 0 ? "" : "/").append(names[i]);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts and timings of the calls a delegate processor made to the {@link javax.lang.model.util.Elements} and {@link javax.lang.model.util.Types} utilities,
+ * collected by {@link VerifyingProcessor} when model profiling is enabled.
+ */
+public final class ModelProfile {
+    /**
+     * The counters for one utility method.
+     */
+    public static final class Hotspot {
+        private final String method;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong cacheHits = new AtomicLong();
+
+        Hotspot(String method) {
+            this.method = method;
+        }
+
+        /** @return the method name, qualified by the utility interface, e.g. "Types.isSubtype" */
+        public String getMethod() {
+            return method;
+        }
+
+        /** @return the number of calls made, including those answered from the cache */
+        public long getCalls() {
+            return calls.get();
+        }
+
+        /** @return the total wall time spent in calls, including those answered from the cache */
+        public long getNanos() {
+            return nanos.get();
+        }
+
+        /** @return the number of calls answered from the per-round cache when memoization is enabled */
+        public long getCacheHits() {
+            return cacheHits.get();
+        }
+
+        @Override
+        public String toString() {
+            return method + ": " + getCalls() + " calls, " + getNanos() / 1000 + " us, " + getCacheHits() + " cache hits";
+        }
+    }
+
+    private final Map<String,Hotspot> hotspots = new ConcurrentHashMap<String,Hotspot>();
+
+    ModelProfile() {
+    }
+
+    /**
+     * Record one call.
+     * 
+     * @param method the qualified method name
+     * @param nanos the time taken
+     * @param cacheHit true if the call was answered from the cache
+     */
+    void record(String method, long nanos, boolean cacheHit) {
+        Hotspot hotspot = hotspots.get(method);
+        if (hotspot == null) {
+            synchronized (hotspots) {
+                hotspot = hotspots.get(method);
+                if (hotspot == null) {
+                    hotspot = new Hotspot(method);
+                    hotspots.put(method, hotspot);
+                }
+            }
+        }
+
+        hotspot.calls.incrementAndGet();
+        hotspot.nanos.addAndGet(nanos);
+        if (cacheHit)
+            hotspot.cacheHits.incrementAndGet();
+    }
+
+    /**
+     * @param limit the maximum number of methods to return
+     * @return the most expensive methods by total time, most expensive first
+     */
+    public List<Hotspot> getHotspots(int limit) {
+        List<Hotspot> sorted = new ArrayList<Hotspot>(hotspots.values());
+        Collections.sort(sorted, new Comparator<Hotspot>() {
+            @Override
+            public int compare(Hotspot a, Hotspot b) {
+                long difference = b.getNanos() - a.getNanos();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        return sorted.size() > limit ? new ArrayList<Hotspot>(sorted.subList(0, limit)) : sorted;
+    }
+
+    /**
+     * @param method the qualified method name, e.g. "Elements.getTypeElement"
+     * @return the counters for that method, or null if it was never called
+     */
+    public Hotspot getHotspot(String method) {
+        return hotspots.get(method);
+    }
+
+    /**
+     * @return a human-readable report of the ten most expensive methods
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Model utility hotspots:");
+        for (Hotspot hotspot : getHotspots(10))
+            sb.append("\n  ").append(hotspot);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds which of several regular expressions occur in a message. A pattern "occurs" if {@link Matcher#find()} would succeed on the message.
+ * <p>
+ * Patterns without regular expression operators, which are most expected diagnostic messages, are matched together by an Aho-Corasick automaton, in one
+ * pass over the message whose cost does not depend on how many there are. Other patterns are matched one by one. (Combining them into one regular
+ * expression of optional lookaheads with a group each gives the same answers, but is many times slower than separate patterns, which can each search for
+ * their literal prefix.)
+ * <p>
+ * Instances are immutable, and can be used from any thread.
+ */
+final class PatternSet {
+    /** Fewer literal patterns than this are matched one by one, as the automaton would not pay off */
+    static final int MIN_COMBINED = 8;
+
+    private final Pattern[] patterns;
+
+    /** The automaton for literal patterns, or null if there are too few */
+    private final Automaton literals;
+
+    /** The indexes of the patterns matched one by one */
+    private final int[] separate;
+
+    /**
+     * @param patterns the patterns
+     */
+    PatternSet(List<Pattern> patterns) {
+        this.patterns = patterns.toArray(new Pattern[patterns.size()]);
+
+        List<String> literalStrings = new ArrayList<String>();
+        List<Integer> literalPatterns = new ArrayList<Integer>();
+        List<Integer> separatePatterns = new ArrayList<Integer>();
+        for (int i = 0; i < this.patterns.length; ++i) {
+            Pattern pattern = this.patterns[i];
+            String literal = (pattern.flags() == 0 ? literal(pattern.pattern()) : null);
+            if (literal != null) {
+                literalStrings.add(literal);
+                literalPatterns.add(i);
+            } else {
+                separatePatterns.add(i);
+            }
+        }
+
+        if (literalStrings.size() < MIN_COMBINED) {
+            separatePatterns.addAll(literalPatterns);
+            this.literals = null;
+        } else {
+            this.literals = new Automaton(literalStrings, toArray(literalPatterns));
+        }
+        this.separate = toArray(separatePatterns);
+        Arrays.sort(this.separate);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; ++i)
+            array[i] = list.get(i);
+        return array;
+    }
+
+    /**
+     * @return the text a regular expression matches if it is a plain string, possibly with escaped punctuation or quoted sections; otherwise null
+     */
+    static String literal(String regex) {
+        StringBuilder literal = new StringBuilder(regex.length());
+        for (int i = 0; i < regex.length(); ++i) {
+            char c = regex.charAt(i);
+            if (regex.startsWith("\\Q", i)) {
+                int end = regex.indexOf("\\E", i + 2);
+                literal.append(regex, i + 2, end == -1 ? regex.length() : end);
+                i = (end == -1 ? regex.length() : end + 1);
+                continue;
+            } else if (c == '\\') {
+                if (++i == regex.length())
+                    return null;
+                c = regex.charAt(i);
+                if (Character.isLetterOrDigit(c) || c > 127)
+                    return null; // A character class, escape sequence or back reference
+            } else if ("^$.|?*+()[]{}".indexOf(c) != -1) {
+                return null;
+            }
+            literal.append(c);
+        }
+        return literal.toString();
+    }
+
+    /**
+     * @param message a message
+     * @return for each pattern, in the order given, whether it occurs in the message
+     */
+    boolean[] find(CharSequence message) {
+        boolean[] found = new boolean[patterns.length];
+        if (literals != null)
+            literals.find(message, found);
+
+        for (int i : separate)
+            found[i] = patterns[i].matcher(message).find();
+        return found;
+    }
+
+    /**
+     * An Aho-Corasick automaton that finds every one of a set of strings that occurs in a text, in one pass over the text.
+     */
+    private static final class Automaton {
+        /** The characters each state has transitions on, in order */
+        private final char[][] keys;
+        /** The target of each transition, parallel to {@link #keys} */
+        private final int[][] targets;
+        /** The state for the longest proper suffix of each state's string that is also a prefix of a string */
+        private final int[] failure;
+        /** The nearest state along the failure chain, not including the state itself, that completes a string; or -1 */
+        private final int[] nextOutput;
+        /** The patterns completed by each state, or null */
+        private final int[][] outputs;
+        /** Patterns that are empty, and so always occur */
+        private final int[] empty;
+
+        Automaton(List<String> strings, int[] patternIndexes) {
+            // Build the trie, with transitions in sorted maps while it grows
+            List<TreeMap<Character,Integer>> trie = new ArrayList<TreeMap<Character,Integer>>();
+            List<List<Integer>> completes = new ArrayList<List<Integer>>();
+            trie.add(new TreeMap<Character,Integer>());
+            completes.add(null);
+            List<Integer> emptyPatterns = new ArrayList<Integer>();
+            for (int i = 0; i < strings.size(); ++i) {
+                String string = strings.get(i);
+                if (string.length() == 0) {
+                    emptyPatterns.add(patternIndexes[i]);
+                    continue;
+                }
+                int state = 0;
+                for (int j = 0; j < string.length(); ++j) {
+                    Integer next = trie.get(state).get(string.charAt(j));
+                    if (next == null) {
+                        next = trie.size();
+                        trie.add(new TreeMap<Character,Integer>());
+                        completes.add(null);
+                        trie.get(state).put(string.charAt(j), next);
+                    }
+                    state = next;
+                }
+                if (completes.get(state) == null)
+                    completes.set(state, new ArrayList<Integer>(1));
+                completes.get(state).add(patternIndexes[i]);
+            }
+            this.empty = toArray(emptyPatterns);
+
+            int states = trie.size();
+            keys = new char[states][];
+            targets = new int[states][];
+            outputs = new int[states][];
+            for (int state = 0; state < states; ++state) {
+                Map<Character,Integer> transitions = trie.get(state);
+                keys[state] = new char[transitions.size()];
+                targets[state] = new int[transitions.size()];
+                int k = 0;
+                for (Map.Entry<Character,Integer> transition : transitions.entrySet()) {
+                    keys[state][k] = transition.getKey();
+                    targets[state][k++] = transition.getValue();
+                }
+                if (completes.get(state) != null)
+                    outputs[state] = toArray(completes.get(state));
+            }
+
+            // Breadth-first, so that each state's failure state is finished before the state itself
+            failure = new int[states];
+            nextOutput = new int[states];
+            nextOutput[0] = -1;
+            int[] queue = new int[states];
+            int head = 0, tail = 0;
+            for (int child : targets[0]) {
+                nextOutput[child] = -1;
+                queue[tail++] = child;
+            }
+            while (head < tail) {
+                int state = queue[head++];
+                for (int k = 0; k < keys[state].length; ++k) {
+                    int child = targets[state][k];
+                    int fail = failure[state];
+                    int next;
+                    while ((next = transition(fail, keys[state][k])) == -1 && fail != 0)
+                        fail = failure[fail];
+                    failure[child] = (next == -1 ? 0 : next);
+                    nextOutput[child] = (outputs[failure[child]] != null ? failure[child] : nextOutput[failure[child]]);
+                    queue[tail++] = child;
+                }
+            }
+        }
+
+        /** @return the target of a state's transition on a character, or -1 if it has none */
+        private int transition(int state, char c) {
+            int k = Arrays.binarySearch(keys[state], c);
+            return k < 0 ? -1 : targets[state][k];
+        }
+
+        /** Set the flag of every pattern that occurs in a text */
+        void find(CharSequence text, boolean[] found) {
+            for (int i : empty)
+                found[i] = true;
+
+            int state = 0;
+            for (int i = 0; i < text.length(); ++i) {
+                char c = text.charAt(i);
+                int next;
+                while ((next = transition(state, c)) == -1 && state != 0)
+                    state = failure[state];
+                state = (next == -1 ? 0 : next);
+
+                for (int output = (outputs[state] != null ? state : nextOutput[state]); output != -1; output = nextOutput[output]) {
+                    for (int pattern : outputs[output])
+                        found[pattern] = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Sets limits on the resources the processor under test may use when processing a test class annotated with {@link VerifyDiagnostics}. Exceeding a limit
+ * is reported as an error diagnostic, in the same way as an unexpected diagnostic, so that performance regressions in a processor fail its tests.
+ * <p>
+ * Each limit is measured across all processing rounds. Negative values (the default) mean no limit.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface PerformanceBudget {
+    /** The maximum wall time, in milliseconds, spent inside the processor's init() and process() methods */
+    long maxProcessingMillis() default -1;
+
+    /**
+     * The maximum number of bytes allocated on the processing thread while inside the processor's init() and process() methods. Allocations made by other
+     * threads the processor starts are not counted. This limit is ignored, with a warning, on JVMs that cannot measure per-thread allocation.
+     */
+    long maxAllocatedBytes() default -1;
+
+    /** The maximum number of processing rounds the processor may take part in */
+    int maxRounds() default -1;
+
+    /** The maximum total number of bytes the processor may write through its Filer */
+    long maxGeneratedBytes() default -1;
+}
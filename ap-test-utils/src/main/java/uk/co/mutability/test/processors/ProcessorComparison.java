@@ -0,0 +1,226 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Compares two builds of a processor, such as the last release and a working copy, on the same test inputs in one JVM.
+ * <p>
+ * Each build is a JAR file or a directory of classes, and is loaded into a class loader of its own, which looks in the build before its parent, so that
+ * each build's version of the processor is used even if another version is on the class path. Classes the build does not contain, such as ap-test-utils
+ * and the test inputs' annotations, come from the parent. Class loaders are cached for the life of the JVM, keyed by the build's path and modification
+ * time, so that repeated comparisons reuse classes that are already loaded and compiled by the JIT.
+ * <p>
+ * Every test input is verified with each build in turn, after a number of warm-up iterations. The order alternates between iterations, so that neither build
+ * is always measured first. Each measured iteration pairs one baseline run with one candidate run, and the {@link ComparisonResult} reports the mean
+ * difference between the pairs with a 95% confidence interval, along with any difference in the diagnostics that the two builds produce.
+ * 
+ * <pre>
+ * ProcessorComparison comparison = new ProcessorComparison(new File("fruity-processor-1.0.jar"), new File("target/classes"));
+ * System.out.println(comparison.run(MyTestInput.class, MyOtherTestInput.class));
+ * </pre>
+ */
+public class ProcessorComparison {
+    /** The class loader for each build, keyed by canonical path; guarded by itself */
+    private static final Map<String,CachedLoader> LOADERS = new HashMap<String,CachedLoader>();
+
+    /**
+     * A class loader for a build, and the modification time of the build when the loader was created.
+     */
+    private static final class CachedLoader {
+        final long lastModified;
+        final ClassLoader loader;
+
+        CachedLoader(long lastModified, ClassLoader loader) {
+            this.lastModified = lastModified;
+            this.loader = loader;
+        }
+    }
+
+    private final ClassLoader baseline;
+    private final ClassLoader candidate;
+    private int warmups = 5;
+    private int iterations = 20;
+    private final List<String> compilerArgs = new ArrayList<String>();
+
+    /**
+     * @param baselineBuild a JAR file or class directory holding the build to compare against
+     * @param candidateBuild a JAR file or class directory holding the build being evaluated
+     * @throws IOException if either build cannot be found
+     */
+    public ProcessorComparison(File baselineBuild, File candidateBuild) throws IOException {
+        this.baseline = loaderFor(baselineBuild);
+        this.candidate = loaderFor(candidateBuild);
+    }
+
+    private static ClassLoader loaderFor(File build) throws IOException {
+        if (!build.exists())
+            throw new IOException("No such processor build: " + build);
+
+        File canonical = build.getCanonicalFile();
+        long lastModified = canonical.isFile() ? canonical.lastModified() : 0; // Class directories are not checked for changes
+        synchronized (LOADERS) {
+            CachedLoader cached = LOADERS.get(canonical.getPath());
+            if (cached == null || cached.lastModified != lastModified) {
+                // A rebuilt JAR replaces the loader for the old one, so that is released once no comparison is using it
+                cached = new CachedLoader(lastModified, new BuildClassLoader(new URL[] { canonical.toURI().toURL() },
+                                                                            ProcessorComparison.class.getClassLoader()));
+                LOADERS.put(canonical.getPath(), cached);
+            }
+            return cached.loader;
+        }
+    }
+
+    /**
+     * @param warmups the number of unmeasured iterations to run first with each build, so that the JIT compiler has settled; the default is 5
+     */
+    public void setWarmups(int warmups) {
+        if (warmups < 0)
+            throw new IllegalArgumentException("Negative warm-up count: " + warmups);
+        this.warmups = warmups;
+    }
+
+    /**
+     * @param iterations the number of measured iterations with each build; the default is 20
+     */
+    public void setIterations(int iterations) {
+        if (iterations < 1)
+            throw new IllegalArgumentException("Need at least one measured iteration");
+        this.iterations = iterations;
+    }
+
+    /**
+     * @param argument an argument to pass to the compiler for every verification
+     */
+    public void addCompilerArgument(String argument) {
+        compilerArgs.add(argument);
+    }
+
+    /**
+     * Compare the two builds on some test inputs. Each iteration verifies all the inputs, and its measurements are the totals over them.
+     * 
+     * @param testClasses classes that can be passed to {@link Verifier#verify(Class, String...)}
+     * @return the comparison
+     * @throws IllegalArgumentException if a test class has no {@link VerifyDiagnostics} annotation
+     */
+    public ComparisonResult run(Class<?>... testClasses) {
+        List<String> classNames = new ArrayList<String>();
+        List<String> processorNames = new ArrayList<String>();
+        for (Class<?> testClass : testClasses) {
+            classNames.add(testClass.getName());
+            VerifyDiagnostics diags = testClass.getAnnotation(VerifyDiagnostics.class);
+            if (diags == null)
+                throw new IllegalArgumentException("No @VerifyDiagnostics annotation found on " + testClass);
+            processorNames.add(diags.value().getName());
+        }
+
+        Samples baselineSamples = new Samples(iterations, classNames.size());
+        Samples candidateSamples = new Samples(iterations, classNames.size());
+        for (int i = -warmups; i < iterations; ++i) {
+            if ((i & 1) == 0) {
+                runOnce(baseline, classNames, processorNames, baselineSamples, i);
+                runOnce(candidate, classNames, processorNames, candidateSamples, i);
+            } else {
+                runOnce(candidate, classNames, processorNames, candidateSamples, i);
+                runOnce(baseline, classNames, processorNames, baselineSamples, i);
+            }
+        }
+
+        ComparisonResult.Difference allocated = null;
+        if (baselineSamples.allocatedBytes[0] >= 0 && candidateSamples.allocatedBytes[0] >= 0)
+            allocated = new ComparisonResult.Difference(baselineSamples.allocatedBytes, candidateSamples.allocatedBytes);
+
+        List<String> diagnosticDifferences = new ArrayList<String>();
+        for (int j = 0; j < classNames.size(); ++j)
+            ComparisonResult.diff(classNames.get(j), baselineSamples.diagnostics.get(j), candidateSamples.diagnostics.get(j), diagnosticDifferences);
+
+        return new ComparisonResult(baselineSamples.toResult(), candidateSamples.toResult(),
+                                    new ComparisonResult.Difference(baselineSamples.totalNanos, candidateSamples.totalNanos),
+                                    new ComparisonResult.Difference(baselineSamples.processingNanos, candidateSamples.processingNanos), allocated,
+                                    diagnosticDifferences);
+    }
+
+    /**
+     * Verify every test input with one build, and record the totals as an iteration's sample if it is a measured iteration (not a warm-up).
+     */
+    private void runOnce(ClassLoader build, List<String> classNames, List<String> processorNames, Samples samples, int iteration) {
+        String[] args = compilerArgs.toArray(new String[compilerArgs.size()]);
+        long total = 0, processing = 0, allocated = 0;
+        Thread thread = Thread.currentThread();
+        ClassLoader contextLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(build); // For processors that look up services or resources
+        try {
+            for (int j = 0; j < classNames.size(); ++j) {
+                Processor processor = Verifier.newProcessor(build, processorNames.get(j));
+                VerificationResult result = Verifier.compile(new VerifyingProcessor(processor), null, Arrays.asList(classNames.get(j)), null, args);
+                total += result.getElapsedNanos();
+                processing += result.getProcessingNanos();
+                allocated = (allocated < 0 || result.getAllocatedBytes() < 0) ? -1 : allocated + result.getAllocatedBytes();
+                if (iteration == iterations - 1)
+                    samples.diagnostics.set(j, result.getDiagnostics());
+            }
+        } finally {
+            thread.setContextClassLoader(contextLoader);
+        }
+
+        if (iteration >= 0) {
+            samples.totalNanos[iteration] = total;
+            samples.processingNanos[iteration] = processing;
+            samples.allocatedBytes[iteration] = allocated;
+        }
+    }
+
+    /**
+     * The measurements of one build.
+     */
+    private static class Samples {
+        final long[] totalNanos, processingNanos, allocatedBytes;
+        /** The diagnostics of each test input in the last iteration */
+        final List<List<Diagnostic<? extends JavaFileObject>>> diagnostics = new ArrayList<List<Diagnostic<? extends JavaFileObject>>>();
+
+        Samples(int iterations, int inputs) {
+            totalNanos = new long[iterations];
+            processingNanos = new long[iterations];
+            allocatedBytes = new long[iterations];
+            for (int i = 0; i < inputs; ++i)
+                diagnostics.add(null);
+        }
+
+        BenchmarkResult toResult() {
+            List<Diagnostic<? extends JavaFileObject>> all = new ArrayList<Diagnostic<? extends JavaFileObject>>();
+            for (List<Diagnostic<? extends JavaFileObject>> input : diagnostics)
+                all.addAll(input);
+            return new BenchmarkResult(totalNanos, processingNanos, allocatedBytes, all);
+        }
+    }
+}
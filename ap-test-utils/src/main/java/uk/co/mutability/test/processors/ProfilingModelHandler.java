@@ -0,0 +1,202 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * Wraps {@link Elements} or {@link Types} in a dynamic proxy that records every call in a {@link ModelProfile}, and optionally answers repeated calls to
+ * side-effect-free lookups from a cache that is discarded at the start of each round.
+ * <p>
+ * A dynamic proxy is used rather than a hand-written wrapper so that methods added to these interfaces by later Java versions are passed through (and
+ * profiled) without needing to compile against those versions.
+ */
+class ProfilingModelHandler implements InvocationHandler {
+    /** Elements methods whose results depend only on their arguments within a round */
+    private static final Set<String> PURE_ELEMENTS_METHODS = new HashSet<String>(Arrays.asList(
+        "getPackageElement", "getTypeElement", "getElementValuesWithDefaults", "getDocComment", "isDeprecated", "getBinaryName", "getPackageOf",
+        "getAllMembers", "getAllAnnotationMirrors", "hides", "overrides", "getConstantExpression", "getName", "isFunctionalInterface"));
+
+    /** Types methods whose results depend only on their arguments within a round */
+    private static final Set<String> PURE_TYPES_METHODS = new HashSet<String>(Arrays.asList(
+        "asElement", "isSameType", "isSubtype", "isAssignable", "contains", "isSubsignature", "directSupertypes", "erasure", "boxedClass", "unboxedType",
+        "capture", "getPrimitiveType", "getArrayType", "getDeclaredType", "asMemberOf"));
+
+    /** Stands in for a cached null result */
+    private static final Object NULL_RESULT = new Object();
+
+    private final Object delegate;
+    private final String prefix;
+    private final Set<String> pureMethods;
+    private final ModelProfile profile;
+    /** The per-round cache, or null if memoization is disabled */
+    private final Map<CallKey,Object> cache;
+
+    private ProfilingModelHandler(Object delegate, String prefix, Set<String> pureMethods, ModelProfile profile, boolean memoize) {
+        this.delegate = delegate;
+        this.prefix = prefix;
+        this.pureMethods = pureMethods;
+        this.profile = profile;
+        this.cache = (memoize ? new ConcurrentHashMap<CallKey,Object>() : null);
+    }
+
+    /**
+     * @param delegate the real Elements implementation
+     * @param profile where to record calls
+     * @param memoize true to cache the results of pure lookups
+     * @return the handler for a profiling Elements proxy
+     */
+    static ProfilingModelHandler forElements(Elements delegate, ModelProfile profile, boolean memoize) {
+        return new ProfilingModelHandler(delegate, "Elements.", PURE_ELEMENTS_METHODS, profile, memoize);
+    }
+
+    /**
+     * @param delegate the real Types implementation
+     * @param profile where to record calls
+     * @param memoize true to cache the results of pure lookups
+     * @return the handler for a profiling Types proxy
+     */
+    static ProfilingModelHandler forTypes(Types delegate, ModelProfile profile, boolean memoize) {
+        return new ProfilingModelHandler(delegate, "Types.", PURE_TYPES_METHODS, profile, memoize);
+    }
+
+    /**
+     * @param iface the interface to implement; Elements or Types
+     * @return a proxy implementing the interface via this handler
+     */
+    <T> T newProxy(Class<T> iface) {
+        return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] { iface }, this));
+    }
+
+    /**
+     * Discard cached results; called at the start of each round, as model objects may change between rounds.
+     */
+    void newRound() {
+        if (cache != null)
+            cache.clear();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class)
+            return invokeObjectMethod(proxy, method, args);
+
+        long start = System.nanoTime();
+        CallKey key = null;
+        if (cache != null && pureMethods.contains(method.getName())) {
+            key = new CallKey(method, args);
+            Object cached = cache.get(key);
+            if (cached != null) {
+                Object result = copyOf(cached == NULL_RESULT ? null : cached);
+                profile.record(prefix + method.getName(), System.nanoTime() - start, true);
+                return result;
+            }
+        }
+
+        Object result;
+        try {
+            result = method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            if (key == null)
+                profile.record(prefix + method.getName(), System.nanoTime() - start, false);
+        }
+
+        if (key != null) {
+            cache.put(key, result == null ? NULL_RESULT : copyOf(result));
+            profile.record(prefix + method.getName(), System.nanoTime() - start, false);
+        }
+
+        return result;
+    }
+
+    private Object invokeObjectMethod(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getName().equals("equals"))
+            return proxy == args[0];
+        if (method.getName().equals("hashCode"))
+            return System.identityHashCode(proxy);
+        if (method.getName().equals("toString"))
+            return "Profiling " + delegate;
+        return method.invoke(delegate, args);
+    }
+
+    /**
+     * Copy mutable collection results so that a caller modifying a result cannot affect the cached copy or other callers.
+     */
+    private static Object copyOf(Object result) {
+        if (result instanceof List)
+            return new ArrayList<Object>((List<?>) result);
+        if (result instanceof Map)
+            return new LinkedHashMap<Object,Object>((Map<?,?>) result);
+        return result;
+    }
+
+    /**
+     * The cache key for one call: the method plus its arguments. CharSequence arguments are compared by content; everything else by its own equals().
+     */
+    private static final class CallKey {
+        private final Method method;
+        private final Object[] args;
+        private final int hash;
+
+        CallKey(Method method, Object[] args) {
+            this.method = method;
+            if (args == null) {
+                this.args = new Object[0];
+            } else {
+                this.args = args.clone();
+                for (int i = 0; i < this.args.length; ++i) {
+                    if (this.args[i] instanceof CharSequence)
+                        this.args[i] = this.args[i].toString();
+                }
+            }
+            this.hash = method.hashCode() * 31 + Arrays.deepHashCode(this.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CallKey))
+                return false;
+            CallKey other = (CallKey) o;
+            return hash == other.hash && method.equals(other.method) && Arrays.deepEquals(args, other.args);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.FilterOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.Filer;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.FileObject;
+import javax.tools.ForwardingFileObject;
+import javax.tools.ForwardingJavaFileObject;
+import javax.tools.JavaFileManager.Location;
+import javax.tools.JavaFileObject;
+
+/**
+ * A Filer that passes all requests to the real Filer, recording what was created and how much was written into a {@link FilerStatistics}.
+ */
+class RecordingFiler implements Filer {
+    /** The real Filer */
+    private final Filer delegate;
+    /** Where to record outputs */
+    private final FilerStatistics statistics;
+    /** The names of all files created so far, for duplicate detection */
+    private final Set<String> createdNames = new HashSet<String>();
+    /** The current processing round */
+    private volatile int round;
+
+    /**
+     * @param delegate the real Filer
+     * @param statistics where to record outputs
+     */
+    RecordingFiler(Filer delegate, FilerStatistics statistics) {
+        this.delegate = delegate;
+        this.statistics = statistics;
+    }
+
+    /** @param round the processing round that subsequently created files belong to */
+    void setRound(int round) {
+        this.round = round;
+    }
+
+    @Override
+    public JavaFileObject createSourceFile(CharSequence name, Element... originatingElements) throws IOException {
+        FilerStatistics.Output output = record(JavaFileObject.Kind.SOURCE, name.toString(), originatingElements);
+        return new RecordingJavaFileObject(delegate.createSourceFile(name, originatingElements), output);
+    }
+
+    @Override
+    public JavaFileObject createClassFile(CharSequence name, Element... originatingElements) throws IOException {
+        FilerStatistics.Output output = record(JavaFileObject.Kind.CLASS, name.toString(), originatingElements);
+        return new RecordingJavaFileObject(delegate.createClassFile(name, originatingElements), output);
+    }
+
+    @Override
+    public FileObject createResource(Location location, CharSequence pkg, CharSequence relativeName, Element... originatingElements) throws IOException {
+        String name = location.getName() + ":" + (pkg.length() == 0 ? "" : pkg.toString().replace('.', '/') + "/") + relativeName;
+        FilerStatistics.Output output = record(JavaFileObject.Kind.OTHER, name, originatingElements);
+        return new RecordingFileObject(delegate.createResource(location, pkg, relativeName, originatingElements), output);
+    }
+
+    @Override
+    public FileObject getResource(Location location, CharSequence pkg, CharSequence relativeName) throws IOException {
+        return delegate.getResource(location, pkg, relativeName);
+    }
+
+    /**
+     * Record a new output. This happens before the real Filer is asked to create the file, so that rejected duplicates are recorded too.
+     */
+    private FilerStatistics.Output record(JavaFileObject.Kind kind, String name, Element[] originatingElements) {
+        boolean duplicate;
+        synchronized (createdNames) {
+            duplicate = !createdNames.add(kind + " " + name);
+        }
+
+        List<String> originating = new ArrayList<String>(originatingElements == null ? 0 : originatingElements.length);
+        if (originatingElements != null) {
+            for (Element element : originatingElements) {
+                if (element != null)
+                    originating.add(describe(element));
+            }
+        }
+
+        FilerStatistics.Output output = new FilerStatistics.Output(round, kind, name, originating, duplicate);
+        statistics.add(output);
+        return output;
+    }
+
+    /**
+     * Build a stable description of an element that does not retain any compiler state: the qualified name for types and packages, otherwise the description
+     * of the enclosing element plus the element's own name.
+     * 
+     * @param element the element to describe
+     * @return a description of the element
+     */
+    static String describe(Element element) {
+        if (element instanceof TypeElement)
+            return ((TypeElement) element).getQualifiedName().toString();
+        if (element instanceof PackageElement)
+            return ((PackageElement) element).getQualifiedName().toString();
+
+        Element enclosing = element.getEnclosingElement();
+        if (enclosing == null)
+            return element.toString();
+        return describe(enclosing) + "." + element;
+    }
+
+    private static class RecordingJavaFileObject extends ForwardingJavaFileObject<JavaFileObject> {
+        private final FilerStatistics.Output output;
+
+        RecordingJavaFileObject(JavaFileObject fileObject, FilerStatistics.Output output) {
+            super(fileObject);
+            this.output = output;
+        }
+
+        @Override
+        public OutputStream openOutputStream() throws IOException {
+            output.opened();
+            return new CountingOutputStream(super.openOutputStream(), output);
+        }
+
+        @Override
+        public Writer openWriter() throws IOException {
+            output.opened();
+            return new CountingWriter(super.openWriter(), output);
+        }
+    }
+
+    private static class RecordingFileObject extends ForwardingFileObject<FileObject> {
+        private final FilerStatistics.Output output;
+
+        RecordingFileObject(FileObject fileObject, FilerStatistics.Output output) {
+            super(fileObject);
+            this.output = output;
+        }
+
+        @Override
+        public OutputStream openOutputStream() throws IOException {
+            output.opened();
+            return new CountingOutputStream(super.openOutputStream(), output);
+        }
+
+        @Override
+        public Writer openWriter() throws IOException {
+            output.opened();
+            return new CountingWriter(super.openWriter(), output);
+        }
+    }
+
+    /**
+     * An output stream that records the bytes written to it and the time spent writing.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final FilerStatistics.Output output;
+
+        CountingOutputStream(OutputStream out, FilerStatistics.Output output) {
+            super(out);
+            this.output = output;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            output.wrote(1, System.nanoTime() - start);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            output.wrote(len, System.nanoTime() - start);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            out.flush();
+            output.wrote(0, System.nanoTime() - start);
+        }
+
+        @Override
+        public void close() throws IOException {
+            long start = System.nanoTime();
+            out.close();
+            output.wrote(0, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * A writer that records the UTF-8 encoded length of the characters written to it and the time spent writing.
+     */
+    private static class CountingWriter extends FilterWriter {
+        private final FilerStatistics.Output output;
+
+        CountingWriter(Writer out, FilerStatistics.Output output) {
+            super(out);
+            this.output = output;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            long start = System.nanoTime();
+            out.write(c);
+            output.wrote(utf8Length((char) c), System.nanoTime() - start);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(cbuf, off, len);
+            long bytes = 0;
+            for (int i = off; i < off + len; ++i)
+                bytes += utf8Length(cbuf[i]);
+            output.wrote(bytes, System.nanoTime() - start);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(str, off, len);
+            long bytes = 0;
+            for (int i = off; i < off + len; ++i)
+                bytes += utf8Length(str.charAt(i));
+            output.wrote(bytes, System.nanoTime() - start);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            out.flush();
+            output.wrote(0, System.nanoTime() - start);
+        }
+
+        @Override
+        public void close() throws IOException {
+            long start = System.nanoTime();
+            out.close();
+            output.wrote(0, System.nanoTime() - start);
+        }
+
+        /** @return the number of bytes needed to encode one UTF-16 code unit in UTF-8; a surrogate pair totals 4 */
+        private static int utf8Length(char c) {
+            if (c < 0x80)
+                return 1;
+            if (c < 0x800 || Character.isHighSurrogate(c) || Character.isLowSurrogate(c))
+                return 2;
+            return 3;
+        }
+    }
+}
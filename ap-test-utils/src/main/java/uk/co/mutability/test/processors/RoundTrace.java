@@ -0,0 +1,210 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaFileObject;
+
+/**
+ * A trace of the processing rounds the delegate processor took part in, recording for each round which of its root elements were introduced by files the
+ * delegate generated in the previous round. Collected by {@link VerifyingProcessor}.
+ * <p>
+ * Every round after the first exists because some processor generated new files, and each costs a full pass of the compiler over the new input; the trace
+ * shows which generated types caused which extra rounds. It can be exported as a Graphviz graph with {@link #toDot()}.
+ */
+public final class RoundTrace {
+    /**
+     * The record of one processing round.
+     */
+    public static final class Round {
+        private final int number;
+        private final List<String> rootElements;
+        private final Map<String,FilerStatistics.Output> introducedBy;
+        private long processingNanos;
+        private long elapsedNanos;
+
+        Round(int number, List<String> rootElements, Map<String,FilerStatistics.Output> introducedBy) {
+            this.number = number;
+            this.rootElements = Collections.unmodifiableList(rootElements);
+            this.introducedBy = Collections.unmodifiableMap(introducedBy);
+        }
+
+        /** @return the round number, starting from 1 */
+        public int getNumber() {
+            return number;
+        }
+
+        /** @return the qualified names of the root elements of this round */
+        public List<String> getRootElements() {
+            return rootElements;
+        }
+
+        /**
+         * @return for each root element that was generated by the delegate processor in the previous round, the file that introduced it; root elements from
+         *         the original input or from other processors are not included
+         */
+        public Map<String,FilerStatistics.Output> getIntroducedBy() {
+            return introducedBy;
+        }
+
+        /** @return the wall time spent inside the delegate processor's process() method in this round */
+        public long getProcessingNanos() {
+            return processingNanos;
+        }
+
+        /**
+         * @return the wall time from the start of this round's processing to the start of the next round's, which includes the compiler's work on the files
+         *         generated in this round; for the last round, the same as {@link #getProcessingNanos()} plus verification overhead
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("round ").append(number).append(": ").append(rootElements.size()).append(" root elements, ");
+            sb.append(processingNanos / 1000).append(" us processing, ").append(elapsedNanos / 1000).append(" us elapsed");
+            for (Map.Entry<String,FilerStatistics.Output> cause : introducedBy.entrySet()) {
+                sb.append("\n    ").append(cause.getKey()).append(" <- generated from ");
+                List<String> origins = cause.getValue().getOriginatingElements();
+                sb.append(origins.isEmpty() ? "(no originating elements)" : origins.toString());
+            }
+            return sb.toString();
+        }
+    }
+
+    private final List<Round> rounds = new ArrayList<Round>();
+    /** The System.nanoTime() at which the current round started */
+    private long currentRoundStart;
+
+    RoundTrace() {
+    }
+
+    /**
+     * Record the start of a round.
+     * 
+     * @param number the round number
+     * @param rootElements the round's root elements
+     * @param filerStatistics the files generated so far, used to find the causes of this round
+     */
+    void startRound(int number, Set<? extends Element> rootElements, FilerStatistics filerStatistics) {
+        long now = System.nanoTime();
+        if (!rounds.isEmpty())
+            rounds.get(rounds.size() - 1).elapsedNanos = now - currentRoundStart;
+        currentRoundStart = now;
+
+        // Index the types generated in the previous round
+        Map<String,FilerStatistics.Output> generated = new HashMap<String,FilerStatistics.Output>();
+        for (FilerStatistics.Output output : filerStatistics.getOutputs()) {
+            if (output.getRound() == number - 1 && output.getKind() != JavaFileObject.Kind.OTHER)
+                generated.put(output.getName(), output);
+        }
+
+        List<String> rootNames = new ArrayList<String>(rootElements.size());
+        Map<String,FilerStatistics.Output> introducedBy = new LinkedHashMap<String,FilerStatistics.Output>();
+        for (Element rootElement : rootElements) {
+            String name = RecordingFiler.describe(rootElement);
+            rootNames.add(name);
+            if (rootElement instanceof TypeElement) {
+                FilerStatistics.Output cause = generated.get(name);
+                if (cause != null)
+                    introducedBy.put(name, cause);
+            }
+        }
+
+        rounds.add(new Round(number, rootNames, introducedBy));
+    }
+
+    /**
+     * Record the end of the delegate processor's work in the current round.
+     * 
+     * @param processingNanos the time spent inside the delegate processor's process() method
+     */
+    void endRound(long processingNanos) {
+        Round round = rounds.get(rounds.size() - 1);
+        round.processingNanos = processingNanos;
+        round.elapsedNanos = System.nanoTime() - currentRoundStart;
+    }
+
+    /** @return all rounds traced, in order */
+    public List<Round> getRounds() {
+        return Collections.unmodifiableList(rounds);
+    }
+
+    /**
+     * Export the trace as a Graphviz "dot" graph. Each round is a cluster labelled with its timing, containing its root elements; an edge joins each
+     * generated root element to the originating elements, in the previous round, of the file that introduced it.
+     * 
+     * @return the graph source
+     */
+    public String toDot() {
+        StringBuilder sb = new StringBuilder("digraph rounds {\n  rankdir=LR;\n  node [shape=box];\n");
+        for (Round round : rounds) {
+            sb.append("  subgraph cluster_").append(round.number).append(" {\n");
+            sb.append("    label=").append(quote("round " + round.number + " (" + round.elapsedNanos / 1000000 + " ms, " + round.processingNanos / 1000000 +
+                                                  " ms in processor)")).append(";\n");
+            for (String rootElement : round.rootElements)
+                sb.append("    ").append(quote(round.number + ":" + rootElement)).append(" [label=").append(quote(rootElement)).append("];\n");
+            sb.append("  }\n");
+        }
+
+        for (Round round : rounds) {
+            for (Map.Entry<String,FilerStatistics.Output> cause : round.introducedBy.entrySet()) {
+                String target = quote(round.number + ":" + cause.getKey());
+                for (String origin : cause.getValue().getOriginatingElements()) {
+                    String source = quote((round.number - 1) + ":" + origin);
+                    sb.append("  ").append(source).append(" [label=").append(quote(origin)).append("];\n");
+                    sb.append("  ").append(source).append(" -> ").append(target).append(" [label=").append(quote(cause.getValue().getBytesWritten() + " bytes"))
+                        .append("];\n");
+                }
+            }
+        }
+
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static String quote(String s) {
+        return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    /**
+     * @return a human-readable report of all rounds
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(rounds.size()).append(" rounds");
+        for (Round round : rounds)
+            sb.append("\n  ").append(round);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Charts how verification time and memory grow with the size of the test input, using input produced by a {@link SyntheticInputGenerator}.
+ * <p>
+ * Each step doubles the number of generated top-level types, generates fresh input, and runs a verification of it with a fresh instance of the processor
+ * under test. The elapsed time and the bytes allocated by the verifying thread are recorded for each step and printed as a table with a simple text chart.
+ * The first step is run once, unmeasured, beforehand so that class loading and JIT warm-up do not dominate it.
+ * <p>
+ * This can be run from the command line:
+ * 
+ * <pre>
+ *   java uk.co.mutability.test.processors.ScalingDriver [-types N] [-members N] [-depth N] [-density F] [-trigger FORMAT] [-steps N] processorClassName
+ * </pre>
+ */
+public class ScalingDriver {
+    /**
+     * The measurements taken for one step.
+     */
+    public static final class Sample {
+        Sample(int typeCount, int elementCount, int expectedDiagnosticCount, int reportedDiagnosticCount, long elapsedNanos, long allocatedBytes) {
+            this.typeCount = typeCount;
+            this.elementCount = elementCount;
+            this.expectedDiagnosticCount = expectedDiagnosticCount;
+            this.reportedDiagnosticCount = reportedDiagnosticCount;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        /** The number of top-level types in the input */
+        public final int typeCount;
+        /** The number of members and nested types in the input */
+        public final int elementCount;
+        /** The number of expected diagnostics in the input */
+        public final int expectedDiagnosticCount;
+        /** The number of diagnostics reported by the verification; non-zero usually means the processor and trigger format do not agree */
+        public final int reportedDiagnosticCount;
+        /** The wall time taken by the verification */
+        public final long elapsedNanos;
+        /** The bytes allocated by the verifying thread, or -1 if the JVM cannot measure this */
+        public final long allocatedBytes;
+    }
+
+    /** The generator to produce input with; its type count is changed on each step */
+    private final SyntheticInputGenerator generator;
+    /** The processor to construct for each step */
+    private final Class<? extends Processor> processorClass;
+
+    /**
+     * @param generator the generator to produce input with
+     * @param processorClass the processor under test; this must match the processor name the generator was built with
+     */
+    public ScalingDriver(SyntheticInputGenerator generator, Class<? extends Processor> processorClass) {
+        this.generator = generator;
+        this.processorClass = processorClass;
+    }
+
+    /**
+     * Run a series of verifications of increasing size.
+     * 
+     * @param initialTypeCount the number of top-level types to generate on the first step
+     * @param steps the number of steps to run; the type count doubles on each step
+     * @param out where to print the results as they are measured, or null
+     * @return the measurements for each step
+     */
+    public List<Sample> run(int initialTypeCount, int steps, PrintStream out) {
+        if (out != null)
+            out.printf("%8s %10s %10s %10s %12s %14s%n", "types", "elements", "expected", "reported", "time (ms)", "alloc (KB)");
+
+        List<Sample> samples = new ArrayList<Sample>(steps);
+        int typeCount = initialTypeCount;
+        for (int step = -1; step < steps; ++step) {
+            generator.setTypeCount(typeCount);
+            List<JavaFileObject> sources = generator.generate();
+
+            Processor processor;
+            try {
+                processor = processorClass.newInstance();
+            } catch (InstantiationException e) {
+                throw new InstantiationError("Unable to construct processor: " + e.getMessage());
+            } catch (IllegalAccessException e) {
+                throw new IllegalAccessError(e.getMessage());
+            }
+
+            System.gc();
+            long allocatedBefore = AllocationCounter.currentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            List<Diagnostic<? extends JavaFileObject>> diagnostics = Verifier.checkProcessorDiagnostics(processor, sources);
+            long elapsed = System.nanoTime() - start;
+            long allocatedAfter = AllocationCounter.currentThreadAllocatedBytes();
+
+            if (step < 0)
+                continue; // warm-up run
+
+            Sample sample = new Sample(typeCount, generator.getElementCount(), generator.getExpectedDiagnosticCount(), diagnostics.size(), elapsed,
+                                       (allocatedBefore < 0 || allocatedAfter < 0) ? -1 : allocatedAfter - allocatedBefore);
+            samples.add(sample);
+            if (out != null)
+                out.printf("%8d %10d %10d %10d %12.1f %14d%n", sample.typeCount, sample.elementCount, sample.expectedDiagnosticCount,
+                           sample.reportedDiagnosticCount, sample.elapsedNanos / 1e6, sample.allocatedBytes < 0 ? -1 : sample.allocatedBytes / 1024);
+
+            typeCount *= 2;
+        }
+
+        if (out != null)
+            chart(samples, out);
+        return samples;
+    }
+
+    /**
+     * Print a text chart of time and allocation per element for each sample. If verification scales linearly, the bars stay the same length; growing bars
+     * show where it stops scaling.
+     */
+    private static void chart(List<Sample> samples, PrintStream out) {
+        double maxTime = 0, maxAlloc = 0;
+        for (Sample sample : samples) {
+            maxTime = Math.max(maxTime, perElement(sample.elapsedNanos, sample));
+            maxAlloc = Math.max(maxAlloc, perElement(sample.allocatedBytes, sample));
+        }
+
+        out.println();
+        out.printf("%10s  %-40s  %-40s%n", "elements", "time per element", "allocation per element");
+        for (Sample sample : samples) {
+            out.printf("%10d  %-40s  %-40s%n", sample.elementCount, bar(perElement(sample.elapsedNanos, sample), maxTime),
+                       bar(perElement(sample.allocatedBytes, sample), maxAlloc));
+        }
+    }
+
+    private static double perElement(long value, Sample sample) {
+        if (value < 0)
+            return 0;
+        return (double) value / Math.max(1, sample.elementCount);
+    }
+
+    private static String bar(double value, double max) {
+        int length = (max <= 0 ? 0 : (int) Math.round(40 * value / max));
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; ++i)
+            sb.append('#');
+        return sb.toString();
+    }
+
+    /**
+     * Command-line entry point; see the class documentation for usage.
+     * 
+     * @param args command-line arguments
+     * @throws ClassNotFoundException if the processor class cannot be found
+     */
+    public static void main(String[] args) throws ClassNotFoundException {
+        int types = 1, members = 10, depth = 0, steps = 8;
+        double density = 0.5;
+        String trigger = null;
+        String processorClassName = null;
+
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if (arg.equals("-types") && i + 1 < args.length)
+                types = Integer.parseInt(args[++i]);
+            else if (arg.equals("-members") && i + 1 < args.length)
+                members = Integer.parseInt(args[++i]);
+            else if (arg.equals("-depth") && i + 1 < args.length)
+                depth = Integer.parseInt(args[++i]);
+            else if (arg.equals("-density") && i + 1 < args.length)
+                density = Double.parseDouble(args[++i]);
+            else if (arg.equals("-trigger") && i + 1 < args.length)
+                trigger = args[++i];
+            else if (arg.equals("-steps") && i + 1 < args.length)
+                steps = Integer.parseInt(args[++i]);
+            else if (!arg.startsWith("-") && processorClassName == null)
+                processorClassName = arg;
+            else
+                usage("Unexpected argument: " + arg);
+        }
+
+        if (processorClassName == null)
+            usage("No processor class given");
+
+        SyntheticInputGenerator generator = new SyntheticInputGenerator(processorClassName);
+        generator.setMembersPerType(members);
+        generator.setNestingDepth(depth);
+        generator.setExpectationDensity(density);
+        generator.setTriggerFormat(trigger);
+
+        new ScalingDriver(generator, Class.forName(processorClassName).asSubclass(Processor.class)).run(types, steps, System.out);
+    }
+
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: ScalingDriver [-types N] [-members N] [-depth N] [-density F] [-trigger FORMAT] [-steps N] processorClassName");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Runs verifications of many test classes across a pool of worker JVMs.
+ * <p>
+ * Each worker is a separate JVM that verifies one test class at a time with {@link Verifier}, so that processors that keep global static state cannot
+ * interfere with verifications running in other workers. Workers stay alive between test classes, pulling the next class from a shared queue whenever they
+ * finish one, so a slow test class holds up only its own worker and each JVM is started only once. If a worker dies, the test class it was running is
+ * reported as failed and a replacement worker is started.
+ * <p>
+ * Test classes can be named explicitly, or discovered from the expectation indexes that {@link ExpectationIndexProcessor} writes when test sources are
+ * compiled. Command-line usage:
+ * 
+ * <pre>
+ * ShardedRunner [-workers N] [-cp CLASSPATH] [-jvmArg ARG]... [-compilerArg ARG]... [testClassName...]
+ * </pre>
+ * 
+ * The default is one worker per available processor, and the runner's own class path. Workers talk to the runner over their standard input and output;
+ * anything the processor under test prints to standard output is sent to standard error instead.
+ */
+public class ShardedRunner {
+    /**
+     * The outcome of verifying one test class.
+     */
+    public static final class Result {
+        private final String className;
+        private final boolean passed;
+        private final List<String> messages;
+        private final long elapsedNanos;
+        private final int worker;
+
+        Result(String className, boolean passed, List<String> messages, long elapsedNanos, int worker) {
+            this.className = className;
+            this.passed = passed;
+            this.messages = Collections.unmodifiableList(messages);
+            this.elapsedNanos = elapsedNanos;
+            this.worker = worker;
+        }
+
+        /** @return the name of the test class */
+        public String getClassName() {
+            return className;
+        }
+
+        /** @return true if verification produced no diagnostics */
+        public boolean isPassed() {
+            return passed;
+        }
+
+        /** @return the diagnostic messages produced, or a description of the failure if verification could not run */
+        public List<String> getMessages() {
+            return messages;
+        }
+
+        /** @return the wall time the worker spent verifying the test class, or 0 if the worker died */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /** @return the number of the worker that ran the verification */
+        public int getWorker() {
+            return worker;
+        }
+
+        @Override
+        public String toString() {
+            return className + (passed ? " passed" : " FAILED") + " in " + (elapsedNanos / 1000000) + "ms on worker " + worker;
+        }
+    }
+
+    /** Protocol lines exchanged with workers */
+    private static final String NEXT = "next", DONE = "done", RESULT = "result";
+
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private String classPath = System.getProperty("java.class.path");
+    private final List<String> jvmArguments = new ArrayList<String>();
+    private final List<String> compilerArguments = new ArrayList<String>();
+
+    /**
+     * @param workers the number of worker JVMs to run; defaults to the number of available processors
+     */
+    public void setWorkers(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("Need at least one worker");
+        this.workers = workers;
+    }
+
+    /**
+     * @param classPath the class path for worker JVMs; it must include ap-test-utils, the processors under test and the test classes. Defaults to the class
+     *            path of this JVM.
+     */
+    public void setClassPath(String classPath) {
+        this.classPath = classPath;
+    }
+
+    /**
+     * @param argument an extra argument for the worker JVMs, such as a heap size
+     */
+    public void addJvmArgument(String argument) {
+        jvmArguments.add(argument);
+    }
+
+    /**
+     * @param argument an extra argument for the compiler run by each verification
+     */
+    public void addCompilerArgument(String argument) {
+        compilerArguments.add(argument);
+    }
+
+    /**
+     * Find the test classes that have expectation indexes on a class path, without loading them.
+     * 
+     * @param classPath the class path to search; directories and JAR files are searched
+     * @return the binary names of the test classes found, in sorted order
+     * @throws IOException if a JAR file cannot be read
+     */
+    public static List<String> discover(String classPath) throws IOException {
+        TreeSet<String> found = new TreeSet<String>();
+        for (String entry : classPath.split(File.pathSeparator)) {
+            if (entry.length() == 0)
+                continue;
+
+            File file = new File(entry);
+            if (file.isDirectory()) {
+                File[] indexes = new File(file, ExpectationIndex.RESOURCE_PREFIX).listFiles();
+                if (indexes != null) {
+                    for (File index : indexes)
+                        addIndexed(found, index.getName());
+                }
+            } else if (file.isFile()) {
+                ZipFile zip = new ZipFile(file);
+                try {
+                    for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+                        String name = e.nextElement().getName();
+                        if (name.startsWith(ExpectationIndex.RESOURCE_PREFIX) && name.indexOf('/', ExpectationIndex.RESOURCE_PREFIX.length()) == -1)
+                            addIndexed(found, name.substring(ExpectationIndex.RESOURCE_PREFIX.length()));
+                    }
+                } finally {
+                    zip.close();
+                }
+            }
+        }
+        return new ArrayList<String>(found);
+    }
+
+    private static void addIndexed(Collection<String> found, String indexName) {
+        if (indexName.endsWith(".idx"))
+            found.add(indexName.substring(0, indexName.length() - ".idx".length()));
+    }
+
+    /**
+     * Verify a set of test classes across the worker JVMs, and wait for all of them to finish.
+     * 
+     * @param classNames the binary names of the test classes
+     * @return the results, in the same order as the class names
+     * @throws InterruptedException if interrupted while waiting; the workers are killed
+     */
+    public List<Result> run(List<String> classNames) throws InterruptedException {
+        final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<String>(classNames);
+        final Map<String,Result> results = Collections.synchronizedMap(new HashMap<String,Result>());
+
+        List<WorkerThread> threads = new ArrayList<WorkerThread>();
+        for (int i = 0; i < Math.min(workers, classNames.size()); ++i) {
+            WorkerThread thread = new WorkerThread(i + 1, queue, results);
+            threads.add(thread);
+            thread.start();
+        }
+
+        try {
+            for (WorkerThread thread : threads)
+                thread.join();
+        } finally {
+            for (WorkerThread thread : threads)
+                thread.kill();
+        }
+
+        List<Result> ordered = new ArrayList<Result>();
+        for (String className : classNames) {
+            Result result = results.get(className);
+            if (result == null)
+                result = new Result(className, false, Collections.singletonList("Not run"), 0, 0);
+            ordered.add(result);
+        }
+        return ordered;
+    }
+
+    /**
+     * Feeds test classes to one worker JVM at a time, starting a replacement whenever a worker dies, until the queue is empty.
+     */
+    private class WorkerThread extends Thread {
+        private final int number;
+        private final ConcurrentLinkedQueue<String> queue;
+        private final Map<String,Result> results;
+        private volatile Process process;
+
+        WorkerThread(int number, ConcurrentLinkedQueue<String> queue, Map<String,Result> results) {
+            super("sharded runner worker " + number);
+            this.number = number;
+            this.queue = queue;
+            this.results = results;
+            setDaemon(true);
+        }
+
+        void kill() {
+            Process p = process;
+            if (p != null)
+                p.destroy();
+        }
+
+        @Override
+        public void run() {
+            while (!queue.isEmpty()) {
+                String inFlight = null;
+                try {
+                    process = startWorker();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+                    Writer out = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        if (line.equals(NEXT)) {
+                            inFlight = queue.poll();
+                            out.write((inFlight == null ? DONE : inFlight) + "\n");
+                            out.flush();
+                            if (inFlight == null)
+                                break;
+                        } else if (line.startsWith(RESULT + "\t")) {
+                            Result result = parseResult(line, number);
+                            results.put(result.getClassName(), result);
+                            inFlight = null;
+                        }
+                    }
+
+                    out.close();
+                    process.waitFor();
+                } catch (IOException e) {
+                    if (inFlight == null)
+                        inFlight = queue.poll(); // Could not even start a worker; fail something rather than spin
+                    if (inFlight == null)
+                        return;
+                } catch (InterruptedException e) {
+                    kill();
+                    return;
+                }
+
+                if (inFlight != null) {
+                    Integer exit = exitValue(process);
+                    results.put(inFlight, new Result(inFlight, false, Collections.singletonList("Worker JVM exited" + (exit != null ? " with status " + exit : "") +
+                                                                                                 " while verifying this class"), 0, number));
+                }
+            }
+        }
+    }
+
+    private static Integer exitValue(Process process) {
+        if (process == null)
+            return null;
+        try {
+            return process.exitValue();
+        } catch (IllegalThreadStateException e) {
+            return null;
+        }
+    }
+
+    private Process startWorker() throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(jvmArguments);
+        command.add("-cp");
+        command.add(classPath);
+        command.add(ShardedRunner.class.getName());
+        command.add("-worker");
+        command.addAll(compilerArguments);
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return builder.start();
+    }
+
+    private static Result parseResult(String line, int worker) {
+        String[] fields = line.split("\t", -1);
+        List<String> messages = new ArrayList<String>();
+        for (int i = 4; i < fields.length; ++i)
+            messages.add(ExpectationIndex.unescape(fields[i]));
+        return new Result(ExpectationIndex.unescape(fields[1]), Boolean.parseBoolean(fields[2]), messages, Long.parseLong(fields[3]), worker);
+    }
+
+    /**
+     * The worker side of the protocol: ask for a test class, verify it, report the result, and repeat until told there is no more work.
+     */
+    private static void runWorker(String[] compilerArgs) throws IOException {
+        PrintStream protocol = new PrintStream(System.out, true, "UTF-8");
+        System.setOut(System.err); // Keep the processor under test from corrupting the protocol
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+
+        while (true) {
+            protocol.println(NEXT);
+            String className = in.readLine();
+            if (className == null || className.equals(DONE))
+                return;
+
+            StringBuilder line = new StringBuilder(RESULT).append('\t').append(ExpectationIndex.escape(className));
+            long start = System.nanoTime();
+            try {
+                List<Diagnostic<? extends JavaFileObject>> diagnostics = Verifier.verifyByName(className, compilerArgs);
+                line.append('\t').append(diagnostics.isEmpty()).append('\t').append(System.nanoTime() - start);
+                for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics)
+                    line.append('\t').append(ExpectationIndex.escape(diagnostic.getMessage(null)));
+            } catch (Throwable t) {
+                line.append("\tfalse\t").append(System.nanoTime() - start).append('\t').append(ExpectationIndex.escape("Verification failed: " + t));
+            }
+            protocol.println(line);
+        }
+    }
+
+    /**
+     * Print the failures and a one-line summary of a run.
+     * 
+     * @param results the results of the run
+     * @param elapsedNanos the wall time of the whole run
+     * @param out the stream to print to
+     * @return the number of failures
+     */
+    public static int printSummary(List<Result> results, long elapsedNanos, PrintStream out) {
+        int failures = 0;
+        long busyNanos = 0;
+        for (Result result : results) {
+            busyNanos += result.getElapsedNanos();
+            if (result.isPassed())
+                continue;
+
+            ++failures;
+            out.println(result);
+            for (String message : result.getMessages())
+                out.println("    " + message.replace("\n", "\n    "));
+        }
+
+        out.println(results.size() + " test classes, " + failures + " failed, " + (elapsedNanos / 1000000) + "ms elapsed, " + (busyNanos / 1000000) +
+                    "ms verifying");
+        return failures;
+    }
+
+    /**
+     * Command-line entry point; see the class documentation for usage.
+     * 
+     * @param args command-line arguments
+     * @throws Exception if the run fails
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("-worker")) {
+            String[] compilerArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, compilerArgs, 0, compilerArgs.length);
+            runWorker(compilerArgs);
+            return;
+        }
+
+        ShardedRunner runner = new ShardedRunner();
+        List<String> classNames = new ArrayList<String>();
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if (arg.equals("-workers") && i + 1 < args.length)
+                runner.setWorkers(Integer.parseInt(args[++i]));
+            else if (arg.equals("-cp") && i + 1 < args.length)
+                runner.setClassPath(args[++i]);
+            else if (arg.equals("-jvmArg") && i + 1 < args.length)
+                runner.addJvmArgument(args[++i]);
+            else if (arg.equals("-compilerArg") && i + 1 < args.length)
+                runner.addCompilerArgument(args[++i]);
+            else if (!arg.startsWith("-"))
+                classNames.add(arg);
+            else
+                usage("Unexpected argument: " + arg);
+        }
+
+        if (classNames.isEmpty())
+            classNames = discover(runner.classPath);
+        if (classNames.isEmpty())
+            usage("No test classes given, and none with expectation indexes found on the class path");
+
+        long start = System.nanoTime();
+        List<Result> results = runner.run(classNames);
+        int failures = printSummary(results, System.nanoTime() - start, System.out);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: ShardedRunner [-workers N] [-cp CLASSPATH] [-jvmArg ARG]... [-compilerArg ARG]... [testClassName...]");
+        System.exit(2);
+    }
+}
@@ -20,9 +20,15 @@
 
 package uk.co.mutability.test.processors;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
 
 /**
  * A simple data-holding implementation of Diagnostic.
@@ -113,6 +119,50 @@ public class SimpleDiagnostic<S> implements Diagnostic<S> {
     public SimpleDiagnostic(Diagnostic.Kind kind, String message) {
         this(kind, message, null, null, NOPOS, NOPOS, NOPOS, NOPOS, NOPOS);
     }
+
+    /**
+     * Take detached snapshots of diagnostics reported by a compiler. The compiler's own diagnostics refer to its file objects, which keep its file manager
+     * and context reachable, so a result that holds them keeps the whole compilation in memory. Each snapshot keeps the kind, message, code and positions,
+     * with the message formatted in the default locale; its source keeps only the URI, name and kind of the original file object. Diagnostics with the same
+     * source share one detached source.
+     * 
+     * @param diagnostics the diagnostics to copy
+     * @return an unmodifiable list of snapshots, in the same order
+     */
+    public static List<Diagnostic<? extends JavaFileObject>> detach(List<? extends Diagnostic<? extends JavaFileObject>> diagnostics) {
+        List<Diagnostic<? extends JavaFileObject>> detached = new ArrayList<Diagnostic<? extends JavaFileObject>>(diagnostics.size());
+        Map<JavaFileObject,JavaFileObject> sources = new HashMap<JavaFileObject,JavaFileObject>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics) {
+            if (diagnostic instanceof SimpleDiagnostic && (diagnostic.getSource() == null || diagnostic.getSource() instanceof DetachedFileObject)) {
+                detached.add(diagnostic); // Already detached
+                continue;
+            }
+
+            JavaFileObject source = diagnostic.getSource();
+            if (source != null) {
+                JavaFileObject detachedSource = sources.get(source);
+                if (detachedSource == null) {
+                    detachedSource = new DetachedFileObject(source);
+                    sources.put(source, detachedSource);
+                }
+                source = detachedSource;
+            }
+
+            String message = diagnostic.getMessage(null);
+            SimpleDiagnostic<JavaFileObject> snapshot;
+            try {
+                snapshot = new SimpleDiagnostic<JavaFileObject>(diagnostic.getKind(), message, diagnostic.getCode(), source, diagnostic.getPosition(),
+                                                               diagnostic.getLineNumber(), diagnostic.getColumnNumber(), diagnostic.getStartPosition(),
+                                                               diagnostic.getEndPosition());
+            } catch (IllegalArgumentException e) {
+                // Not every compiler keeps to the constraints on positions, so keep the source without them
+                snapshot = new SimpleDiagnostic<JavaFileObject>(diagnostic.getKind(), message, diagnostic.getCode(), source, NOPOS, NOPOS, NOPOS, NOPOS,
+                                                               NOPOS);
+            }
+            detached.add(snapshot);
+        }
+        return Collections.unmodifiableList(detached);
+    }
     
     @Override
     public S getSource() {
@@ -159,4 +209,19 @@ public class SimpleDiagnostic<S> implements Diagnostic<S> {
         return kind;
     }
 
+    /**
+     * @return the diagnostic in the compiler's usual form, such as "Foo.java:12: error: message"
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (source != null) {
+            sb.append(source instanceof JavaFileObject ? ((JavaFileObject) source).getName() : source);
+            if (lineNumber != NOPOS)
+                sb.append(':').append(lineNumber);
+            sb.append(": ");
+        }
+        return sb.append(kind.toString().toLowerCase(Locale.ENGLISH).replace('_', ' ')).append(": ").append(message).toString();
+    }
+
 }
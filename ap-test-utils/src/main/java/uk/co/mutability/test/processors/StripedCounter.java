@@ -0,0 +1,82 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without contending on one memory location. Each thread adds to one of several stripes, chosen by its thread
+ * id, and each stripe is padded onto a cache line of its own; reading the counter sums the stripes. The counter also tracks the largest single value
+ * added, which is only written when a new maximum is seen.
+ */
+final class StripedCounter {
+    /** The number of longs from one stripe to the next, so that stripes do not share a 64-byte cache line */
+    private static final int PADDING = 8;
+    /** The number of stripes: a power of two at least the number of processors, up to 64 */
+    private static final int STRIPES = Math.min(64, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)));
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param value the value to add; it is also compared with the largest value added so far
+     */
+    void add(long value) {
+        // Thread ids are allocated in sequence, so their low bits spread threads evenly over the stripes
+        cells.getAndAdd((int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING, value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+            current = max.get();
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    /**
+     * @return the sum of the values added; concurrent additions may or may not be included
+     */
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; ++i)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+    /**
+     * @return the largest single value added, or 0 if none has been
+     */
+    long max() {
+        long value = max.get();
+        return value == Long.MIN_VALUE ? 0 : value;
+    }
+
+    /**
+     * Set the counter back to zero and forget the maximum. Additions made concurrently may be lost.
+     */
+    void reset() {
+        for (int i = 0; i < STRIPES; ++i)
+            cells.set(i * PADDING, 0);
+        max.set(Long.MIN_VALUE);
+    }
+}
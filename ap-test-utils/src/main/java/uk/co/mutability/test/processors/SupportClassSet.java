@@ -0,0 +1,203 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * An immutable set of class files and resources that many verifications compile against, such as a fixture hierarchy that test inputs extend.
+ * <p>
+ * Without a support set, every verification has javac find, read and complete those classes again through the standard file manager. A support set is
+ * compiled, loaded or mapped once; registering it with {@link #register} adds it to the class path of every {@link MemoryFileManager} created
+ * afterwards, and so of every verification run by {@link Verifier}. Its classes are found after a file manager's own in-memory files and archives, and
+ * before the delegate's class path, and they are found even when the class path is isolated. Since the set never changes, any number of file managers
+ * and threads can share it without locking.
+ * <p>
+ * A file manager can use a different set, or none, with {@link MemoryFileManager#setSupportClasses}.
+ */
+public final class SupportClassSet {
+    private static final AtomicInteger COUNT = new AtomicInteger();
+    private static volatile SupportClassSet registered;
+
+    private final MappedJarArchive archive;
+
+    private SupportClassSet(MappedJarArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Compile a set of support classes. Source files may be on disk, or in memory (see {@link MemorySourceFile}).
+     * 
+     * @param sources the source files
+     * @param compilerArgs extra arguments for the compiler, such as a class path that the sources need
+     * @return the compiled classes
+     * @throws IllegalArgumentException if the sources do not compile
+     * @throws IOException if the class files cannot be collected
+     */
+    public static SupportClassSet compile(Iterable<? extends JavaFileObject> sources, String... compilerArgs) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+            throw new UnsupportedOperationException("No system compiler available via the tool interface");
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        MemoryFileManager fileManager = new MemoryFileManager(compiler.getStandardFileManager(diagnostics, null, null));
+        fileManager.setSupportClasses(null);
+        List<String> options = new ArrayList<String>(Arrays.asList(compilerArgs));
+        options.add("-proc:none");
+        if (!compiler.getTask(null, fileManager, diagnostics, options, null, sources).call()) {
+            StringBuilder message = new StringBuilder("Support classes failed to compile:");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+                message.append("\n ").append(diagnostic.getMessage(null));
+            throw new IllegalArgumentException(message.toString());
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        fileManager.exportArchive(Channels.newChannel(bytes), StandardLocation.CLASS_OUTPUT, false);
+        return wrap(bytes);
+    }
+
+    /**
+     * Collect the class files of already-compiled classes, and of their member classes, from a class loader. The classes are not initialised.
+     * 
+     * @param loader the class loader to read class files from
+     * @param classNames the binary names of the classes
+     * @return the classes
+     * @throws ClassNotFoundException if a class cannot be found
+     * @throws IOException if a class file cannot be read
+     */
+    public static SupportClassSet load(ClassLoader loader, String... classNames) throws ClassNotFoundException, IOException {
+        Map<String,byte[]> classFiles = new TreeMap<String,byte[]>();
+        List<Class<?>> pending = new ArrayList<Class<?>>();
+        for (String className : classNames)
+            pending.add(Class.forName(className, false, loader));
+
+        while (!pending.isEmpty()) {
+            Class<?> type = pending.remove(pending.size() - 1);
+            String path = type.getName().replace('.', '/') + JavaFileObject.Kind.CLASS.extension;
+            if (classFiles.containsKey(path))
+                continue;
+
+            InputStream in = loader.getResourceAsStream(path);
+            if (in == null)
+                throw new IOException("No class file for " + type.getName());
+            try {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                for (int n; (n = in.read(buffer)) >= 0;)
+                    content.write(buffer, 0, n);
+                classFiles.put(path, content.toByteArray());
+            } finally {
+                in.close();
+            }
+            pending.addAll(Arrays.asList(type.getDeclaredClasses()));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        for (Map.Entry<String,byte[]> classFile : classFiles.entrySet()) {
+            byte[] content = classFile.getValue();
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            ZipEntry entry = new ZipEntry(classFile.getKey());
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+            out.putNextEntry(entry);
+            out.write(content);
+            out.closeEntry();
+        }
+        out.close();
+        return wrap(bytes);
+    }
+
+    /**
+     * Map a JAR file of support classes. The file must not change while the set is in use.
+     * 
+     * @param jar the JAR file
+     * @return the classes in the JAR
+     * @throws IOException if the file cannot be read or is not a supported archive
+     */
+    public static SupportClassSet open(File jar) throws IOException {
+        return new SupportClassSet(MappedJarArchive.open(jar));
+    }
+
+    private static SupportClassSet wrap(ByteArrayOutputStream bytes) throws IOException {
+        ByteBuffer content = ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+        return new SupportClassSet(MappedJarArchive.wrap("/support-classes/" + COUNT.incrementAndGet(), content));
+    }
+
+    /**
+     * Make a set the default class path content of every {@link MemoryFileManager} created from now on. File managers that already exist are not
+     * affected.
+     * 
+     * @param supportClasses the set to share, or null to stop sharing one
+     */
+    public static void register(SupportClassSet supportClasses) {
+        registered = supportClasses;
+    }
+
+    /** @return the set given to {@link #register}, or null if there is none */
+    public static SupportClassSet getRegistered() {
+        return registered;
+    }
+
+    /** @return the archive holding the set's files */
+    MappedJarArchive getArchive() {
+        return archive;
+    }
+
+    /** @return the binary names of the classes in the set */
+    public List<String> getClassNames() {
+        List<String> names = new ArrayList<String>();
+        for (String name : archive.getEntryNames()) {
+            if (name.endsWith(JavaFileObject.Kind.CLASS.extension))
+                names.add(name.substring(0, name.length() - JavaFileObject.Kind.CLASS.extension.length()).replace('/', '.'));
+        }
+        return names;
+    }
+
+    @Override
+    public String toString() {
+        return "SupportClassSet[" + archive + "]";
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates synthetic test input of a configurable size, for measuring how a processor and the verifier scale.
+ * <p>
+ * Each generated top-level type is annotated with {@link VerifyDiagnostics} naming the processor under test, and contains a configurable number of members
+ * (alternately fields and methods) plus a chain of nested types, each of which contains the same number of members again. A configurable fraction of the
+ * members and nested types carry an {@link ExpectDiagnostic} annotation with a unique message, optionally accompanied by a "trigger" annotation that makes the
+ * processor under test generate that message.
+ * <p>
+ * The generated sources are held in memory and can be passed to {@link Verifier#checkProcessorDiagnostics(javax.annotation.processing.Processor, Iterable,
+ * String...)}. {@link ScalingDriver} uses this class to chart verification cost as the input grows.
+ */
+public class SyntheticInputGenerator {
+    /** The name of the processor class to name in the generated {@link VerifyDiagnostics} annotations */
+    private final String processorClassName;
+
+    private String packageName = "synthetic";
+    private int typeCount = 1;
+    private int membersPerType = 10;
+    private int nestingDepth = 0;
+    private double expectationDensity = 0.5;
+    private String triggerFormat = null;
+    private long seed = 0;
+
+    /** The number of elements that could carry an expectation in the most recently generated input */
+    private int elementCount;
+    /** The number of expected diagnostics in the most recently generated input */
+    private int expectedDiagnosticCount;
+
+    /**
+     * @param processorClassName the fully qualified name of the processor class under test
+     */
+    public SyntheticInputGenerator(String processorClassName) {
+        this.processorClassName = processorClassName;
+    }
+
+    /** @param packageName the package to generate types in; defaults to "synthetic" */
+    public void setPackageName(String packageName) {
+        this.packageName = packageName;
+    }
+
+    /** @param typeCount the number of top-level types (and so source files) to generate */
+    public void setTypeCount(int typeCount) {
+        if (typeCount < 1)
+            throw new IllegalArgumentException("typeCount must be at least 1");
+        this.typeCount = typeCount;
+    }
+
+    /** @param membersPerType the number of members to generate in each top-level and nested type */
+    public void setMembersPerType(int membersPerType) {
+        if (membersPerType < 0)
+            throw new IllegalArgumentException("membersPerType must not be negative");
+        this.membersPerType = membersPerType;
+    }
+
+    /** @param nestingDepth the depth of the chain of nested types inside each top-level type; 0 generates no nested types */
+    public void setNestingDepth(int nestingDepth) {
+        if (nestingDepth < 0)
+            throw new IllegalArgumentException("nestingDepth must not be negative");
+        this.nestingDepth = nestingDepth;
+    }
+
+    /** @param expectationDensity the fraction (0.0 - 1.0) of members and nested types that carry an {@link ExpectDiagnostic} */
+    public void setExpectationDensity(double expectationDensity) {
+        if (expectationDensity < 0.0 || expectationDensity > 1.0)
+            throw new IllegalArgumentException("expectationDensity must be between 0.0 and 1.0");
+        this.expectationDensity = expectationDensity;
+    }
+
+    /**
+     * Set the annotation used to make the processor under test generate each expected diagnostic. The format is passed to {@link String#format} with the
+     * expected message as its only argument, for example <code>"@my.processor.Complain(\"%s\")"</code>. If null (the default), no trigger annotation is
+     * generated, which is only useful for measuring the cost of reporting missing diagnostics.
+     * 
+     * @param triggerFormat the trigger annotation format, or null
+     */
+    public void setTriggerFormat(String triggerFormat) {
+        this.triggerFormat = triggerFormat;
+    }
+
+    /** @param seed the random seed used to choose which elements carry expectations; the same seed always generates the same input */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /** @return the number of members and nested types in the most recently generated input */
+    public int getElementCount() {
+        return elementCount;
+    }
+
+    /** @return the number of expected diagnostics in the most recently generated input */
+    public int getExpectedDiagnosticCount() {
+        return expectedDiagnosticCount;
+    }
+
+    /**
+     * Generate a new set of test input based on the current configuration.
+     * 
+     * @return the generated source files, one per top-level type
+     */
+    public List<JavaFileObject> generate() {
+        Random random = new Random(seed);
+        elementCount = 0;
+        expectedDiagnosticCount = 0;
+
+        List<JavaFileObject> sources = new ArrayList<JavaFileObject>(typeCount);
+        for (int i = 0; i < typeCount; ++i) {
+            String simpleName = "SyntheticType" + i;
+            StringBuilder sb = new StringBuilder();
+            if (packageName.length() > 0)
+                sb.append("package ").append(packageName).append(";\n\n");
+
+            sb.append("@uk.co.mutability.test.processors.VerifyDiagnostics(").append(processorClassName).append(".class)\n");
+            sb.append("public class ").append(simpleName).append(" {\n");
+            generateBody(sb, random, 1);
+            sb.append("}\n");
+
+            String className = (packageName.length() > 0 ? packageName + "." + simpleName : simpleName);
+            sources.add(new MemorySourceFile(className, sb.toString()));
+        }
+
+        return sources;
+    }
+
+    /**
+     * Generate the members of one type, plus the next nested type in the chain if we have not yet reached the nesting depth.
+     */
+    private void generateBody(StringBuilder sb, Random random, int depth) {
+        String indent = indent(depth);
+        for (int m = 0; m < membersPerType; ++m) {
+            generateAnnotations(sb, random, indent);
+            if (m % 2 == 0)
+                sb.append(indent).append("public int member").append(m).append(";\n");
+            else
+                sb.append(indent).append("public void member").append(m).append("() {}\n");
+        }
+
+        if (depth <= nestingDepth) {
+            generateAnnotations(sb, random, indent);
+            sb.append(indent).append("public static class Nested").append(depth).append(" {\n");
+            generateBody(sb, random, depth + 1);
+            sb.append(indent).append("}\n");
+        }
+    }
+
+    /**
+     * Count one more element, and possibly generate an expectation (and trigger) for it.
+     */
+    private void generateAnnotations(StringBuilder sb, Random random, String indent) {
+        ++elementCount;
+        if (random.nextDouble() >= expectationDensity)
+            return;
+
+        String message = "Synthetic diagnostic " + (expectedDiagnosticCount++);
+        sb.append(indent).append("@uk.co.mutability.test.processors.ExpectDiagnostic(\"").append(message).append("\")\n");
+        if (triggerFormat != null)
+            sb.append(indent).append(String.format(triggerFormat, message)).append('\n');
+    }
+
+    private static String indent(int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; ++i)
+            sb.append("    ");
+        return sb.toString();
+    }
+}
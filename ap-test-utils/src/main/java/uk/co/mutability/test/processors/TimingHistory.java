@@ -0,0 +1,384 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A history of how long each test class took to verify, kept in a local file, used to spot performance regressions as soon as they happen.
+ * <p>
+ * Each verification appends one line to the history file with its total time, processing time, rounds and allocated bytes. Before appending, the new
+ * sample is compared with a rolling baseline of the most recent samples for the same test class. A timing or allocation is a regression if it is
+ * both more than {@link #setThreshold threshold} standard deviations above the baseline mean and more than {@link #setMinimumSlowdown a minimum fraction}
+ * above it, so that a very steady baseline does not turn noise into failures. Any increase in the number of rounds is a regression, since it is not
+ * noisy.
+ * <p>
+ * {@link Verifier} records into the history named by the {@link #HISTORY_FILE_PROPERTY} system property, or one set with
+ * {@link Verifier#setTimingHistory}. Appends lock the file, so several JVMs (such as {@link ShardedRunner} workers) can share one history.
+ */
+public class TimingHistory {
+    /** The system property naming a history file that {@link Verifier} records into by default. */
+    public static final String HISTORY_FILE_PROPERTY = "mutabilty.test.timingHistory";
+    /**
+     * The system property that, if "true", makes regressions found via {@link #HISTORY_FILE_PROPERTY} also be added as error diagnostics, so verification
+     * fails.
+     */
+    public static final String FAIL_ON_REGRESSION_PROPERTY = "mutabilty.test.timingHistory.fail";
+
+    /**
+     * One recorded verification.
+     */
+    public static final class Sample {
+        private final long timestamp;
+        private final long totalNanos;
+        private final long processingNanos;
+        private final int rounds;
+        private final long allocatedBytes;
+
+        Sample(long timestamp, long totalNanos, long processingNanos, int rounds, long allocatedBytes) {
+            this.timestamp = timestamp;
+            this.totalNanos = totalNanos;
+            this.processingNanos = processingNanos;
+            this.rounds = rounds;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        /** @return when the sample was recorded, in milliseconds since the epoch */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /** @return the wall time of the whole compilation */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /** @return the wall time spent inside the processor under test */
+        public long getProcessingNanos() {
+            return processingNanos;
+        }
+
+        /** @return the number of processing rounds */
+        public int getRounds() {
+            return rounds;
+        }
+
+        /** @return the bytes allocated inside the processor under test, or -1 if unknown */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+    }
+
+    /**
+     * A measurement that was significantly worse than its baseline.
+     */
+    public static final class Regression {
+        private final String key;
+        private final String metric;
+        private final long current;
+        private final double mean;
+        private final double standardDeviation;
+        private final int baselineSamples;
+
+        Regression(String key, String metric, long current, double mean, double standardDeviation, int baselineSamples) {
+            this.key = key;
+            this.metric = metric;
+            this.current = current;
+            this.mean = mean;
+            this.standardDeviation = standardDeviation;
+            this.baselineSamples = baselineSamples;
+        }
+
+        /** @return the test class the regression was found for */
+        public String getKey() {
+            return key;
+        }
+
+        /** @return the name of the measurement that regressed */
+        public String getMetric() {
+            return metric;
+        }
+
+        /** @return the current value */
+        public long getCurrent() {
+            return current;
+        }
+
+        /** @return the mean of the baseline */
+        public double getMean() {
+            return mean;
+        }
+
+        /** @return the standard deviation of the baseline */
+        public double getStandardDeviation() {
+            return standardDeviation;
+        }
+
+        /** @return a description of the regression */
+        public String getMessage() {
+            return String.format("Performance regression in %s for %s: %d, baseline %.0f +/- %.0f over %d runs", metric, key, current, mean,
+                                 standardDeviation, baselineSamples);
+        }
+
+        @Override
+        public String toString() {
+            return getMessage();
+        }
+    }
+
+    private final File file;
+    private int window = 20;
+    private int minimumSamples = 5;
+    private double threshold = 3.0;
+    private double minimumSlowdown = 0.2;
+    private boolean failOnRegression;
+    /** The samples for each key, oldest first; loaded from the file on first use */
+    private Map<String,LinkedList<Sample>> samples;
+
+    /**
+     * @param file the history file; it is created when the first sample is recorded
+     */
+    public TimingHistory(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return a history configured from the {@link #HISTORY_FILE_PROPERTY} and {@link #FAIL_ON_REGRESSION_PROPERTY} system properties, or null if no
+     *         history file is named
+     */
+    static TimingHistory fromSystemProperties() {
+        String path = System.getProperty(HISTORY_FILE_PROPERTY);
+        if (path == null || path.length() == 0)
+            return null;
+
+        TimingHistory history = new TimingHistory(new File(path));
+        history.setFailOnRegression(Boolean.getBoolean(FAIL_ON_REGRESSION_PROPERTY));
+        return history;
+    }
+
+    /**
+     * @param window the number of most recent samples that make up the baseline; defaults to 20
+     */
+    public synchronized void setWindow(int window) {
+        this.window = window;
+    }
+
+    /**
+     * @param minimumSamples the number of samples needed in the baseline before any regression is reported; defaults to 5
+     */
+    public synchronized void setMinimumSamples(int minimumSamples) {
+        this.minimumSamples = minimumSamples;
+    }
+
+    /**
+     * @param threshold the number of standard deviations above the baseline mean that counts as a regression; defaults to 3
+     */
+    public synchronized void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param minimumSlowdown the fraction above the baseline mean that a value must also exceed to count as a regression; defaults to 0.2 (20%)
+     */
+    public synchronized void setMinimumSlowdown(double minimumSlowdown) {
+        this.minimumSlowdown = minimumSlowdown;
+    }
+
+    /**
+     * @param failOnRegression true to report regressions as errors that fail verification; false (the default) to report them only through
+     *            {@link VerificationResult#getRegressions()}
+     */
+    public synchronized void setFailOnRegression(boolean failOnRegression) {
+        this.failOnRegression = failOnRegression;
+    }
+
+    /** @return true if regressions should fail verification */
+    public synchronized boolean isFailOnRegression() {
+        return failOnRegression;
+    }
+
+    /**
+     * @param key a test class name
+     * @return the samples recorded for it, oldest first, up to the baseline window
+     * @throws IOException if the history file cannot be read
+     */
+    public synchronized List<Sample> getSamples(String key) throws IOException {
+        LinkedList<Sample> list = load().get(key);
+        return list == null ? Collections.<Sample> emptyList() : new ArrayList<Sample>(list);
+    }
+
+    /**
+     * Record the outcome of a verification, and compare it with the baseline.
+     * 
+     * @param key the test class name
+     * @param result the result of verifying it
+     * @return any regressions found; empty if there were none or the baseline is too small
+     * @throws IOException if the history file cannot be read or appended to
+     */
+    public List<Regression> record(String key, VerificationResult result) throws IOException {
+        return record(key, result.getElapsedNanos(), result.getProcessingNanos(), result.getRoundCount(), result.getAllocatedBytes());
+    }
+
+    /**
+     * Record a measurement, and compare it with the baseline.
+     * 
+     * @param key the test class name
+     * @param totalNanos the wall time of the whole compilation
+     * @param processingNanos the wall time spent in the processor under test
+     * @param rounds the number of processing rounds
+     * @param allocatedBytes the bytes allocated in the processor under test, or -1 if unknown
+     * @return any regressions found; empty if there were none or the baseline is too small
+     * @throws IOException if the history file cannot be read or appended to
+     */
+    public synchronized List<Regression> record(String key, long totalNanos, long processingNanos, int rounds, long allocatedBytes) throws IOException {
+        LinkedList<Sample> baseline = load().get(key);
+        if (baseline == null) {
+            baseline = new LinkedList<Sample>();
+            samples.put(key, baseline);
+        }
+
+        List<Regression> regressions = new ArrayList<Regression>();
+        if (baseline.size() >= minimumSamples) {
+            checkTiming(regressions, key, "total time (ns)", totalNanos, baseline, 0);
+            checkTiming(regressions, key, "processing time (ns)", processingNanos, baseline, 1);
+            if (allocatedBytes >= 0)
+                checkTiming(regressions, key, "allocated bytes", allocatedBytes, baseline, 3);
+
+            int maxRounds = 0;
+            for (Sample sample : baseline)
+                maxRounds = Math.max(maxRounds, sample.rounds);
+            if (rounds > maxRounds)
+                regressions.add(new Regression(key, "rounds", rounds, maxRounds, 0, baseline.size()));
+        }
+
+        Sample sample = new Sample(System.currentTimeMillis(), totalNanos, processingNanos, rounds, allocatedBytes);
+        append(key, sample);
+        add(baseline, sample);
+        return regressions;
+    }
+
+    private static long metric(Sample sample, int metric) {
+        switch (metric) {
+        case 0:
+            return sample.totalNanos;
+        case 1:
+            return sample.processingNanos;
+        default:
+            return sample.allocatedBytes;
+        }
+    }
+
+    private void checkTiming(List<Regression> regressions, String key, String name, long current, List<Sample> baseline, int metric) {
+        int n = 0;
+        double sum = 0, sumSquares = 0;
+        for (Sample sample : baseline) {
+            long value = metric(sample, metric);
+            if (value < 0)
+                continue;
+            ++n;
+            sum += value;
+            sumSquares += (double) value * value;
+        }
+        if (n < minimumSamples)
+            return;
+
+        double mean = sum / n;
+        double standardDeviation = Math.sqrt(Math.max(0, (sumSquares - n * mean * mean) / (n - 1)));
+        if (current > mean + threshold * standardDeviation && current > mean * (1 + minimumSlowdown))
+            regressions.add(new Regression(key, name, current, mean, standardDeviation, n));
+    }
+
+    /** Add a sample to a baseline, keeping only the most recent {@link #window} samples */
+    private void add(LinkedList<Sample> baseline, Sample sample) {
+        baseline.addLast(sample);
+        while (baseline.size() > window)
+            baseline.removeFirst();
+    }
+
+    private Map<String,LinkedList<Sample>> load() throws IOException {
+        if (samples != null)
+            return samples;
+
+        samples = new HashMap<String,LinkedList<Sample>>();
+        if (!file.exists())
+            return samples;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 6)
+                    continue; // Skip anything malformed, such as a line half-written by a JVM that died
+                try {
+                    Sample sample = new Sample(Long.parseLong(fields[0]), Long.parseLong(fields[2]), Long.parseLong(fields[3]), Integer.parseInt(fields[4]),
+                                               Long.parseLong(fields[5]));
+                    String key = ExpectationIndex.unescape(fields[1]);
+                    LinkedList<Sample> list = samples.get(key);
+                    if (list == null) {
+                        list = new LinkedList<Sample>();
+                        samples.put(key, list);
+                    }
+                    add(list, sample);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return samples;
+    }
+
+    private void append(String key, Sample sample) throws IOException {
+        String line = sample.timestamp + "\t" + ExpectationIndex.escape(key) + "\t" + sample.totalNanos + "\t" + sample.processingNanos + "\t" +
+                      sample.rounds + "\t" + sample.allocatedBytes + "\n";
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            FileChannel channel = out.getChannel();
+            FileLock lock = channel.lock();
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(line.getBytes("UTF-8"));
+                while (bytes.hasRemaining())
+                    channel.write(bytes);
+            } finally {
+                lock.release();
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
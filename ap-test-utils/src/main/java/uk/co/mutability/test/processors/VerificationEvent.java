@@ -0,0 +1,109 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import javax.tools.Diagnostic;
+
+/**
+ * One outcome of checking the processor under test's diagnostics against expectations, as delivered to a {@link VerificationListener} while verification
+ * is still running.
+ * <p>
+ * Events describe elements by name only, so they do not retain any compiler state.
+ */
+public final class VerificationEvent {
+    /**
+     * The kinds of outcome.
+     */
+    public enum Type {
+        /** The processor generated a diagnostic that matched an expectation */
+        MATCHED,
+        /** The processor generated a diagnostic that did not match any expectation */
+        UNEXPECTED,
+        /** An expectation was not matched by any diagnostic during its round */
+        MISSING,
+        /** A {@link PerformanceBudget} limit was exceeded */
+        BUDGET_EXCEEDED
+    }
+
+    private final Type type;
+    private final int round;
+    private final Diagnostic.Kind kind;
+    private final String message;
+    private final String pattern;
+    private final String element;
+
+    VerificationEvent(Type type, int round, Diagnostic.Kind kind, String message, String pattern, String element) {
+        this.type = type;
+        this.round = round;
+        this.kind = kind;
+        this.message = message;
+        this.pattern = pattern;
+        this.element = element;
+    }
+
+    /** @return the kind of outcome */
+    public Type getType() {
+        return type;
+    }
+
+    /** @return the processing round the outcome happened in, starting from 1 */
+    public int getRound() {
+        return round;
+    }
+
+    /** @return the kind of the diagnostic generated or expected */
+    public Diagnostic.Kind getKind() {
+        return kind;
+    }
+
+    /** @return the message generated by the processor, or the budget violation; null for {@link Type#MISSING} */
+    public String getMessage() {
+        return message;
+    }
+
+    /** @return the regular expression of the expectation; null for {@link Type#UNEXPECTED} and {@link Type#BUDGET_EXCEEDED} */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /** @return a description of the element the diagnostic was attached to or expected on, or null if there is none */
+    public String getElement() {
+        return element;
+    }
+
+    /** @return true if this outcome means the verification failed */
+    public boolean isFailure() {
+        return type != Type.MATCHED;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(type).append(' ').append(kind);
+        if (element != null)
+            sb.append(" on ").append(element);
+        if (message != null)
+            sb.append(": ").append(message);
+        if (pattern != null)
+            sb.append(" (expected '").append(pattern).append("')");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A handle for a verification started by {@link Verifier#startVerification(Class, VerificationListener, String...)}. It is a {@link java.util.concurrent.Future}
+ * for the final {@link VerificationResult}, and cancelling it abandons the compilation.
+ */
+public class VerificationHandle extends FutureTask<VerificationResult> {
+    /** The verifying processor running the verification */
+    private final VerifyingProcessor processor;
+
+    VerificationHandle(VerifyingProcessor processor, Callable<VerificationResult> verification) {
+        super(verification);
+        this.processor = processor;
+    }
+
+    /**
+     * Cancel the verification. The verifying processor abandons the compilation the next time the processor under test reports a diagnostic or a new round
+     * starts; if mayInterruptIfRunning is true, the verification thread is also interrupted, which may stop a processor that is waiting.
+     * 
+     * @param mayInterruptIfRunning true to interrupt the verification thread
+     * @return false if the verification had already finished
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        processor.cancel();
+        return super.cancel(mayInterruptIfRunning);
+    }
+
+    /**
+     * Cancel the verification, interrupting the verification thread; equivalent to <code>cancel(true)</code>.
+     */
+    public void cancel() {
+        cancel(true);
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+/**
+ * Receives verification outcomes as soon as they are known, rather than when the whole compilation has finished.
+ * <p>
+ * Events are delivered on the thread that produced them, which is normally the compiler thread but may be a worker thread if the processor under test
+ * reports diagnostics from several threads. Implementations should return quickly and must be thread-safe in that case.
+ * 
+ * @see Verifier#startVerification(Class, VerificationListener, String...)
+ */
+public interface VerificationListener {
+    /**
+     * Called for each verification outcome.
+     * 
+     * @param event the outcome
+     */
+    void verificationEvent(VerificationEvent event);
+}
@@ -0,0 +1,172 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * The outcome of one verification run by {@link Verifier}: the diagnostics describing any problems, plus what was recorded about the delegate processor
+ * while it ran.
+ */
+public class VerificationResult {
+    private List<Diagnostic<? extends JavaFileObject>> diagnostics;
+    private List<TimingHistory.Regression> regressions = Collections.emptyList();
+    private IOException timingHistoryError;
+    private final FilerStatistics filerStatistics;
+    private final ModelProfile modelProfile;
+    private final RoundTrace roundTrace;
+    private final int roundCount;
+    private final long processingNanos;
+    private final long allocatedBytes;
+    private final long elapsedNanos;
+
+    /**
+     * @param diagnostics the diagnostics describing any problems
+     * @param processor the verifying processor that ran
+     * @param elapsedNanos the wall time taken by the whole compilation
+     */
+    VerificationResult(List<Diagnostic<? extends JavaFileObject>> diagnostics, VerifyingProcessor processor, long elapsedNanos) {
+        this.diagnostics = diagnostics;
+        this.filerStatistics = processor.getFilerStatistics();
+        this.modelProfile = processor.getModelProfile();
+        this.roundTrace = processor.getRoundTrace();
+        this.roundCount = processor.getRoundCount();
+        this.processingNanos = processor.getProcessingNanos();
+        this.allocatedBytes = processor.getAllocatedBytes();
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Construct the result of a verification that failed before any processor could run.
+     * 
+     * @param diagnostics the diagnostics describing the failure
+     */
+    VerificationResult(List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+        this.diagnostics = diagnostics;
+        this.filerStatistics = new FilerStatistics();
+        this.modelProfile = null;
+        this.roundTrace = new RoundTrace();
+        this.roundCount = 0;
+        this.processingNanos = 0;
+        this.allocatedBytes = 0;
+        this.elapsedNanos = 0;
+    }
+
+    /**
+     * @return a list of diagnostics if there were problems; an empty list if everything was OK. They are snapshots that do not refer to the compiler, so
+     *         keeping them does not keep the compilation in memory (see {@link SimpleDiagnostic#detach}).
+     */
+    public List<Diagnostic<? extends JavaFileObject>> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Record the performance regressions found by comparing this result with a {@link TimingHistory}.
+     * 
+     * @param regressions the regressions
+     * @param fail true to also add each regression as an error diagnostic, so that the verification fails
+     */
+    void setRegressions(List<TimingHistory.Regression> regressions, boolean fail) {
+        this.regressions = Collections.unmodifiableList(regressions);
+        if (fail && !regressions.isEmpty()) {
+            List<Diagnostic<? extends JavaFileObject>> all = new ArrayList<Diagnostic<? extends JavaFileObject>>(diagnostics);
+            for (TimingHistory.Regression regression : regressions)
+                all.add(new SimpleDiagnostic<JavaFileObject>(Diagnostic.Kind.ERROR, regression.getMessage()));
+            diagnostics = Collections.unmodifiableList(all);
+        }
+    }
+
+    /**
+     * @return the performance regressions found against the {@link TimingHistory} this result was recorded in; empty if there were none, or no history is
+     *         being kept
+     */
+    public List<TimingHistory.Regression> getRegressions() {
+        return regressions;
+    }
+
+    void setTimingHistoryError(IOException timingHistoryError) {
+        this.timingHistoryError = timingHistoryError;
+    }
+
+    /**
+     * @return the error that prevented this result from being recorded in the {@link TimingHistory}, or null if it was recorded or no history is being kept
+     */
+    public IOException getTimingHistoryError() {
+        return timingHistoryError;
+    }
+
+    /**
+     * @return the number of processing rounds the processor under test took part in
+     */
+    public int getRoundCount() {
+        return roundCount;
+    }
+
+    /**
+     * @return the wall time spent inside the processor under test's init() and process() methods
+     */
+    public long getProcessingNanos() {
+        return processingNanos;
+    }
+
+    /**
+     * @return the bytes allocated on the processing thread inside the processor under test's init() and process() methods, or -1 if the JVM cannot measure
+     *         this
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return the wall time taken by the whole compilation, including the compiler's own work
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return a record of the files written by the delegate processor
+     */
+    public FilerStatistics getFilerStatistics() {
+        return filerStatistics;
+    }
+
+    /**
+     * @return a trace of the processing rounds the processor under test took part in, showing which generated files caused extra rounds
+     */
+    public RoundTrace getRoundTrace() {
+        return roundTrace;
+    }
+
+    /**
+     * @return a profile of the delegate processor's Elements and Types calls, or null if the verification was not run with model profiling enabled (see
+     *         {@link VerifyingProcessor#PROFILE_MODEL_OPTION_NAME})
+     */
+    public ModelProfile getModelProfile() {
+        return modelProfile;
+    }
+}
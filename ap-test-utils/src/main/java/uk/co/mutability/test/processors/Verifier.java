@@ -20,11 +20,19 @@
 
 package uk.co.mutability.test.processors;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.processing.Processor;
 import javax.tools.*;
@@ -39,6 +47,52 @@ public final class Verifier {
 
     private static JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
 
+    /** The system property giving the default deadline for each verification, in milliseconds; see {@link #setDeadline}. */
+    public static final String DEADLINE_PROPERTY = "mutabilty.test.deadline";
+
+    /** How long to wait for an overdue compilation to stop once it has been cancelled, before abandoning its thread */
+    private static final long CANCEL_GRACE_MILLIS = 1000;
+
+    /** The number of stack frames of the processing thread to include when reporting an overdue verification */
+    private static final int STACK_SAMPLE_DEPTH = 40;
+
+    /** The deadline for each verification in nanoseconds, or 0 for none; see {@link #setDeadline}. */
+    private static volatile long deadlineNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(DEADLINE_PROPERTY, 0));
+
+    /** The number of diagnostics included in the message of {@link #assertNoDiagnostics(List)} */
+    public static final int DEFAULT_MAX_REPORTED_DIAGNOSTICS = 100;
+
+    /** The history to record verifications of test classes into, or null; see {@link #setTimingHistory}. */
+    private static volatile TimingHistory timingHistory = TimingHistory.fromSystemProperties();
+
+    /**
+     * Record the timings of every verification of a test class into a history, and report regressions against its baseline. By default, this is the history
+     * named by the {@link TimingHistory#HISTORY_FILE_PROPERTY} system property, if any. Verifications of in-memory sources are not recorded.
+     * 
+     * @param history the history to record into, or null to stop recording
+     */
+    public static void setTimingHistory(TimingHistory history) {
+        timingHistory = history;
+    }
+
+    /**
+     * Limit how long each verification may take, so that a processor that hangs or runs away fails its test rather than stalling the whole suite. With a
+     * deadline, each compilation runs on a thread of its own. If it has not finished by the deadline, the processing thread's stack is sampled, the
+     * verification is cancelled and its thread interrupted, and the result holds whatever diagnostics were reported so far, plus an error saying which round
+     * and which processor method was running, with the stack sample. A processor that ignores cancellation is abandoned after a short grace period; its
+     * thread is a daemon thread, so it does not stop the JVM from exiting.
+     * <p>
+     * By default, the deadline is taken from the {@link #DEADLINE_PROPERTY} system property, in milliseconds; by default there is none.
+     * 
+     * @param timeout the longest time a verification may take, or 0 for no limit
+     * @param unit the unit of the timeout
+     */
+    public static void setDeadline(long timeout, TimeUnit unit) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Negative deadline: " + timeout);
+        deadlineNanos = unit.toNanos(timeout);
+    }
+
     /**
      * Use the system java compiler to process annotations in a given class, and check that the correct set of diagnostics were generated.
      * <p>
@@ -56,14 +110,118 @@ public final class Verifier {
      * @throws Exception if something went wrong during execution
      */
     public static List<Diagnostic<? extends JavaFileObject>> checkProcessorDiagnostics(Class<?> classToProcess, String... compilerArgs) {
-        /* Identify the processor class */
+        return verify(classToProcess, compilerArgs).getDiagnostics();
+    }
+
+    /**
+     * Process annotations in a given class as for {@link #checkProcessorDiagnostics(Class, String...)}, returning the diagnostics along with a record of what
+     * the processor did.
+     * 
+     * @param classToProcess the class to perform annotation processing on
+     * @param compilerArgs any additional compiler args to pass
+     * @return the result of the verification
+     */
+    public static VerificationResult verify(Class<?> classToProcess, String... compilerArgs) {
+        return runVerification(new VerifyingProcessor(newProcessor(classToProcess)), null, Arrays.asList(classToProcess.getName()), null, compilerArgs);
+    }
+
+    /**
+     * Process annotations in a test class named by its binary name, as for {@link #verify(Class, String...)}, without loading or initializing the test class.
+     * The processor is found from the expectation index written by {@link ExpectationIndexProcessor} when the test class was compiled.
+     * 
+     * @param className the binary name of the class to perform annotation processing on
+     * @param compilerArgs any additional compiler args to pass
+     * @return the result of the verification
+     * @throws IllegalArgumentException if there is no expectation index for the class
+     */
+    public static VerificationResult verify(String className, String... compilerArgs) {
+        ClassLoader loader = contextLoader();
+        ExpectationIndex index = readIndex(loader, className);
+        if (index == null)
+            throw new IllegalArgumentException("No expectation index found for " + className + "; was it compiled with ExpectationIndexProcessor?");
+
+        return runVerification(new VerifyingProcessor(newProcessor(loader, index.getProcessorName())), null, Arrays.asList(className), null, compilerArgs);
+    }
+
+    /**
+     * Verify a test class named by its binary name, for the runners: from its expectation index, without loading the class, if it has one; otherwise by
+     * loading the class and reading its annotations, as for {@link #checkProcessorDiagnostics(Class, String...)}.
+     * 
+     * @param className the binary name of the class to perform annotation processing on
+     * @param compilerArgs any additional compiler args to pass
+     * @return a list of diagnostics if there were problems; an empty list if everything was OK
+     * @throws ClassNotFoundException if the class has no expectation index and cannot be loaded
+     */
+    static List<Diagnostic<? extends JavaFileObject>> verifyByName(String className, String... compilerArgs) throws ClassNotFoundException {
+        ClassLoader loader = contextLoader();
+        if (hasIndex(loader, className))
+            return verify(className, compilerArgs).getDiagnostics();
+        return checkProcessorDiagnostics(Class.forName(className, true, loader), compilerArgs);
+    }
+
+    /**
+     * @return the class loader to find test classes and their expectation indexes with: the context class loader, or else our own
+     */
+    private static ClassLoader contextLoader() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader != null ? loader : Verifier.class.getClassLoader();
+    }
+
+    /**
+     * Construct the processor named by the {@link VerifyDiagnostics} annotation on a test class.
+     * 
+     * @param classToProcess the test class
+     * @return a new instance of the processor
+     */
+    private static Processor newProcessor(Class<?> classToProcess) {
+        /* The class is already loaded, so the annotation is authoritative and costs nothing to read; the index is only for verify(String) */
         VerifyDiagnostics diags = classToProcess.getAnnotation(VerifyDiagnostics.class);
         if (diags == null)
             throw new IllegalArgumentException("No @VerifyDiagnostics annotation found on " + classToProcess);
 
-        Processor processorInstance;
+        return instantiate(diags.value());
+    }
+
+    /**
+     * Construct a processor given its binary name.
+     */
+    static Processor newProcessor(ClassLoader loader, String processorName) {
+        try {
+            return instantiate(Class.forName(processorName, false, loader).asSubclass(Processor.class));
+        } catch (ClassNotFoundException e) {
+            throw new NoClassDefFoundError(e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if {@link ExpectationIndexProcessor} wrote a readable expectation index for a test class, and it still matches the class files
+     */
+    static boolean hasIndex(ClassLoader loader, String className) {
+        return readIndex(loader, className) != null;
+    }
+
+    /**
+     * Read the expectation index for a test class, if {@link ExpectationIndexProcessor} wrote one and it still matches the class files.
+     * 
+     * @return the index, or null if there is none or it is stale
+     */
+    private static ExpectationIndex readIndex(ClassLoader loader, String className) {
+        InputStream in = loader.getResourceAsStream(ExpectationIndex.resourceName(className));
+        if (in == null)
+            return null;
+
+        ExpectationIndex index;
         try {
-            processorInstance = diags.value().getConstructor().newInstance();
+            index = ExpectationIndex.read(in);
+        } catch (IOException e) {
+            return null; // Fall back to reading the annotations, which are authoritative anyway
+        }
+        return index.matches(loader, className) ? index : null;
+    }
+
+    private static Processor instantiate(Class<? extends Processor> processorClass) {
+        try {
+            return processorClass.getConstructor().newInstance();
         } catch (IllegalAccessException e) {
             throw new IllegalAccessError(e.getMessage());
         } catch (NoSuchMethodException e) {
@@ -78,39 +236,317 @@ public final class Verifier {
         } catch (InstantiationException e) {
             throw new InstantiationError("Processor class is abstract");
         }
+    }
+
+    /**
+     * Use the system java compiler to process annotations in some in-memory source files with a given processor, and check that the correct set of
+     * diagnostics were generated.
+     * <p>
+     * This is the same as {@link #checkProcessorDiagnostics(Class, String...)} except that the test input is compiled from source rather than read from an
+     * existing class, and the processor instance is provided directly rather than being named by {@link VerifyDiagnostics}. It is intended for test input
+     * that is generated at runtime, for example by {@link SyntheticInputGenerator}.
+     * 
+     * @param processorInstance the processor to test
+     * @param sources the source files to compile and process
+     * @param compilerArgs any additional compiler args to pass
+     * @return a list of diagnostics if there were problems; an empty list if everything was OK
+     */
+    public static List<Diagnostic<? extends JavaFileObject>> checkProcessorDiagnostics(Processor processorInstance, Iterable<? extends JavaFileObject> sources,
+                                                                                        String... compilerArgs) {
+        return verify(processorInstance, sources, compilerArgs).getDiagnostics();
+    }
+
+    /**
+     * Process annotations in some in-memory source files as for {@link #checkProcessorDiagnostics(Processor, Iterable, String...)}, returning the diagnostics
+     * along with a record of what the processor did.
+     * 
+     * @param processorInstance the processor to test
+     * @param sources the source files to compile and process
+     * @param compilerArgs any additional compiler args to pass
+     * @return the result of the verification
+     */
+    public static VerificationResult verify(Processor processorInstance, Iterable<? extends JavaFileObject> sources, String... compilerArgs) {
+        return runVerification(new VerifyingProcessor(processorInstance), null, null, sources, compilerArgs);
+    }
+
+    /**
+     * Process annotations in some in-memory source files as for {@link #verify(Processor, Iterable, String...)}, using a file manager prepared by the caller.
+     * <p>
+     * The file manager can hold in-memory source path, class path and processor path content (see {@link MemoryFileManager#addJavaFile}); with those
+     * locations isolated (see {@link MemoryFileManager#setIsolated}), compilation reads nothing from the filesystem except the platform classes. The output
+     * of the compilation is left in the file manager for inspection.
+     * 
+     * @param processorInstance the processor to test
+     * @param fileManager the file manager to compile with
+     * @param sources the source files to compile and process
+     * @param compilerArgs any additional compiler args to pass
+     * @return the result of the verification
+     */
+    public static VerificationResult verify(Processor processorInstance, MemoryFileManager fileManager, Iterable<? extends JavaFileObject> sources,
+                                            String... compilerArgs) {
+        return runVerification(new VerifyingProcessor(processorInstance), fileManager, null, sources, compilerArgs);
+    }
+
+    /**
+     * Start processing annotations in a given class as for {@link #verify(Class, String...)}, but on a new thread, delivering each outcome to a listener as
+     * soon as it is known.
+     * <p>
+     * The returned handle can be used to wait for the final result, or to cancel verification. Cancelling interrupts the verification thread and makes the
+     * verifying processor abandon the compilation the next time the processor under test reports a diagnostic or a new round starts.
+     * 
+     * @param classToProcess the class to perform annotation processing on
+     * @param listener the listener to deliver outcomes to
+     * @param compilerArgs any additional compiler args to pass
+     * @return a handle for the running verification
+     */
+    public static VerificationHandle startVerification(Class<?> classToProcess, VerificationListener listener, String... compilerArgs) {
+        return startVerification(newProcessor(classToProcess), Arrays.asList(classToProcess.getName()), null, listener, compilerArgs);
+    }
+
+    /**
+     * Start processing annotations in some in-memory source files as for {@link #verify(Processor, Iterable, String...)}, but on a new thread, delivering
+     * each outcome to a listener as soon as it is known.
+     * 
+     * @param processorInstance the processor to test
+     * @param sources the source files to compile and process
+     * @param listener the listener to deliver outcomes to
+     * @param compilerArgs any additional compiler args to pass
+     * @return a handle for the running verification
+     * @see #startVerification(Class, VerificationListener, String...)
+     */
+    public static VerificationHandle startVerification(Processor processorInstance, Iterable<? extends JavaFileObject> sources, VerificationListener listener,
+                                                       String... compilerArgs) {
+        return startVerification(processorInstance, null, sources, listener, compilerArgs);
+    }
+
+    private static VerificationHandle startVerification(Processor processorInstance, final Iterable<String> classNames,
+                                                        final Iterable<? extends JavaFileObject> sources, VerificationListener listener,
+                                                        final String... compilerArgs) {
+        final VerifyingProcessor wrappedProcessor = new VerifyingProcessor(processorInstance);
+        wrappedProcessor.setListener(listener);
+
+        VerificationHandle handle = new VerificationHandle(wrappedProcessor, new Callable<VerificationResult>() {
+            @Override
+            public VerificationResult call() {
+                return runVerification(wrappedProcessor, null, classNames, sources, compilerArgs);
+            }
+        });
+
+        Thread thread = new Thread(handle, "verifier: " + processorInstance.getClass().getName());
+        thread.setDaemon(true);
+        thread.start();
+        return handle;
+    }
+
+    /**
+     * Benchmark the processor under test against a test class: verify the class repeatedly, discarding a number of warm-up iterations, and report the
+     * distribution of the time spent in the processor, the time spent in the rest of the compiler, and the bytes the processor allocated, over the remaining
+     * iterations. Each iteration uses a new processor instance. Any class that can be passed to {@link #verify(Class, String...)} can be benchmarked.
+     * <p>
+     * Iterations are not recorded in the {@link #setTimingHistory timing history}.
+     * 
+     * @param classToProcess the class to perform annotation processing on
+     * @param warmups the number of iterations to run before measuring, so that the JIT compiler has settled
+     * @param iterations the number of iterations to measure
+     * @param compilerArgs any additional compiler args to pass
+     * @return the distribution of the measurements
+     */
+    public static BenchmarkResult benchmark(Class<?> classToProcess, int warmups, int iterations, String... compilerArgs) {
+        if (iterations < 1)
+            throw new IllegalArgumentException("Need at least one measured iteration");
+
+        List<String> classNames = Arrays.asList(classToProcess.getName());
+        for (int i = 0; i < warmups; ++i)
+            compile(new VerifyingProcessor(newProcessor(classToProcess)), null, classNames, null, compilerArgs);
+
+        long[] totalNanos = new long[iterations];
+        long[] processingNanos = new long[iterations];
+        long[] allocatedBytes = new long[iterations];
+        VerificationResult result = null;
+        for (int i = 0; i < iterations; ++i) {
+            result = compile(new VerifyingProcessor(newProcessor(classToProcess)), null, classNames, null, compilerArgs);
+            totalNanos[i] = result.getElapsedNanos();
+            processingNanos[i] = result.getProcessingNanos();
+            allocatedBytes[i] = result.getAllocatedBytes();
+        }
+
+        return new BenchmarkResult(totalNanos, processingNanos, allocatedBytes, result.getDiagnostics());
+    }
+
+    /**
+     * Run one verification by running the system compiler, with a {@link VerifyingProcessor} wrapping the processor under test, over the given classes or
+     * sources, and record it in the timing history if there is one.
+     * 
+     * @param wrappedProcessor the verifying processor wrapping the processor to test
+     * @param fileManager the file manager to compile with, or null to use a new {@link MemoryFileManager} over the standard file manager
+     * @param classNames the names of classes to process, or null
+     * @param sources the source files to compile and process, or null
+     * @param compilerArgs any additional compiler args to pass
+     * @return the result of the verification
+     */
+    private static VerificationResult runVerification(VerifyingProcessor wrappedProcessor, MemoryFileManager fileManager, Iterable<String> classNames,
+                                                      Iterable<? extends JavaFileObject> sources, String... compilerArgs) {
+        VerificationResult result = compile(wrappedProcessor, fileManager, classNames, sources, compilerArgs);
+        TimingHistory history = timingHistory;
+        if (history != null && classNames != null)
+            recordTimings(history, classNames, result);
+        return result;
+    }
 
+    /**
+     * Run one verification by running the system compiler, as for {@link #runVerification}, without recording it.
+     */
+    static VerificationResult compile(VerifyingProcessor wrappedProcessor, MemoryFileManager fileManager, Iterable<String> classNames,
+                                      Iterable<? extends JavaFileObject> sources, String... compilerArgs) {
         if (COMPILER == null)
             throw new UnsupportedOperationException("No system compiler available via the tool interface");
 
         DiagnosticCollector<JavaFileObject> diagnosticListener = new DiagnosticCollector<JavaFileObject>();
-        VerifyingProcessor wrappedProcessor = new VerifyingProcessor(processorInstance);
 
-        MemoryFileManager memFileManager = new MemoryFileManager(COMPILER.getStandardFileManager(diagnosticListener, null, null));
-        JavaCompiler.CompilationTask task = COMPILER.getTask(null, memFileManager, diagnosticListener, Arrays.asList(compilerArgs),
-                                                             Arrays.asList(classToProcess.getName()), null);
+        MemoryFileManager memFileManager = fileManager;
+        if (memFileManager == null)
+            memFileManager = new MemoryFileManager(COMPILER.getStandardFileManager(diagnosticListener, null, null));
+        JavaCompiler.CompilationTask task = COMPILER.getTask(null, memFileManager, diagnosticListener, Arrays.asList(compilerArgs), classNames, sources);
         task.setProcessors(Collections.singleton(wrappedProcessor));
+        if (classNames != null)
+            wrappedProcessor.setClassFileRoots(classNames);
+
+        long start = System.nanoTime();
+        long deadline = deadlineNanos;
+        boolean succeeded;
+        if (deadline == 0) {
+            succeeded = task.call();
+        } else {
+            Boolean outcome = callWithDeadline(task, wrappedProcessor, diagnosticListener, deadline);
+            if (outcome == null) {
+                // The compilation thread may still be reporting, so take a copy of the diagnostics so far
+                List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<Diagnostic<? extends JavaFileObject>>(diagnosticListener.getDiagnostics());
+                long elapsed = System.nanoTime() - start;
+                VerifierStatistics.compiled(elapsed);
+                return new VerificationResult(SimpleDiagnostic.detach(diagnostics), wrappedProcessor, elapsed);
+            }
+            succeeded = outcome;
+        }
+        long elapsed = System.nanoTime() - start;
+        VerifierStatistics.compiled(elapsed);
 
-        if (!task.call()) {
+        if (!succeeded) {
             if (diagnosticListener.getDiagnostics().isEmpty()) {
                 diagnosticListener.report(new SimpleDiagnostic<JavaFileObject>(Diagnostic.Kind.ERROR,
                                                                                "error: compilation failed, but no diagnostics were generated"));
             }
         }
 
-        return diagnosticListener.getDiagnostics();
+        // Keep nothing that refers to the compiler, so that the compilation can be collected as soon as it finishes
+        return new VerificationResult(SimpleDiagnostic.detach(diagnosticListener.getDiagnostics()), wrappedProcessor, elapsed);
+    }
+
+    /**
+     * Run a compilation on a thread of its own, and wait for it until a deadline. If it overruns, cancel it and report where it was as an error.
+     * 
+     * @return the outcome of the compilation, or null if it overran the deadline
+     */
+    private static Boolean callWithDeadline(JavaCompiler.CompilationTask task, VerifyingProcessor wrappedProcessor,
+                                            DiagnosticCollector<JavaFileObject> diagnosticListener, long deadline) {
+        FutureTask<Boolean> compilation = new FutureTask<Boolean>(task);
+        Thread thread = new Thread(compilation, "verifier: deadline-bounded compilation");
+        thread.setDaemon(true);
+        thread.start();
+
+        try {
+            return compilation.get(deadline, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // Sample before cancelling, so that we see where the processor was stuck rather than how it was stopped
+            String activity = wrappedProcessor.getActivity();
+            StackTraceElement[] stack = thread.getStackTrace();
+            wrappedProcessor.cancel();
+            thread.interrupt();
+            boolean stopped = join(thread, CANCEL_GRACE_MILLIS);
+
+            StringBuilder message = new StringBuilder("Verification exceeded its deadline of ");
+            message.append(TimeUnit.NANOSECONDS.toMillis(deadline)).append("ms ").append(activity);
+            message.append(stopped ? "; it stopped when cancelled." : "; it did not stop when cancelled, and its thread was abandoned.");
+            message.append(" Stack sample of the processing thread:");
+            for (int i = 0; i < stack.length && i < STACK_SAMPLE_DEPTH; ++i)
+                message.append("\n\tat ").append(stack[i]);
+            if (stack.length > STACK_SAMPLE_DEPTH)
+                message.append("\n\t... ").append(stack.length - STACK_SAMPLE_DEPTH).append(" more");
+            diagnosticListener.report(new SimpleDiagnostic<JavaFileObject>(Diagnostic.Kind.ERROR, message.toString()));
+            return null;
+        } catch (InterruptedException e) {
+            wrappedProcessor.cancel();
+            thread.interrupt();
+            Thread.currentThread().interrupt();
+            throw new VerificationCancelledException("Interrupted while waiting for verification " + wrappedProcessor.getActivity());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            else if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            else
+                throw new UndeclaredThrowableException(e.getCause());
+        }
+    }
+
+    /**
+     * Wait for a thread to finish, for at most a given time.
+     * 
+     * @return true if the thread finished
+     */
+    private static boolean join(Thread thread, long millis) {
+        try {
+            thread.join(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
     }
 
     /**
-     * Throw AssertionError if any diagnostics are present in the given diagnostics list.
+     * Record the timings of a verification into a history, and add any regressions to the result.
+     */
+    private static void recordTimings(TimingHistory history, Iterable<String> classNames, VerificationResult result) {
+        StringBuilder key = new StringBuilder();
+        for (String className : classNames)
+            key.append(key.length() == 0 ? "" : ",").append(className);
+
+        List<TimingHistory.Regression> regressions;
+        try {
+            regressions = history.record(key.toString(), result);
+        } catch (IOException e) {
+            result.setTimingHistoryError(e);
+            return;
+        }
+        result.setRegressions(regressions, history.isFailOnRegression());
+    }
+
+    /**
+     * Throw AssertionError if any diagnostics are present in the given diagnostics list. At most {@link #DEFAULT_MAX_REPORTED_DIAGNOSTICS} of them are
+     * included in the message.
      * 
      * @param diags a list of diagnostics to check.
      */
     public static void assertNoDiagnostics(List<Diagnostic<? extends JavaFileObject>> diags) {
+        assertNoDiagnostics(diags, DEFAULT_MAX_REPORTED_DIAGNOSTICS);
+    }
+
+    /**
+     * Throw AssertionError if any diagnostics are present in the given diagnostics list, including at most a given number of them in the message.
+     * 
+     * @param diags a list of diagnostics to check.
+     * @param maxReported the most diagnostics to include in the message; the rest are only counted
+     */
+    public static void assertNoDiagnostics(List<Diagnostic<? extends JavaFileObject>> diags, int maxReported) {
         if (diags.isEmpty())
             return;
 
         StringBuilder sb = new StringBuilder("One or more diagnostics reported by the verifying processor; these usually indicate test failures: ");
+        int reported = 0;
         for (Diagnostic<? extends JavaFileObject> diagnostic : diags) {
+            if (reported++ == maxReported) {
+                sb.append("\n ... and ").append(diags.size() - maxReported).append(" more");
+                break;
+            }
             sb.append("\n ");
             sb.append(diagnostic.getMessage(null));
         }
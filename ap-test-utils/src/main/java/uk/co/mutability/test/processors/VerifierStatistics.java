@@ -0,0 +1,238 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.tools.JavaFileManager.Location;
+
+/**
+ * Cumulative counters of the work done by {@link Verifier}, {@link VerifyingProcessor} and {@link MemoryFileManager} in this JVM, for watching a
+ * long-running test JVM without attaching a profiler. The counters are registered with the platform MBean server as {@value #OBJECT_NAME} when first
+ * used, so JConsole, VisualVM and JMX-based monitoring can read them; they can also be read in-process through {@link #get()}.
+ * <p>
+ * The counters are striped, so that verifications running in parallel do not contend on them. The stored files and bytes are exact, so that their peaks
+ * are; they are updated once per file written or deleted, not per byte. A file manager's files are counted until it is deleted or garbage collected.
+ */
+public final class VerifierStatistics implements VerifierStatisticsMBean {
+    /** The name the statistics are registered under */
+    public static final String OBJECT_NAME = "uk.co.mutability.test.processors:type=VerifierStatistics";
+
+    private static final VerifierStatistics INSTANCE = new VerifierStatistics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // Another class loader has registered its copy; ours can still be read through get()
+        } catch (JMException e) {
+            // JMX is not usable here; the statistics can still be read through get()
+        } catch (SecurityException e) {
+            // Likewise
+        }
+    }
+
+    private final StripedCounter compilations = new StripedCounter();
+    private final StripedCounter verificationNanos = new StripedCounter();
+    private final StripedCounter matched = new StripedCounter();
+    private final StripedCounter unexpected = new StripedCounter();
+    private final StripedCounter missing = new StripedCounter();
+    private final StripedCounter rounds = new StripedCounter();
+
+    private final AtomicLong storedFiles = new AtomicLong();
+    private final AtomicLong peakStoredFiles = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong peakStoredBytes = new AtomicLong();
+
+    /** The file managers whose files are counted, until they are garbage collected */
+    private final Set<FileManagerReference> fileManagers = Collections.synchronizedSet(new HashSet<FileManagerReference>());
+    private final ReferenceQueue<MemoryFileManager> collected = new ReferenceQueue<MemoryFileManager>();
+
+    /**
+     * A weak reference to a file manager that keeps its counters, so that what it still held can be uncounted once it has been collected.
+     */
+    private static final class FileManagerReference extends WeakReference<MemoryFileManager> {
+        private final Map<Location,long[]> counters;
+
+        FileManagerReference(MemoryFileManager fileManager, Map<Location,long[]> counters, ReferenceQueue<MemoryFileManager> queue) {
+            super(fileManager, queue);
+            this.counters = counters;
+        }
+    }
+
+    private VerifierStatistics() {
+    }
+
+    /**
+     * @return the statistics for this JVM
+     */
+    public static VerifierStatistics get() {
+        return INSTANCE;
+    }
+
+    /** Record a compilation run by {@link Verifier} */
+    static void compiled(long elapsedNanos) {
+        INSTANCE.compilations.increment();
+        INSTANCE.verificationNanos.add(elapsedNanos);
+    }
+
+    /** Record a diagnostic matching an expected diagnostic */
+    static void matched() {
+        INSTANCE.matched.increment();
+    }
+
+    /** Record a diagnostic that matched no expected diagnostic */
+    static void unexpected() {
+        INSTANCE.unexpected.increment();
+    }
+
+    /** Record an expected diagnostic that was not matched */
+    static void missing() {
+        INSTANCE.missing.increment();
+    }
+
+    /** Record a processing round */
+    static void roundProcessed() {
+        INSTANCE.rounds.increment();
+    }
+
+    /**
+     * Start counting the files of a new file manager.
+     * 
+     * @param counters the file manager's counters by location, which {@link MemoryFileManager#totals} can read after the file manager is collected
+     */
+    static void fileManagerCreated(MemoryFileManager fileManager, Map<Location,long[]> counters) {
+        INSTANCE.uncountCollected();
+        INSTANCE.fileManagers.add(new FileManagerReference(fileManager, counters, INSTANCE.collected));
+    }
+
+    /** Record a change in the files and bytes held by a file manager */
+    static void storageChanged(long files, long bytes) {
+        if (files != 0)
+            updatePeak(INSTANCE.peakStoredFiles, INSTANCE.storedFiles.addAndGet(files));
+        if (bytes != 0)
+            updatePeak(INSTANCE.peakStoredBytes, INSTANCE.storedBytes.addAndGet(bytes));
+    }
+
+    private static void updatePeak(AtomicLong peak, long value) {
+        long current = peak.get();
+        while (value > current && !peak.compareAndSet(current, value))
+            current = peak.get();
+    }
+
+    /** Stop counting what was held by file managers that have been garbage collected */
+    private void uncountCollected() {
+        FileManagerReference reference;
+        while ((reference = (FileManagerReference) collected.poll()) != null) {
+            fileManagers.remove(reference);
+            long[] totals = MemoryFileManager.totals(reference.counters);
+            storageChanged(-totals[0], -totals[1]);
+        }
+    }
+
+    @Override
+    public long getCompilations() {
+        return compilations.sum();
+    }
+
+    @Override
+    public long getTotalVerificationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(verificationNanos.sum());
+    }
+
+    @Override
+    public long getMaxVerificationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(verificationNanos.max());
+    }
+
+    @Override
+    public long getDiagnosticsMatched() {
+        return matched.sum();
+    }
+
+    @Override
+    public long getDiagnosticsUnexpected() {
+        return unexpected.sum();
+    }
+
+    @Override
+    public long getDiagnosticsMissing() {
+        return missing.sum();
+    }
+
+    @Override
+    public long getRoundsProcessed() {
+        return rounds.sum();
+    }
+
+    @Override
+    public long getStoredFiles() {
+        uncountCollected();
+        return storedFiles.get();
+    }
+
+    @Override
+    public long getPeakStoredFiles() {
+        return peakStoredFiles.get();
+    }
+
+    @Override
+    public long getStoredBytes() {
+        uncountCollected();
+        return storedBytes.get();
+    }
+
+    @Override
+    public long getPeakStoredBytes() {
+        return peakStoredBytes.get();
+    }
+
+    @Override
+    public void reset() {
+        compilations.reset();
+        verificationNanos.reset();
+        matched.reset();
+        unexpected.reset();
+        missing.reset();
+        rounds.reset();
+        peakStoredFiles.set(getStoredFiles());
+        peakStoredBytes.set(getStoredBytes());
+    }
+
+    @Override
+    public String toString() {
+        return getCompilations() + " compilations in " + getTotalVerificationMillis() + "ms (longest " + getMaxVerificationMillis() + "ms), " +
+               getRoundsProcessed() + " rounds; diagnostics: " + getDiagnosticsMatched() + " matched, " + getDiagnosticsUnexpected() + " unexpected, " +
+               getDiagnosticsMissing() + " missing; stored: " + getStoredFiles() + " files (peak " + getPeakStoredFiles() + "), " + getStoredBytes() +
+               " bytes (peak " + getPeakStoredBytes() + ")";
+    }
+}
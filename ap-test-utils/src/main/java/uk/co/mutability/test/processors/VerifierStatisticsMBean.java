@@ -0,0 +1,62 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+/**
+ * The management interface of {@link VerifierStatistics}, registered with the platform MBean server as {@value VerifierStatistics#OBJECT_NAME}.
+ */
+public interface VerifierStatisticsMBean {
+    /** @return the number of compilations run by {@link Verifier} */
+    long getCompilations();
+
+    /** @return the total wall time of those compilations, in milliseconds */
+    long getTotalVerificationMillis();
+
+    /** @return the wall time of the longest compilation, in milliseconds */
+    long getMaxVerificationMillis();
+
+    /** @return the number of times a diagnostic matched an expected diagnostic */
+    long getDiagnosticsMatched();
+
+    /** @return the number of diagnostics that did not match any expected diagnostic */
+    long getDiagnosticsUnexpected();
+
+    /** @return the number of expected diagnostics that no diagnostic matched */
+    long getDiagnosticsMissing();
+
+    /** @return the number of processing rounds run by verifying processors */
+    long getRoundsProcessed();
+
+    /** @return the number of files held by file managers that have not been garbage collected */
+    long getStoredFiles();
+
+    /** @return the largest number of files held at once */
+    long getPeakStoredFiles();
+
+    /** @return the bytes of content held by file managers that have not been garbage collected */
+    long getStoredBytes();
+
+    /** @return the largest number of bytes of content held at once */
+    long getPeakStoredBytes();
+
+    /** Set the cumulative counters back to zero, and the peaks to the current values */
+    void reset();
+}
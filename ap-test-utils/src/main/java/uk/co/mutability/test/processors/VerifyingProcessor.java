@@ -20,15 +20,22 @@
 
 package uk.co.mutability.test.processors;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.annotation.Annotation;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -67,11 +74,56 @@ import javax.tools.Diagnostic.Kind;
  * The verifying processor provides wrapper implementations of some of the processor SPI. Notably, it wraps {@link Messager} so that can intercept and check
  * diagnostics generated by the delegate processor; {@link ProcessingEnvironment} so that it can provide the wrapped Messager to the delegate processor; and
  * {@link RoundEnvironment} so that the verifying processor can stop processing "early" if the delegate processor generated an error diagnostic that was
- * expected and therefore not passed to the real compiler.
+ * expected and therefore not passed to the real compiler. It also wraps {@link Filer} so that the files written by the delegate processor are recorded in a
+ * {@link FilerStatistics}, and records a {@link RoundTrace} showing which of those files caused further processing rounds.
+ * <p>
+ * If the {@link #PROFILE_MODEL_OPTION_NAME} or {@link #MEMOIZE_MODEL_OPTION_NAME} options are set, {@link Elements} and {@link Types} are wrapped too, so that
+ * the delegate processor's calls to them are counted and timed in a {@link ModelProfile}, and optionally cached within each round.
+ * <p>
+ * The verifying processor measures the time spent in, and the memory allocated by, the delegate processor. If the test class has a {@link PerformanceBudget}
+ * annotation, exceeding any of its limits is reported as an error.
+ * <p>
+ * If the test input was compiled with {@link ExpectationIndexProcessor}, the expectations are read from the index it wrote rather than from the annotations
+ * themselves; see {@link #USE_INDEX_OPTION_NAME}.
+ * <p>
+ * Each verification outcome (a matched, unexpected or missing diagnostic, or an exceeded budget) can also be delivered to a {@link VerificationListener} as
+ * soon as it is known, and processing can be abandoned part-way through by calling {@link #cancel()} from another thread.
+ * <p>
+ * The delegate processor may report diagnostics from threads of its own while its process() method runs, as long as it has finished reporting by the time
+ * process() returns; expected diagnostics are matched without a global lock. When an element has many expected diagnostics of one kind, the plain-text
+ * ones are matched against each message all at once (see {@link PatternSet}), so that elements with dozens of expectations do not make every report
+ * slower.
+ * <p>
+ * Only the first few unexpected diagnostics are forwarded to the compiler individually (see {@link #MAX_UNEXPECTED_OPTION_NAME}). The rest are counted,
+ * grouped by kind, element and message, and summarised in a single error at the end of processing, so a processor that floods the Messager costs no more
+ * to report than one that does not.
  */
 public class VerifyingProcessor implements Processor {
     /** The well-known annotation processor option name we use to find the delegate processor. */
     public static final String DELEGATE_OPTION_NAME = "mutabilty.test.delegateClassName";
+    /**
+     * The annotation processor option that enables profiling of the delegate processor's Elements and Types calls. "true" collects a {@link ModelProfile};
+     * "report" also prints the hotspots as a NOTE diagnostic at the end of processing.
+     */
+    public static final String PROFILE_MODEL_OPTION_NAME = "mutabilty.test.profileModel";
+    /** The annotation processor option that, if "true", caches the results of side-effect-free Elements and Types lookups within each round. */
+    public static final String MEMOIZE_MODEL_OPTION_NAME = "mutabilty.test.memoizeModel";
+    /**
+     * The annotation processor option that, if "false", makes the verifying processor ignore any expectation index written by
+     * {@link ExpectationIndexProcessor}, and read the expectation annotations instead.
+     */
+    public static final String USE_INDEX_OPTION_NAME = "mutabilty.test.useIndex";
+    /**
+     * The annotation processor option giving the number of unexpected diagnostics to forward to the compiler individually; the default is
+     * {@link #DEFAULT_MAX_UNEXPECTED}. Any more are summarised in one error at the end of processing.
+     */
+    public static final String MAX_UNEXPECTED_OPTION_NAME = "mutabilty.test.maxUnexpected";
+    /** The default for {@link #MAX_UNEXPECTED_OPTION_NAME}; low enough that the summary fits within javac's default limit of 100 errors */
+    public static final int DEFAULT_MAX_UNEXPECTED = 50;
+    /** The number of groups of suppressed diagnostics listed in the summary */
+    private static final int MAX_SUMMARY_GROUPS = 20;
+    /** Runs of digits, which are replaced when grouping messages, so that messages differing only in numbers share a group */
+    private static final Pattern DIGITS = Pattern.compile("[0-9]+");
 
     /** The delegate processor we are testing, or null if it is not yet determined */
     private Processor delegate;
@@ -81,10 +133,67 @@ public class VerifyingProcessor implements Processor {
     private WrapperEnvironment wrapperEnv;
     /** The wrapped Messager that we will give to the delegate processor */
     private WrapperMessager wrapperMessager;
-    /** If true, the delegate raised an error diagnostic at some point, so we should stop processing in the next round. */
-    private boolean delegateGeneratedError;
+    /** If true, the delegate raised an error diagnostic at some point, so we should stop processing in the next round. Set from any reporting thread. */
+    private volatile boolean delegateGeneratedError;
     /** If true, we have run the final processing round on the delegate */
     private boolean delegateProcessingOver;
+    /** The number of processing rounds run on the delegate so far */
+    private int round;
+    /** The wrapped Filer that we will give to the delegate processor */
+    private RecordingFiler recordingFiler;
+    /** A record of the files written by the delegate processor */
+    private FilerStatistics filerStatistics = new FilerStatistics();
+    /** A trace of the rounds the delegate processor has taken part in */
+    private RoundTrace roundTrace = new RoundTrace();
+    /** Profile of the delegate's Elements and Types calls, or null if not profiling */
+    private ModelProfile modelProfile;
+    /** The handlers behind the profiling Elements and Types wrappers, or null if not profiling */
+    private ProfilingModelHandler elementsHandler, typesHandler;
+    /** The Elements and Types we will give to the delegate processor */
+    private Elements elementUtils;
+    private Types typeUtils;
+    /** The total wall time spent inside the delegate's init() and process() */
+    private long processingNanos;
+    /** The total wall time spent finding the expected diagnostics, from expectation indexes or annotations */
+    private long expectationNanos;
+    /** The total bytes allocated by the processing thread inside the delegate's init() and process(), or -1 if the JVM cannot measure this */
+    private long allocatedBytes;
+    /** The limits of the performance budget found on the test class (see {@link ExpectationIndex#limits}), or null if there is none */
+    private long[] budget;
+    /** The element the performance budget was found on */
+    private Element budgetElement;
+    /** The budget limits that have already been reported as exceeded, so that each is reported only once */
+    private final Set<String> exceededLimits = new HashSet<String>();
+    /** The listener to deliver verification outcomes to, or null */
+    private volatile VerificationListener listener;
+    /** If true, verification has been cancelled and the next call into the verifying processor should abandon processing */
+    private volatile boolean cancelled;
+
+    /** The number of unexpected diagnostics to forward individually */
+    private int maxUnexpected = DEFAULT_MAX_UNEXPECTED;
+    /** The number of unexpected diagnostics seen so far; updated from any reporting thread */
+    private final AtomicInteger unexpectedCount = new AtomicInteger();
+    /** Unexpected diagnostics beyond {@link #maxUnexpected}, grouped by kind, element and normalised message; updated from any reporting thread */
+    private final ConcurrentMap<String,SuppressedGroup> suppressed = new ConcurrentHashMap<String,SuppressedGroup>();
+
+    /** A description of what processing is doing now, for reporting a verification that overruns its deadline; read from any thread */
+    private volatile String activity = "before processing started";
+
+    /**
+     * A count of unexpected diagnostics that were not forwarded individually, and that share a kind, element and normalised message.
+     */
+    private static class SuppressedGroup {
+        SuppressedGroup(Diagnostic.Kind kind, String element, String message) {
+            this.kind = kind;
+            this.element = element;
+            this.message = message;
+        }
+
+        final Diagnostic.Kind kind;
+        final String element;
+        final String message;
+        final AtomicInteger count = new AtomicInteger();
+    }
 
     /**
      * A data-holding class that represents one expected diagnostic.
@@ -102,11 +211,105 @@ public class VerifyingProcessor implements Processor {
         final Pattern pattern;
         final Diagnostic.Kind kind;
 
-        boolean matched = false;
+        /** Set, never cleared, by whichever reporting thread matches this diagnostic */
+        volatile boolean matched = false;
     }
 
-    /** All the diagnostics we expect to see in this particular round */
+    /**
+     * The expected diagnostics for one round, indexed by the element they are attached to. An instance is built on the compiler thread before the delegate
+     * runs and is never modified afterwards, so once published through {@link #expectations} it can be read from any reporting thread without locking.
+     */
+    private static final class ExpectationSet {
+        final List<ElementAndDiagnostic> all;
+        final Map<Element,Map<Diagnostic.Kind,Candidates>> byElement = new HashMap<Element,Map<Diagnostic.Kind,Candidates>>();
+        final Map<Diagnostic.Kind,Candidates> detached = new EnumMap<Diagnostic.Kind,Candidates>(Diagnostic.Kind.class);
+
+        ExpectationSet(List<ElementAndDiagnostic> expected) {
+            this.all = new ArrayList<ElementAndDiagnostic>(expected);
+            for (ElementAndDiagnostic diag : all) {
+                Map<Diagnostic.Kind,Candidates> byKind = detached;
+                if (diag.matchElement) {
+                    byKind = byElement.get(diag.annotatedElement);
+                    if (byKind == null) {
+                        byKind = new EnumMap<Diagnostic.Kind,Candidates>(Diagnostic.Kind.class);
+                        byElement.put(diag.annotatedElement, byKind);
+                    }
+                }
+
+                Candidates candidates = byKind.get(diag.kind);
+                if (candidates == null) {
+                    candidates = new Candidates();
+                    byKind.put(diag.kind, candidates);
+                }
+                candidates.expected.add(diag);
+            }
+
+            for (Candidates candidates : detached.values())
+                candidates.combine();
+            for (Map<Diagnostic.Kind,Candidates> byKind : byElement.values()) {
+                for (Candidates candidates : byKind.values())
+                    candidates.combine();
+            }
+        }
+
+        /**
+         * @return the expected diagnostics that a diagnostic reported on an element (or on no element, if null) matches, in the order they were expected
+         */
+        List<ElementAndDiagnostic> matching(Element element, Diagnostic.Kind kind, CharSequence msg) {
+            Map<Diagnostic.Kind,Candidates> byKind = (element == null ? detached : byElement.get(element));
+            Candidates candidates = (byKind == null ? null : byKind.get(kind));
+            return candidates == null ? Collections.<ElementAndDiagnostic> emptyList() : candidates.matching(msg);
+        }
+    }
+
+    /**
+     * The expected diagnostics of one kind on one element. Elements with many expectations are matched with a {@link PatternSet}, so that the cost of
+     * matching a message against plain-text expectations does not grow with their number.
+     */
+    private static final class Candidates {
+        final List<ElementAndDiagnostic> expected = new ArrayList<ElementAndDiagnostic>(1);
+        /** The combined patterns, or null to match each pattern in turn */
+        PatternSet patterns;
+
+        void combine() {
+            if (expected.size() < PatternSet.MIN_COMBINED)
+                return;
+            List<Pattern> list = new ArrayList<Pattern>(expected.size());
+            for (ElementAndDiagnostic diag : expected)
+                list.add(diag.pattern);
+            patterns = new PatternSet(list);
+        }
+
+        List<ElementAndDiagnostic> matching(CharSequence msg) {
+            List<ElementAndDiagnostic> matching = new ArrayList<ElementAndDiagnostic>(1);
+            if (patterns == null) {
+                for (ElementAndDiagnostic diag : expected) {
+                    if (diag.pattern.matcher(msg).find())
+                        matching.add(diag);
+                }
+            } else {
+                boolean[] found = patterns.find(msg);
+                for (int i = 0; i < found.length; ++i) {
+                    if (found[i])
+                        matching.add(expected.get(i));
+                }
+            }
+            return matching;
+        }
+    }
+
+    /** All the diagnostics we expect to see in this particular round; only used on the compiler thread while building {@link #expectations} */
     private List<ElementAndDiagnostic> expectedDiagnostics = new ArrayList<ElementAndDiagnostic>();
+    /** The published expectations for the current round, which reporting threads match against */
+    private volatile ExpectationSet expectations = new ExpectationSet(Collections.<ElementAndDiagnostic> emptyList());
+    /** Serializes diagnostics forwarded to the real Messager, which the compiler does not expect to be called concurrently */
+    private final Object forwardLock = new Object();
+    /** The class loader to read expectation indexes from, or null if indexes are disabled */
+    private ClassLoader indexLoader;
+    /** The names of the root classes that the compiler reads from class files, which are the only ones that expectation indexes are used for */
+    private final Set<String> classFileRoots = new HashSet<String>();
+    /** The expectation index for each root class looked up so far, or null if it has none, so that each is read at most once */
+    private final Map<String,ExpectationIndex> indexes = new HashMap<String,ExpectationIndex>();
 
     /**
      * Add a new diagnostic to the set of expected diagnostics for this round. May generate a compiler diagnostic if the contained regular expression has syntax
@@ -117,12 +320,87 @@ public class VerifyingProcessor implements Processor {
      * @param matchElement true if this diagnostic should be matched against the annotated element, false if it is a detached match
      */
     private void addExpectedDiagnostic(ExpectDiagnostic diag, Element annotatedElement, boolean matchElement) {
+        addExpectedDiagnostic(diag.value(), diag.kind(), annotatedElement, matchElement);
+    }
+
+    private void addExpectedDiagnostic(String regex, Diagnostic.Kind kind, Element annotatedElement, boolean matchElement) {
         try {
-            expectedDiagnostics.add(new ElementAndDiagnostic(annotatedElement, matchElement, diag.value(), diag.kind()));
+            expectedDiagnostics.add(new ElementAndDiagnostic(annotatedElement, matchElement, regex, kind));
         } catch (PatternSyntaxException e) {
             realEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
-                                               "Syntax error in diagnostic regular expression '" + diag.value() + "': " + e.getMessage(), annotatedElement);
+                                               "Syntax error in diagnostic regular expression '" + regex + "': " + e.getMessage(), annotatedElement);
+        }
+    }
+
+    /**
+     * Find the expectation index for a root element, if it was written when the test input was compiled. The index is read from {@link #indexLoader}
+     * rather than through the Filer, which on some compilers fails with an exception rather than reporting that a resource is missing. Roots compiled from
+     * source never use an index, since their annotations may have changed since it was written, and neither do roots whose class files no longer match the
+     * fingerprint recorded in the index.
+     * 
+     * @return the index, or null if there is none, it is stale or indexes are disabled
+     */
+    private ExpectationIndex loadIndex(Element rootElement) {
+        if (!(rootElement instanceof TypeElement) || indexLoader == null)
+            return null;
+
+        String className = ((TypeElement) rootElement).getQualifiedName().toString();
+        if (!classFileRoots.contains(className))
+            return null;
+        if (indexes.containsKey(className))
+            return indexes.get(className);
+
+        ExpectationIndex index = null;
+        String resourceName = ExpectationIndex.resourceName(className);
+        InputStream in = indexLoader.getResourceAsStream(resourceName);
+        if (in != null) {
+            try {
+                index = ExpectationIndex.read(in);
+                if (!index.matches(indexLoader, className))
+                    index = null;
+            } catch (IOException e) {
+                realEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Ignoring unreadable expectation index " + resourceName + ": " + e.getMessage(),
+                                                   rootElement);
+            }
+        }
+        indexes.put(className, index);
+        return index;
+    }
+
+    /**
+     * Add the expectations recorded in an index, by looking up the elements that the index names. This avoids visiting every element under the root and
+     * reading its annotations.
+     * 
+     * @return true if the expectations were added, or false if some element named by the index no longer exists and the annotations should be read instead
+     */
+    private boolean addIndexedExpectations(TypeElement testClass, ExpectationIndex index) {
+        Map<String,Element> elements = index.resolve(testClass, realEnv.getElementUtils(), realEnv.getTypeUtils());
+        if (elements == null)
+            return false;
+
+        for (ExpectationIndex.Record record : index.getRecords()) {
+            Element element = elements.get(record.signature);
+            if (record.budget != null) {
+                if (budget == null) {
+                    budget = record.budget;
+                    budgetElement = element;
+                }
+            } else {
+                addExpectedDiagnostic(record.regex, record.kind, element, record.type.equals("expect"));
+            }
         }
+        return true;
+    }
+
+    /**
+     * Allow expectation indexes to be used for some root classes, which the compiler reads from class files rather than compiling from source.
+     * 
+     * @param classNames the names of the classes
+     */
+    void setClassFileRoots(Iterable<String> classNames) {
+        classFileRoots.clear();
+        for (String className : classNames)
+            classFileRoots.add(className);
     }
 
     /**
@@ -148,6 +426,49 @@ public class VerifyingProcessor implements Processor {
         this.wrapperMessager = new WrapperMessager();
         this.delegateGeneratedError = false;
         this.delegateProcessingOver = false;
+        this.round = 0;
+        this.processingNanos = 0;
+        this.expectationNanos = 0;
+        this.allocatedBytes = AllocationCounter.isSupported() ? 0 : -1;
+        this.indexes.clear();
+        if ("false".equals(realEnv.getOptions().get(USE_INDEX_OPTION_NAME))) {
+            this.indexLoader = null;
+        } else {
+            this.indexLoader = Thread.currentThread().getContextClassLoader();
+            if (indexLoader == null)
+                this.indexLoader = VerifyingProcessor.class.getClassLoader();
+        }
+        this.budget = null;
+        this.budgetElement = null;
+        this.exceededLimits.clear();
+        this.unexpectedCount.set(0);
+        this.suppressed.clear();
+        this.filerStatistics = new FilerStatistics();
+        this.recordingFiler = new RecordingFiler(realEnv.getFiler(), filerStatistics);
+        this.roundTrace = new RoundTrace();
+
+        String maxOption = realEnv.getOptions().get(MAX_UNEXPECTED_OPTION_NAME);
+        try {
+            this.maxUnexpected = (maxOption == null ? DEFAULT_MAX_UNEXPECTED : Math.max(0, Integer.parseInt(maxOption.trim())));
+        } catch (NumberFormatException e) {
+            realEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Ignoring invalid " + MAX_UNEXPECTED_OPTION_NAME + " option: " + maxOption);
+            this.maxUnexpected = DEFAULT_MAX_UNEXPECTED;
+        }
+
+        String profileOption = realEnv.getOptions().get(PROFILE_MODEL_OPTION_NAME);
+        boolean memoize = "true".equals(realEnv.getOptions().get(MEMOIZE_MODEL_OPTION_NAME));
+        if (memoize || "true".equals(profileOption) || "report".equals(profileOption)) {
+            this.modelProfile = new ModelProfile();
+            this.elementsHandler = ProfilingModelHandler.forElements(realEnv.getElementUtils(), modelProfile, memoize);
+            this.typesHandler = ProfilingModelHandler.forTypes(realEnv.getTypeUtils(), modelProfile, memoize);
+            this.elementUtils = elementsHandler.newProxy(Elements.class);
+            this.typeUtils = typesHandler.newProxy(Types.class);
+        } else {
+            this.modelProfile = null;
+            this.elementsHandler = this.typesHandler = null;
+            this.elementUtils = realEnv.getElementUtils();
+            this.typeUtils = realEnv.getTypeUtils();
+        }
 
         if (delegate == null) {
             // Try to find the delegate via annotation processor options
@@ -168,7 +489,122 @@ public class VerifyingProcessor implements Processor {
             }
         }
 
-        delegate.init(wrapperEnv);
+        activity = "in " + delegate.getClass().getName() + ".init()";
+        long startNanos = System.nanoTime();
+        long startAllocated = AllocationCounter.currentThreadAllocatedBytes();
+        try {
+            delegate.init(wrapperEnv);
+        } finally {
+            measured(startNanos, startAllocated);
+            activity = "in the compiler, before round 1";
+        }
+    }
+
+    /**
+     * Add the time and allocation since a starting point to the totals for the delegate processor.
+     */
+    private void measured(long startNanos, long startAllocated) {
+        processingNanos += System.nanoTime() - startNanos;
+        long endAllocated = AllocationCounter.currentThreadAllocatedBytes();
+        if (allocatedBytes >= 0 && startAllocated >= 0 && endAllocated >= 0)
+            allocatedBytes += endAllocated - startAllocated;
+        else
+            allocatedBytes = -1;
+    }
+
+    /**
+     * Set a listener to receive verification outcomes as soon as they are known.
+     * 
+     * @param listener the listener, or null for none
+     */
+    public void setListener(VerificationListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Cancel verification. This may be called from any thread. The next time the delegate processor calls the Messager, or the next round starts, a
+     * {@link VerificationCancelledException} is thrown into the compiler to abandon processing.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @throws VerificationCancelledException if verification has been cancelled
+     */
+    private void checkCancelled() {
+        if (cancelled)
+            throw new VerificationCancelledException("Verification was cancelled in round " + round);
+    }
+
+    /**
+     * Deliver an outcome to the listener, if there is one.
+     */
+    private void fire(VerificationEvent.Type type, Diagnostic.Kind kind, CharSequence message, Pattern pattern, Element element) {
+        VerificationListener currentListener = listener;
+        if (currentListener == null)
+            return;
+
+        currentListener.verificationEvent(new VerificationEvent(type, round, kind, message == null ? null : message.toString(),
+                                                                pattern == null ? null : pattern.pattern(),
+                                                                element == null ? null : RecordingFiler.describe(element)));
+    }
+
+    /**
+     * @return a description of what processing is doing at the moment, such as the round and the delegate processor method that is running
+     */
+    String getActivity() {
+        return activity;
+    }
+
+    /**
+     * @return the number of processing rounds the delegate processor has taken part in so far
+     */
+    public int getRoundCount() {
+        return round;
+    }
+
+    /**
+     * @return the total wall time spent inside the delegate processor's init() and process() methods so far
+     */
+    public long getProcessingNanos() {
+        return processingNanos;
+    }
+
+    /**
+     * @return the total wall time spent finding the expected diagnostics so far, whether from expectation indexes or from annotations
+     */
+    long getExpectationNanos() {
+        return expectationNanos;
+    }
+
+    /**
+     * @return the total bytes allocated on the processing thread inside the delegate processor's init() and process() methods so far, or -1 if the JVM
+     *         cannot measure this
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return a record of the files written by the delegate processor so far
+     */
+    public FilerStatistics getFilerStatistics() {
+        return filerStatistics;
+    }
+
+    /**
+     * @return a trace of the processing rounds the delegate processor has taken part in so far
+     */
+    public RoundTrace getRoundTrace() {
+        return roundTrace;
+    }
+
+    /**
+     * @return a profile of the delegate processor's Elements and Types calls so far, or null if model profiling is not enabled
+     */
+    public ModelProfile getModelProfile() {
+        return modelProfile;
     }
 
     @Override
@@ -197,6 +633,10 @@ public class VerifyingProcessor implements Processor {
         if (delegate != null)
             delegateSet.addAll(delegate.getSupportedOptions());
         delegateSet.add(DELEGATE_OPTION_NAME);
+        delegateSet.add(PROFILE_MODEL_OPTION_NAME);
+        delegateSet.add(MEMOIZE_MODEL_OPTION_NAME);
+        delegateSet.add(USE_INDEX_OPTION_NAME);
+        delegateSet.add(MAX_UNEXPECTED_OPTION_NAME);
         return delegateSet;
     }
 
@@ -213,10 +653,26 @@ public class VerifyingProcessor implements Processor {
         if (delegateProcessingOver)
             return false;
 
+        checkCancelled();
+        ++round;
+        VerifierStatistics.roundProcessed();
+        activity = "in round " + round + ", reading expected diagnostics";
+        recordingFiler.setRound(round);
+        roundTrace.startRound(round, roundEnv.getRootElements(), filerStatistics);
+        if (modelProfile != null) {
+            elementsHandler.newRound();
+            typesHandler.newRound();
+        }
+
         // Do our own processing first to discover the diagnostics we expect.
         expectedDiagnostics.clear();
 
+        long expectationStart = System.nanoTime();
         for (Element rootElement : roundEnv.getRootElements()) {
+            ExpectationIndex index = loadIndex(rootElement);
+            if (index != null && addIndexedExpectations((TypeElement) rootElement, index))
+                continue;
+
             if (rootElement.getAnnotation(VerifyDiagnostics.class) != null) {
                 ElementScanner6<Void,Void> scanner = new ElementScanner6<Void,Void>() {
                     @Override
@@ -225,6 +681,12 @@ public class VerifyingProcessor implements Processor {
                         if (verify != null) {
                             for (ExpectDiagnostic diag : verify.generalDiagnostics())
                                 addExpectedDiagnostic(diag, annotatedElement, false);
+
+                            PerformanceBudget foundBudget = annotatedElement.getAnnotation(PerformanceBudget.class);
+                            if (foundBudget != null && budget == null) {
+                                budget = ExpectationIndex.limits(foundBudget);
+                                budgetElement = annotatedElement;
+                            }
                         }
 
                         ExpectDiagnostic singleDiag = annotatedElement.getAnnotation(ExpectDiagnostic.class);
@@ -245,30 +707,142 @@ public class VerifyingProcessor implements Processor {
                 scanner.scan(rootElement, null);
             }
         }
+        expectationNanos += System.nanoTime() - expectationStart;
+
+        // Publish this round's expectations to the threads the delegate may report from
+        ExpectationSet roundExpectations = new ExpectationSet(expectedDiagnostics);
+        expectations = roundExpectations;
 
         // Build a new wrapper RoundEnvironment that reflects the errors generated
         // by the delegate, not the errors we actually reported
         WrapperRoundEnvironment wrapperRoundEnv = new WrapperRoundEnvironment(roundEnv, delegateGeneratedError);
 
         // Delegate to the delegate processor to do the real processing
-        boolean takeAnnotations = delegate.process(annotations, wrapperRoundEnv);
+        boolean takeAnnotations;
+        activity = "in round " + round + ", in " + delegate.getClass().getName() + ".process() for annotations " + annotations;
+        long startNanos = System.nanoTime();
+        long startAllocated = AllocationCounter.currentThreadAllocatedBytes();
+        try {
+            takeAnnotations = delegate.process(annotations, wrapperRoundEnv);
+        } finally {
+            measured(startNanos, startAllocated);
+            roundTrace.endRound(System.nanoTime() - startNanos);
+            activity = "in the compiler, after round " + round;
+        }
 
         // Check for unconsumed diagnostics
-        for (ElementAndDiagnostic diag : expectedDiagnostics) {
+        for (ElementAndDiagnostic diag : roundExpectations.all) {
             if (diag.matched)
                 continue;
 
-            realEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
-                                               "Expected " + diag.kind + " diagnostic matching regex '" + diag.pattern.pattern() +
-                                               "' but no matching diagnostic was generated.",
-                                               diag.annotatedElement);
+            forward(Diagnostic.Kind.ERROR, "Expected " + diag.kind + " diagnostic matching regex '" + diag.pattern.pattern() +
+                                           "' but no matching diagnostic was generated.", diag.annotatedElement);
+            VerifierStatistics.missing();
+            fire(VerificationEvent.Type.MISSING, diag.kind, null, diag.pattern, diag.annotatedElement);
         }
 
+        if (budget != null)
+            checkBudget();
+
         // If we just ran an artificial "last round", remember that.
         delegateProcessingOver = wrapperRoundEnv.processingOver();
+
+        if (delegateProcessingOver && !suppressed.isEmpty())
+            reportSuppressed();
+
+        if (delegateProcessingOver && modelProfile != null && "report".equals(realEnv.getOptions().get(PROFILE_MODEL_OPTION_NAME)))
+            realEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, modelProfile.toString());
+
         return takeAnnotations;
     }
 
+    /**
+     * Count an unexpected diagnostic that is not being forwarded individually.
+     */
+    private void suppress(Diagnostic.Kind kind, CharSequence msg, Element e) {
+        String element = (e == null ? null : RecordingFiler.describe(e));
+        String message = DIGITS.matcher(msg).replaceAll("#");
+        String key = kind + "\u0000" + element + "\u0000" + message;
+
+        SuppressedGroup group = suppressed.get(key);
+        if (group == null) {
+            SuppressedGroup newGroup = new SuppressedGroup(kind, element, message);
+            group = suppressed.putIfAbsent(key, newGroup);
+            if (group == null)
+                group = newGroup;
+        }
+        group.count.incrementAndGet();
+    }
+
+    /**
+     * Report the unexpected diagnostics that were not forwarded individually as one error, listing the most frequent groups, and forget them.
+     */
+    private void reportSuppressed() {
+        List<SuppressedGroup> groups = new ArrayList<SuppressedGroup>(suppressed.values());
+        suppressed.clear();
+        Collections.sort(groups, new Comparator<SuppressedGroup>() {
+            @Override
+            public int compare(SuppressedGroup a, SuppressedGroup b) {
+                int countA = a.count.get(), countB = b.count.get();
+                return countA > countB ? -1 : (countA < countB ? 1 : 0);
+            }
+        });
+
+        int total = 0;
+        for (SuppressedGroup group : groups)
+            total += group.count.get();
+
+        StringBuilder summary = new StringBuilder();
+        summary.append(total).append(" more unexpected diagnostics were generated by processor, but not reported individually (limit ").append(maxUnexpected)
+            .append(", see the ").append(MAX_UNEXPECTED_OPTION_NAME).append(" option). By kind, element and message, with numbers replaced by '#':");
+        for (int i = 0; i < groups.size() && i < MAX_SUMMARY_GROUPS; ++i) {
+            SuppressedGroup group = groups.get(i);
+            summary.append("\n  ").append(group.count.get()).append(" x ").append(group.kind);
+            if (group.element != null)
+                summary.append(" on ").append(group.element);
+            summary.append(": ").append(group.message);
+        }
+        if (groups.size() > MAX_SUMMARY_GROUPS)
+            summary.append("\n  ... and ").append(groups.size() - MAX_SUMMARY_GROUPS).append(" more groups");
+        forward(Diagnostic.Kind.ERROR, summary, null);
+    }
+
+    /**
+     * Check the totals so far against the performance budget, and report any newly-exceeded limits as errors.
+     */
+    private void checkBudget() {
+        checkLimit("processing time", processingNanos / 1000000, budget[0], "ms");
+        checkLimit("rounds", round, budget[2], "rounds");
+        checkLimit("generated output", filerStatistics.getBytesWritten(), budget[3], "bytes");
+
+        if (budget[1] >= 0 && allocatedBytes < 0) {
+            if (exceededLimits.add("allocation"))
+                realEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                                                   "Allocation budget cannot be checked: this JVM does not support per-thread allocation measurement",
+                                                   budgetElement);
+        } else {
+            checkLimit("allocation", allocatedBytes, budget[1], "bytes");
+        }
+    }
+
+    private void checkLimit(String what, long used, long limit, String unit) {
+        if (limit < 0 || used <= limit || !exceededLimits.add(what))
+            return;
+
+        String message = "Performance budget exceeded for " + what + ": used " + used + " " + unit + ", budget is " + limit + " " + unit;
+        forward(Diagnostic.Kind.ERROR, message, budgetElement);
+        fire(VerificationEvent.Type.BUDGET_EXCEEDED, Diagnostic.Kind.ERROR, message, null, budgetElement);
+    }
+
+    /**
+     * Report a diagnostic to the compiler, from any thread.
+     */
+    private void forward(Diagnostic.Kind kind, CharSequence message, Element element) {
+        synchronized (forwardLock) {
+            realEnv.getMessager().printMessage(kind, message, element);
+        }
+    }
+
     private class WrapperRoundEnvironment implements RoundEnvironment {
         private final RoundEnvironment delegateEnv;
         private final boolean lastRoundHadErrors;
@@ -317,17 +891,17 @@ public class VerifyingProcessor implements Processor {
 
         @Override
         public Filer getFiler() {
-            return realEnv.getFiler();
+            return recordingFiler;
         }
 
         @Override
         public Elements getElementUtils() {
-            return realEnv.getElementUtils();
+            return elementUtils;
         }
 
         @Override
         public Types getTypeUtils() {
-            return realEnv.getTypeUtils();
+            return typeUtils;
         }
 
         @Override
@@ -363,21 +937,26 @@ public class VerifyingProcessor implements Processor {
         }
 
         private void matchDiagnostic(Kind kind, CharSequence msg, Element e) {
+            checkCancelled();
             if (kind == Diagnostic.Kind.ERROR)
                 delegateGeneratedError = true;
 
+            // This may run on any thread the delegate reports from. The expectations are immutable apart from the volatile matched flags, so matching
+            // needs no lock; only forwarding to the real Messager is serialized.
             boolean matched = false;
-            for (Iterator<ElementAndDiagnostic> i = expectedDiagnostics.iterator(); i.hasNext();) {
-                ElementAndDiagnostic diag = i.next();
-                if (diag.kind == kind && (diag.matchElement && e != null && e.equals(diag.annotatedElement) || !diag.matchElement && e == null) &&
-                    diag.pattern.matcher(msg).find()) {
-                    diag.matched = matched = true;
-                }
+            for (ElementAndDiagnostic diag : expectations.matching(e, kind, msg)) {
+                diag.matched = matched = true;
+                VerifierStatistics.matched();
+                fire(VerificationEvent.Type.MATCHED, kind, msg, diag.pattern, e);
             }
 
             if (!matched) {
-                realEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
-                                                   "Unexpected " + kind + " diagnostic generated by processor: " + msg, e);
+                VerifierStatistics.unexpected();
+                if (unexpectedCount.incrementAndGet() <= maxUnexpected)
+                    forward(Diagnostic.Kind.ERROR, "Unexpected " + kind + " diagnostic generated by processor: " + msg, e);
+                else
+                    suppress(kind, msg, e);
+                fire(VerificationEvent.Type.UNEXPECTED, kind, msg, null, e);
             }
         }
     }
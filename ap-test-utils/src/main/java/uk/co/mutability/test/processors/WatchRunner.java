@@ -0,0 +1,630 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Watches compiled test classes and processor classes, and re-verifies the test classes affected by each change, for a fast edit-verify loop while
+ * developing a processor.
+ * <p>
+ * The runner verifies every test class with an expectation index in the test directories, then waits for changes to the test directories and the processor
+ * directories with a {@link WatchService}. When a build writes new class files, it waits for a short quiet period, then re-verifies only the test classes
+ * affected by the changed classes, and delivers each result to a {@link Listener} as it finishes. A test class is affected by a change to:
+ * <ul>
+ * <li>its own class files or expectation index;
+ * <li>any class its class files refer to, directly or through other classes in the test directories, such as its supertypes and annotation types; or
+ * <li>any class that was loaded from the processor directories while its processor ran.
+ * </ul>
+ * Everything else stays warm between changes: the JVM and its JIT-compiled code, the compiler's own classes, and the standard file manager, which caches
+ * the platform classes. Each processor is loaded from the processor directories into a class loader of its own, before the class path; the loader is kept
+ * until one of the classes it loaded changes, and then replaced, so that the new version of the processor is used.
+ * <p>
+ * Command-line usage:
+ * 
+ * <pre>
+ * WatchRunner -tests DIR [-tests DIR]... [-processors DIR]... [-compilerArg ARG]...
+ * </pre>
+ * 
+ * The processor directories are usually the processor project's target/classes, and the test directories its target/test-classes. If the processor
+ * under test is compiled into the test directory, give that directory as both.
+ */
+public class WatchRunner {
+    /**
+     * Receives the result of each verification as soon as it finishes.
+     */
+    public interface Listener {
+        /**
+         * Called on the watching thread after each verification.
+         * 
+         * @param className the binary name of the test class
+         * @param result the result of verifying it
+         */
+        void verified(String className, VerificationResult result);
+
+        /**
+         * Called on the watching thread when all the test classes affected by a change have been verified.
+         * 
+         * @param verified the number of test classes that were verified
+         * @param elapsedNanos the time from noticing the change to finishing the last verification
+         */
+        void finished(int verified, long elapsedNanos);
+    }
+
+    /** The suffix of class files */
+    private static final String CLASS_SUFFIX = JavaFileObject.Kind.CLASS.extension;
+    /** The suffix of expectation index files */
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final List<Path> testDirectories = new ArrayList<Path>();
+    private final List<Path> processorDirectories = new ArrayList<Path>();
+    private final URL[] processorPath;
+    private final List<String> compilerArgs = new ArrayList<String>();
+    private long quietMillis = 100;
+    private Listener listener = printingListener(System.out);
+
+    /** The file manager shared by every verification, so that platform classes are only indexed once */
+    private final StandardJavaFileManager standardFileManager;
+    /** The class loader for each processor, by processor name */
+    private final Map<String,BuildClassLoader> processorLoaders = new HashMap<String,BuildClassLoader>();
+    /** The processor that verifies each known test class */
+    private final Map<String,String> processorOf = new HashMap<String,String>();
+    /** The classes each known test class depends on, from its last verification */
+    private final Map<String,Set<String>> dependencies = new HashMap<String,Set<String>>();
+
+    private volatile WatchService watcher;
+    private volatile boolean stopped;
+
+    /**
+     * @param testDirectories directories of compiled test classes, with the expectation indexes written by {@link ExpectationIndexProcessor}
+     * @param processorDirectories directories of compiled processor classes; they may include test directories
+     * @throws IOException if a directory does not exist
+     */
+    public WatchRunner(List<File> testDirectories, List<File> processorDirectories) throws IOException {
+        for (File directory : testDirectories)
+            this.testDirectories.add(existingDirectory(directory));
+        List<URL> urls = new ArrayList<URL>();
+        for (File directory : processorDirectories) {
+            this.processorDirectories.add(existingDirectory(directory));
+            urls.add(directory.getCanonicalFile().toURI().toURL());
+        }
+        this.processorPath = urls.toArray(new URL[urls.size()]);
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+            throw new UnsupportedOperationException("No system compiler available via the tool interface");
+        standardFileManager = compiler.getStandardFileManager(null, null, null);
+
+        // The test classes must be on the compiler's class path, ahead of any stale copies on the JVM's class path
+        List<File> classPath = new ArrayList<File>(testDirectories);
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (entry.length() > 0)
+                classPath.add(new File(entry));
+        }
+        standardFileManager.setLocation(StandardLocation.CLASS_PATH, classPath);
+    }
+
+    private static Path existingDirectory(File directory) throws IOException {
+        if (!directory.isDirectory())
+            throw new IOException("Not a directory: " + directory);
+        return directory.getCanonicalFile().toPath();
+    }
+
+    /**
+     * @param listener the listener to deliver results to; the default prints them to standard output
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param quietMillis how long to wait after the last change before verifying, so that a build has finished writing; the default is 100ms
+     */
+    public void setQuietPeriod(long quietMillis) {
+        this.quietMillis = quietMillis;
+    }
+
+    /**
+     * @param argument an argument to pass to the compiler for every verification
+     */
+    public void addCompilerArgument(String argument) {
+        compilerArgs.add(argument);
+    }
+
+    /**
+     * Verify every test class with an expectation index in the test directories.
+     * 
+     * @return the number of test classes that failed
+     * @throws IOException if the test directories cannot be read
+     */
+    public int verifyAll() throws IOException {
+        long start = System.nanoTime();
+        StringBuilder classPath = new StringBuilder();
+        for (Path directory : testDirectories)
+            classPath.append(classPath.length() == 0 ? "" : File.pathSeparator).append(directory);
+
+        int failed = 0;
+        List<String> classNames = ShardedRunner.discover(classPath.toString());
+        for (String className : classNames) {
+            if (!verify(className))
+                ++failed;
+        }
+        listener.finished(classNames.size(), System.nanoTime() - start);
+        return failed;
+    }
+
+    /**
+     * Verify all test classes, then watch for changes and re-verify the affected test classes, until {@link #stop} is called or the thread is interrupted.
+     * 
+     * @throws IOException if the directories cannot be watched
+     * @throws InterruptedException if the thread is interrupted while waiting for changes
+     */
+    public void watch() throws IOException, InterruptedException {
+        watcher = FileSystems.getDefault().newWatchService();
+        try {
+            for (Path directory : watchedDirectories())
+                register(directory);
+            if (stopped)
+                return;
+            verifyAll();
+
+            while (!stopped) {
+                WatchKey key = watcher.take();
+                long start = System.nanoTime();
+                Set<Path> changed = new LinkedHashSet<Path>();
+                boolean overflow = false;
+                do {
+                    overflow |= collect(key, changed);
+                } while ((key = watcher.poll(quietMillis, TimeUnit.MILLISECONDS)) != null);
+
+                if (overflow) {
+                    // Events were lost, so we cannot tell what changed
+                    invalidateProcessors(null);
+                    verifyAll();
+                    continue;
+                }
+
+                int verified = 0;
+                for (String className : affectedBy(changed)) {
+                    verify(className);
+                    ++verified;
+                }
+                if (verified > 0)
+                    listener.finished(verified, System.nanoTime() - start);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Stopped
+        } finally {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Stop watching. This may be called from any thread; a verification that is running is finished first.
+     */
+    public void stop() {
+        stopped = true;
+        WatchService current = watcher;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Nothing more we can do
+            }
+        }
+    }
+
+    private Set<Path> watchedDirectories() {
+        Set<Path> directories = new LinkedHashSet<Path>(testDirectories);
+        directories.addAll(processorDirectories);
+        return directories;
+    }
+
+    /** Watch a directory and all its subdirectories */
+    private void register(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Add the paths changed by a key's events to a set, and watch any new directories.
+     * 
+     * @return true if events were lost
+     */
+    private boolean collect(WatchKey key, final Set<Path> changed) throws IOException {
+        Path directory = (Path) key.watchable();
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+
+            Path path = directory.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+                // Files may have been written before we could watch the directory, so count them all as changed
+                register(path);
+                Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        changed.add(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+            changed.add(path);
+        }
+        key.reset();
+        return overflow;
+    }
+
+    /**
+     * Work out which test classes are affected by changes to some files, and forget test classes whose indexes were deleted. Processor class loaders that
+     * loaded a changed class are discarded.
+     * 
+     * @param changedPaths the files that changed
+     * @return the binary names of the affected test classes, in sorted order
+     */
+    Set<String> affectedBy(Collection<Path> changedPaths) {
+        Set<String> changedClasses = new HashSet<String>();
+        Set<String> affected = new TreeSet<String>();
+        boolean otherProcessorFile = false;
+        for (Path path : changedPaths) {
+            for (Path root : watchedDirectories()) {
+                if (!path.startsWith(root) || path.equals(root))
+                    continue;
+
+                String relative = root.relativize(path).toString().replace(File.separatorChar, '/');
+                if (relative.endsWith(CLASS_SUFFIX)) {
+                    changedClasses.add(relative.substring(0, relative.length() - CLASS_SUFFIX.length()).replace('/', '.'));
+                } else if (relative.startsWith(ExpectationIndex.RESOURCE_PREFIX) && relative.endsWith(INDEX_SUFFIX)) {
+                    String className = relative.substring(ExpectationIndex.RESOURCE_PREFIX.length(), relative.length() - INDEX_SUFFIX.length());
+                    if (testDirectories.contains(root)) {
+                        if (Files.exists(path)) {
+                            affected.add(className);
+                        } else {
+                            processorOf.remove(className);
+                            dependencies.remove(className);
+                        }
+                    }
+                } else if (processorDirectories.contains(root) && !Files.isDirectory(path)) {
+                    otherProcessorFile = true; // A resource the processor may read
+                }
+            }
+        }
+
+        affected.addAll(affectedBy(changedClasses, otherProcessorFile));
+        return affected;
+    }
+
+    /**
+     * Work out which known test classes are affected by changed classes, discarding processor class loaders that loaded any of them.
+     * 
+     * @param changedClasses the binary names of the changed classes
+     * @param invalidateAll true if every processor may be affected
+     * @return the binary names of the affected test classes
+     */
+    Set<String> affectedBy(Set<String> changedClasses, boolean invalidateAll) {
+        Set<String> changedProcessors = invalidateProcessors(invalidateAll ? null : changedClasses);
+
+        Set<String> affected = new TreeSet<String>();
+        for (Map.Entry<String,Set<String>> entry : dependencies.entrySet()) {
+            String className = entry.getKey();
+            if (changedProcessors.contains(processorOf.get(className)))
+                affected.add(className);
+            for (String dependency : entry.getValue()) {
+                if (changedClasses.contains(dependency)) {
+                    affected.add(className);
+                    break;
+                }
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * Discard the class loaders of processors that loaded any of some classes.
+     * 
+     * @param changedClasses the changed classes, or null to discard every processor class loader
+     * @return the names of the processors whose loaders were discarded
+     */
+    private Set<String> invalidateProcessors(Set<String> changedClasses) {
+        Set<String> invalidated = new HashSet<String>();
+        for (Map.Entry<String,BuildClassLoader> entry : processorLoaders.entrySet()) {
+            if (changedClasses == null || entry.getValue().loadedAny(changedClasses))
+                invalidated.add(entry.getKey());
+        }
+        processorLoaders.keySet().removeAll(invalidated);
+        return invalidated;
+    }
+
+    /**
+     * Verify one test class with the current version of its processor, and record what it depends on.
+     * 
+     * @return true if it passed
+     */
+    private boolean verify(String className) {
+        VerificationResult result;
+        try {
+            String processorName = readProcessorName(className);
+            BuildClassLoader loader = processorLoaders.get(processorName);
+            if (loader == null) {
+                loader = new BuildClassLoader(processorPath, WatchRunner.class.getClassLoader());
+                processorLoaders.put(processorName, loader);
+            }
+            processorOf.put(className, processorName);
+            dependencies.put(className, dependenciesOf(className));
+
+            Processor processor = Verifier.newProcessor(loader, processorName);
+            String[] args = compilerArgs.toArray(new String[compilerArgs.size()]);
+            result = Verifier.compile(new VerifyingProcessor(processor), new MemoryFileManager(standardFileManager), Arrays.asList(className), null, args);
+        } catch (IOException e) {
+            result = failure("Unable to verify " + className + ": " + e);
+        } catch (RuntimeException e) {
+            result = failure("Verification of " + className + " failed: " + e);
+        } catch (LinkageError e) {
+            result = failure("Verification of " + className + " failed: " + e);
+        }
+
+        listener.verified(className, result);
+        return result.getDiagnostics().isEmpty();
+    }
+
+    private static VerificationResult failure(String message) {
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<Diagnostic<? extends JavaFileObject>>();
+        diagnostics.add(new SimpleDiagnostic<JavaFileObject>(Diagnostic.Kind.ERROR, message));
+        return new VerificationResult(diagnostics);
+    }
+
+    /** @return the processor named by a test class's expectation index */
+    private String readProcessorName(String className) throws IOException {
+        Path index = find(ExpectationIndex.resourceName(className));
+        if (index == null)
+            throw new IOException("No expectation index for " + className);
+
+        InputStream in = new FileInputStream(index.toFile());
+        try {
+            return ExpectationIndex.read(in).getProcessorName();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** @return the file with a given resource name in the first test directory that has it, or null */
+    private Path find(String resourceName) {
+        for (Path directory : testDirectories) {
+            Path file = directory.resolve(resourceName);
+            if (Files.isRegularFile(file))
+                return file;
+        }
+        return null;
+    }
+
+    /**
+     * Find the classes a test class depends on: its own class files and those of its member classes, and every class they refer to, following references
+     * through the test directories.
+     */
+    private Set<String> dependenciesOf(String className) throws IOException {
+        Set<String> found = new HashSet<String>();
+        List<String> pending = new ArrayList<String>();
+        pending.add(className);
+        while (!pending.isEmpty()) {
+            String name = pending.remove(pending.size() - 1);
+            if (!found.add(name))
+                continue;
+
+            Path classFile = find(name.replace('.', '/') + CLASS_SUFFIX);
+            if (classFile == null)
+                continue; // Not one of ours; a change to it will still be noticed if it is in a processor directory
+
+            pending.addAll(classReferences(classFile.toFile()));
+            // Member classes are in their own files, and are not always referred to by the outer class
+            String prefix = classFile.getFileName().toString();
+            prefix = prefix.substring(0, prefix.length() - CLASS_SUFFIX.length()) + "$";
+            String[] siblings = classFile.getParent().toFile().list();
+            if (siblings != null) {
+                for (String sibling : siblings) {
+                    if (sibling.startsWith(prefix) && sibling.endsWith(CLASS_SUFFIX))
+                        pending.add(name + sibling.substring(prefix.length() - 1, sibling.length() - CLASS_SUFFIX.length()));
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Read the binary names of the classes a class file refers to, from the class entries of its constant pool and the type descriptors among its strings,
+     * which include annotation types.
+     */
+    static Set<String> classReferences(File classFile) throws IOException {
+        Set<String> references = new HashSet<String>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(classFile)));
+        try {
+            if (in.readInt() != 0xCAFEBABE)
+                throw new IOException("Not a class file: " + classFile);
+            in.readUnsignedShort(); // Minor version
+            in.readUnsignedShort(); // Major version
+
+            int count = in.readUnsignedShort();
+            String[] strings = new String[count];
+            List<Integer> classEntries = new ArrayList<Integer>();
+            for (int i = 1; i < count; ++i) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                case 1: // Utf8
+                    strings[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                    classEntries.add(in.readUnsignedShort());
+                    break;
+                case 8: case 16: case 19: case 20: // String, MethodType, Module, Package
+                    in.readUnsignedShort();
+                    break;
+                case 15: // MethodHandle
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: // Integer, Float, refs, NameAndType, Dynamic, InvokeDynamic
+                    in.readInt();
+                    break;
+                case 5: case 6: // Long, Double take two entries
+                    in.readLong();
+                    ++i;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag + " in " + classFile);
+                }
+            }
+
+            for (int index : classEntries) {
+                String name = strings[index];
+                if (name != null && !name.startsWith("["))
+                    references.add(name.replace('/', '.'));
+            }
+            for (String string : strings) {
+                if (string != null)
+                    addDescriptorTypes(string, references);
+            }
+        } finally {
+            in.close();
+        }
+        return references;
+    }
+
+    /** Add the class names in any type descriptors ("Lpkg/Name;") in a string, which need not be a descriptor */
+    private static void addDescriptorTypes(String string, Set<String> references) {
+        int start = string.indexOf('L');
+        while (start != -1) {
+            int end = string.indexOf(';', start);
+            if (end == -1)
+                return;
+            String name = string.substring(start + 1, end);
+            if (name.indexOf('/') != -1 && name.indexOf(' ') == -1 && name.indexOf('(') == -1 && name.indexOf('<') == -1)
+                references.add(name.replace('/', '.'));
+            start = string.indexOf('L', start + 1);
+        }
+    }
+
+    /**
+     * @param out the stream to print to
+     * @return a listener that prints each result, with the messages of failures, and the time each batch took
+     */
+    public static Listener printingListener(final PrintStream out) {
+        return new Listener() {
+            @Override
+            public void verified(String className, VerificationResult result) {
+                List<Diagnostic<? extends JavaFileObject>> diagnostics = result.getDiagnostics();
+                out.println((diagnostics.isEmpty() ? "PASS " : "FAIL ") + className + " (" + result.getElapsedNanos() / 1000000 + "ms)");
+                for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics)
+                    out.println("  " + diagnostic.getMessage(null));
+            }
+
+            @Override
+            public void finished(int verified, long elapsedNanos) {
+                out.println(verified + " test classes verified in " + elapsedNanos / 1000000 + "ms; watching for changes");
+            }
+        };
+    }
+
+    /**
+     * Command-line entry point; see the class documentation for usage.
+     * 
+     * @param args command-line arguments
+     * @throws Exception if the directories cannot be watched
+     */
+    public static void main(String[] args) throws Exception {
+        List<File> tests = new ArrayList<File>();
+        List<File> processors = new ArrayList<File>();
+        List<String> compilerArgs = new ArrayList<String>();
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if (i + 1 == args.length)
+                usage("Missing value for " + arg);
+            else if (arg.equals("-tests"))
+                tests.add(new File(args[++i]));
+            else if (arg.equals("-processors"))
+                processors.add(new File(args[++i]));
+            else if (arg.equals("-compilerArg"))
+                compilerArgs.add(args[++i]);
+            else
+                usage("Unexpected argument: " + arg);
+        }
+        if (tests.isEmpty())
+            usage("No test directories given");
+
+        WatchRunner runner = new WatchRunner(tests, processors);
+        for (String arg : compilerArgs)
+            runner.addCompilerArgument(arg);
+        runner.watch();
+    }
+
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: WatchRunner -tests DIR [-tests DIR]... [-processors DIR]... [-compilerArg ARG]...");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.mutability.test.processors.Verifier.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link Verifier#benchmark}.
+ */
+public class BenchmarkTest {
+    @Test
+    public void existingTestInputsAreBenchmarks() {
+        BenchmarkResult result = benchmark(GenerateAttachedDiagnosticsTest.class, 1, 5);
+
+        assertNoDiagnostics(result.getDiagnostics());
+        assertEquals(5, result.getIterations());
+        assertTrue(result.getProcessingNanos().getMin() > 0);
+        assertTrue(result.getProcessingNanos().getMin() <= result.getProcessingNanos().getMedian());
+        assertTrue(result.getProcessingNanos().getMedian() <= result.getProcessingNanos().getP99());
+        assertTrue(result.getTotalNanos().getMin() >= result.getProcessingNanos().getMin());
+        assertTrue(result.toString().contains("processing"));
+    }
+
+    @Test
+    public void percentilesUseNearestRank() {
+        BenchmarkResult.Distribution distribution = new BenchmarkResult.Distribution(new long[] { 5, 1, 4, 2, 3 });
+        assertEquals(1, distribution.getMin());
+        assertEquals(3, distribution.getMedian());
+        assertEquals(5, distribution.getP99());
+        assertEquals(2, distribution.getPercentile(40));
+        assertEquals(3.0, distribution.getMean(), 0);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedSourceVersion;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+
+/**
+ * This annotation processor reports a warning naming each method of each root type, from a pool of worker threads. It is used to test that expected
+ * diagnostics are matched correctly when they are reported concurrently.
+ */
+@SupportedAnnotationTypes("*")
+@SupportedSourceVersion(SourceVersion.RELEASE_6)
+public class ConcurrentReportingProcessor extends AbstractProcessor {
+    /** The number of reporting threads */
+    public static final int THREADS = 8;
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        List<Element> methods = new ArrayList<Element>();
+        for (Element root : roundEnv.getRootElements()) {
+            for (Element member : root.getEnclosedElements()) {
+                if (member.getKind() == ElementKind.METHOD)
+                    methods.add(member);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        for (final Element method : methods) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Reported concurrently: " + method.getSimpleName(), method);
+                }
+            });
+        }
+
+        pool.shutdown();
+        try {
+            pool.awaitTermination(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+}
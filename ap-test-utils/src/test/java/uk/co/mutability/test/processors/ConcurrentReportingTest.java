@@ -0,0 +1,98 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static uk.co.mutability.test.processors.Verifier.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import org.junit.Test;
+
+/**
+ * Tests that diagnostics reported from a processor's own worker threads are matched correctly.
+ */
+public class ConcurrentReportingTest {
+    private static final int METHODS = 500;
+
+    private static List<JavaFileObject> input(int expectedMethods) {
+        StringBuilder source = new StringBuilder();
+        source.append("package concurrent;\n");
+        source.append("@uk.co.mutability.test.processors.VerifyDiagnostics(uk.co.mutability.test.processors.ConcurrentReportingProcessor.class)\n");
+        source.append("public class Input {\n");
+        for (int i = 0; i < METHODS; ++i) {
+            if (i < expectedMethods)
+                source.append("    @uk.co.mutability.test.processors.ExpectDiagnostic(value=\"concurrently: m").append(i)
+                    .append("$\", kind=javax.tools.Diagnostic.Kind.WARNING)\n");
+            source.append("    public void m").append(i).append("() {}\n");
+        }
+        source.append("}\n");
+        return Collections.<JavaFileObject> singletonList(new MemorySourceFile("concurrent.Input", source.toString()));
+    }
+
+    @Test
+    public void concurrentReportsAreAllMatched() throws Exception {
+        final List<VerificationEvent> events = Collections.synchronizedList(new ArrayList<VerificationEvent>());
+        VerificationListener listener = new VerificationListener() {
+            @Override
+            public void verificationEvent(VerificationEvent event) {
+                events.add(event);
+            }
+        };
+
+        VerificationResult result = startVerification(new ConcurrentReportingProcessor(), input(METHODS), listener).get();
+        assertNoDiagnostics(result.getDiagnostics());
+        assertEquals(METHODS, events.size());
+    }
+
+    @Test
+    public void concurrentUnexpectedReportsAreAllForwarded() {
+        List<?> diagnostics = verify(new ConcurrentReportingProcessor(), input(METHODS / 2), "-Xmaxerrs", "1000", "-Amutabilty.test.maxUnexpected=1000")
+            .getDiagnostics();
+        assertEquals(METHODS / 2, diagnostics.size());
+    }
+
+    @Test
+    public void floodsOfUnexpectedReportsAreSummarised() {
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = verify(new ConcurrentReportingProcessor(), input(METHODS / 2)).getDiagnostics();
+        assertEquals(VerifyingProcessor.DEFAULT_MAX_UNEXPECTED + 1, diagnostics.size());
+
+        String summary = diagnostics.get(diagnostics.size() - 1).getMessage(null);
+        assertTrue(summary, summary.startsWith((METHODS / 2 - VerifyingProcessor.DEFAULT_MAX_UNEXPECTED) + " more unexpected diagnostics"));
+        assertTrue(summary, summary.contains(" 1 x WARNING on concurrent.Input.m"));
+        assertTrue(summary, summary.contains("(): Reported concurrently: m#\n"));
+
+        try {
+            assertNoDiagnostics(diagnostics, 10);
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("\n ... and " + (diagnostics.size() - 10) + " more"));
+            return;
+        }
+        fail("Expected assertNoDiagnostics to fail");
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertTrue;
+import static uk.co.mutability.test.processors.Verifier.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for deadline-bounded verification.
+ */
+public class DeadlineTest {
+    @After
+    public void clearDeadline() {
+        setDeadline(0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void overdueVerificationIsCancelledAndReported() throws Exception {
+        SpinningProcessor.stopped = new CountDownLatch(1);
+        setDeadline(3000, TimeUnit.MILLISECONDS);
+        List<JavaFileObject> sources = Collections.<JavaFileObject> singletonList(new MemorySourceFile("Spin", "public class Spin {}"));
+
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = checkProcessorDiagnostics(new SpinningProcessor(), sources);
+        assertTrue(SpinningProcessor.stopped.await(60, TimeUnit.SECONDS));
+
+        String message = diagnostics.get(diagnostics.size() - 1).getMessage(null);
+        assertTrue(message, message.startsWith("Verification exceeded its deadline of 3000ms in round 1, in " + SpinningProcessor.class.getName() +
+                                               ".process()"));
+        assertTrue(message, message.contains("it stopped when cancelled"));
+        assertTrue(message, message.contains(SpinningProcessor.class.getName() + ".process(SpinningProcessor.java"));
+    }
+
+    @Test
+    public void verificationWithinDeadlineIsUnaffected() {
+        setDeadline(60, TimeUnit.SECONDS);
+        assertNoDiagnostics(checkProcessorDiagnostics(GenerateAttachedDiagnosticsTest.class));
+    }
+}
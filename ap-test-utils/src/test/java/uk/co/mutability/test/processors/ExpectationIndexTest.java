@@ -0,0 +1,297 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static uk.co.mutability.test.processors.Verifier.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.junit.Test;
+
+/**
+ * Tests for the expectation index written by {@link ExpectationIndexProcessor} when the test sources were compiled.
+ */
+public class ExpectationIndexTest {
+    @Test
+    public void indexWasWrittenForTestClasses() throws IOException {
+        InputStream in = getClass().getClassLoader().getResourceAsStream(ExpectationIndex.resourceName(GenerateAttachedDiagnosticsTest.class.getName()));
+        assertNotNull(in);
+
+        ExpectationIndex index = ExpectationIndex.read(in);
+        assertEquals(ComplainingProcessor.class.getName(), index.getProcessorName());
+        assertTrue(index.matches(getClass().getClassLoader(), GenerateAttachedDiagnosticsTest.class.getName()));
+        assertEquals(2, index.getRecords(GenerateAttachedDiagnosticsTest.class.getName() + "#dummy2()").size());
+        assertEquals(1, index.getRecords(GenerateAttachedDiagnosticsTest.class.getName() + "#<init>()").size());
+    }
+
+    @Test
+    public void verifiesByNameFromTheIndex() {
+        VerificationResult result = verify(GenerateAttachedDiagnosticsTest.class.getName());
+        assertNoDiagnostics(result.getDiagnostics());
+    }
+
+    @Test
+    public void runnersVerifyByNameWithOrWithoutAnIndex() throws ClassNotFoundException {
+        ClassLoader loader = getClass().getClassLoader();
+        assertTrue(Verifier.hasIndex(loader, GenerateAttachedDiagnosticsTest.class.getName()));
+        assertFalse(Verifier.hasIndex(loader, ExpectationIndexTest.class.getName()));
+
+        assertNoDiagnostics(Verifier.verifyByName(GenerateAttachedDiagnosticsTest.class.getName()));
+    }
+
+    @Test
+    public void indexAndAnnotationsAgree() {
+        assertNoDiagnostics(verify(GenerateUnattachedDiagnosticsTest.class, "-A" + VerifyingProcessor.USE_INDEX_OPTION_NAME + "=false").getDiagnostics());
+        assertNoDiagnostics(verify(GenerateUnattachedDiagnosticsTest.class).getDiagnostics());
+    }
+
+    @Test
+    public void indexIsUsedWhenItMatchesTheAnnotations() throws IOException {
+        // An expectation that is only in the index, so the verification fails if and only if the index is used
+        String index = indexText(GenerateAttachedDiagnosticsTest.class) + "expect\t" + GenerateAttachedDiagnosticsTest.class.getName()
+                       + "#dummy1()\tERROR\tOnly in the index\n";
+
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = verifyWithIndex(GenerateAttachedDiagnosticsTest.class, index);
+        assertEquals(1, diagnostics.size());
+        assertTrue(diagnostics.get(0).getMessage(null).contains("Only in the index"));
+    }
+
+    @Test
+    public void staleIndexIsIgnored() throws IOException {
+        String index = indexText(GenerateAttachedDiagnosticsTest.class).replaceFirst("fingerprint\t[0-9a-f]+", "fingerprint\t0")
+                       + "expect\t" + GenerateAttachedDiagnosticsTest.class.getName() + "#dummy1()\tERROR\tOnly in the index\n";
+
+        assertNoDiagnostics(verifyWithIndex(GenerateAttachedDiagnosticsTest.class, index));
+    }
+
+    @Test
+    public void indexIsIgnoredForSourceRoots() throws IOException {
+        // The source has no expectation annotations, and the processor reports nothing, so an expectation in the index would fail the verification
+        String index = "processor\t" + ComplainingProcessor.class.getName() + "\nexpect\tindexed.Input#method()\tERROR\tOnly in the index\n";
+        List<JavaFileObject> sources = Collections.<JavaFileObject> singletonList(new MemorySourceFile("indexed.Input",
+            "package indexed;\n" +
+            "@uk.co.mutability.test.processors.VerifyDiagnostics(uk.co.mutability.test.processors.ComplainingProcessor.class)\n" +
+            "public class Input {\n" +
+            "    public void method() {}\n" +
+            "}\n"));
+
+        ClassLoader oldLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(withResource(ExpectationIndex.resourceName("indexed.Input"), index));
+        try {
+            assertNoDiagnostics(verify(new ComplainingProcessor(), sources).getDiagnostics());
+        } finally {
+            Thread.currentThread().setContextClassLoader(oldLoader);
+        }
+    }
+
+    @Test
+    public void indexIsCheaperThanTheAnnotations() throws Exception {
+        File directory = File.createTempFile("indexed", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        try {
+            // A large test class, with a few expectations among many elements: reading the annotations means visiting every method and parameter, but
+            // the cost of the index does not depend on the number of parameters
+            StringBuilder source = new StringBuilder("package indexed;\n"
+                                                     + "@uk.co.mutability.test.processors.VerifyDiagnostics(uk.co.mutability.test.processors.ComplainingProcessor.class)\n"
+                                                     + "public class Large {\n");
+            for (int i = 0; i < 400; ++i) {
+                if (i % 20 == 0) {
+                    source.append("    @uk.co.mutability.test.processors.Complaint(\"Complaint " + i + "\")\n");
+                    source.append("    @uk.co.mutability.test.processors.ExpectDiagnostic(\"Complaint " + i + "\")\n");
+                }
+                source.append("    public void method" + i + "(");
+                for (int j = 0; j < 120; ++j)
+                    source.append(j == 0 ? "" : ", ").append("int p" + j);
+                source.append(") {}\n");
+            }
+            source.append("}\n");
+
+            compileWithIndex(directory, "indexed.Large", source.toString());
+
+            ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() }, ExpectationIndexTest.class.getClassLoader());
+            assertTrue(Verifier.hasIndex(loader, "indexed.Large"));
+
+            ClassLoader oldLoader = Thread.currentThread().getContextClassLoader();
+            Thread.currentThread().setContextClassLoader(loader);
+            try {
+                // Compare the fastest of several verifications each way, after some warm-up verifications, as for Verifier.benchmark()
+                long indexed = Long.MAX_VALUE, annotations = Long.MAX_VALUE;
+                for (int i = 0; i < 15; ++i) {
+                    long indexedNanos = expectationNanos(directory);
+                    long annotationNanos = expectationNanos(directory, "-A" + VerifyingProcessor.USE_INDEX_OPTION_NAME + "=false");
+                    if (i >= 5) {
+                        indexed = Math.min(indexed, indexedNanos);
+                        annotations = Math.min(annotations, annotationNanos);
+                    }
+                }
+                assertTrue("Reading the index took " + indexed + "ns, reading the annotations took " + annotations + "ns", indexed < annotations);
+            } finally {
+                Thread.currentThread().setContextClassLoader(oldLoader);
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void processorIsReadFromTheAnnotationForATestClass() throws Exception {
+        File directory = File.createTempFile("indexed", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        try {
+            compileWithIndex(directory, "indexed.Renamed", "package indexed;\n"
+                                                           + "@uk.co.mutability.test.processors.VerifyDiagnostics(uk.co.mutability.test.processors.ComplainingProcessor.class)\n"
+                                                           + "public class Renamed {\n"
+                                                           + "    @uk.co.mutability.test.processors.Complaint(\"Complaint\")\n"
+                                                           + "    @uk.co.mutability.test.processors.ExpectDiagnostic(\"Complaint\")\n"
+                                                           + "    public void method() {}\n"
+                                                           + "}\n");
+
+            // Name a processor that does not exist, without touching the fingerprint: the index still matches the expectation annotations, but not
+            // @VerifyDiagnostics
+            File indexFile = new File(directory, ExpectationIndex.resourceName("indexed.Renamed"));
+            String index = readFully(new FileInputStream(indexFile)).replaceFirst("processor\t[^\n]+", "processor\tindexed.NoSuchProcessor");
+            Writer out = new OutputStreamWriter(new FileOutputStream(indexFile), "UTF-8");
+            try {
+                out.write(index);
+            } finally {
+                out.close();
+            }
+
+            ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() }, ExpectationIndexTest.class.getClassLoader());
+            assertTrue(Verifier.hasIndex(loader, "indexed.Renamed"));
+
+            ClassLoader oldLoader = Thread.currentThread().getContextClassLoader();
+            Thread.currentThread().setContextClassLoader(loader);
+            try {
+                VerificationResult result = verify(Class.forName("indexed.Renamed", false, loader), "-classpath",
+                                                   directory.getPath() + File.pathSeparator + System.getProperty("java.class.path"));
+                assertNoDiagnostics(result.getDiagnostics());
+            } finally {
+                Thread.currentThread().setContextClassLoader(oldLoader);
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Compile a test class into a directory, writing its expectation index alongside it.
+     */
+    private static void compileWithIndex(File directory, String className, String source) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, null, Arrays.asList("-d", directory.getPath()), null,
+                                                             Arrays.asList(new MemorySourceFile(className, source)));
+        task.setProcessors(Collections.singleton(new ExpectationIndexProcessor()));
+        assertTrue(task.call());
+    }
+
+    /**
+     * Verify the large test class compiled into a directory.
+     * 
+     * @return the time the verifying processor spent finding the expected diagnostics
+     */
+    private static long expectationNanos(File directory, String... compilerArgs) {
+        List<String> args = new ArrayList<String>(Arrays.asList("-classpath", directory.getPath() + File.pathSeparator + System.getProperty("java.class.path")));
+        args.addAll(Arrays.asList(compilerArgs));
+
+        VerifyingProcessor processor = new VerifyingProcessor(new ComplainingProcessor());
+        assertNoDiagnostics(Verifier.compile(processor, null, Arrays.asList("indexed.Large"), null, args.toArray(new String[args.size()])).getDiagnostics());
+        return processor.getExpectationNanos();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Verify a test class with the given index in place of its own.
+     */
+    private static List<Diagnostic<? extends JavaFileObject>> verifyWithIndex(Class<?> testClass, String index) throws IOException {
+        ClassLoader oldLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(withResource(ExpectationIndex.resourceName(testClass.getName()), index));
+        try {
+            return verify(testClass).getDiagnostics();
+        } finally {
+            Thread.currentThread().setContextClassLoader(oldLoader);
+        }
+    }
+
+    /**
+     * @return the text of the index written for a test class when the tests were compiled
+     */
+    private static String indexText(Class<?> testClass) throws IOException {
+        return readFully(ExpectationIndexTest.class.getClassLoader().getResourceAsStream(ExpectationIndex.resourceName(testClass.getName())));
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1)
+                out.write(buffer, 0, n);
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return a class loader that finds the given resource, and everything that the test's own class loader finds
+     */
+    private static ClassLoader withResource(final String name, String content) throws IOException {
+        final byte[] bytes = content.getBytes("UTF-8");
+        return new ClassLoader(ExpectationIndexTest.class.getClassLoader()) {
+            @Override
+            public InputStream getResourceAsStream(String resourceName) {
+                return resourceName.equals(name) ? new ByteArrayInputStream(bytes) : super.getResourceAsStream(resourceName);
+            }
+        };
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.co.mutability.test.processors.Verifier.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaFileObject;
+
+import org.junit.Test;
+
+/**
+ * Tests that VerifyingProcessor records the files written by the processor under test.
+ */
+public class FilerStatisticsTest {
+    private static final String INPUT =
+        "package gen;\n" +
+        "@uk.co.mutability.test.processors.VerifyDiagnostics(uk.co.mutability.test.processors.GeneratingProcessor.class)\n" +
+        "@uk.co.mutability.test.processors.Generate(value=\"gen.First\", annotations=\"@uk.co.mutability.test.processors.Generate(\\\"gen.Second\\\")\")\n" +
+        "public class Input {\n" +
+        "    @uk.co.mutability.test.processors.Generate(value=\"gen.Again\", copies=2)\n" +
+        "    public void method() {}\n" +
+        "}\n";
+
+    @Test
+    public void outputsAreRecordedPerRoundAndElement() {
+        List<JavaFileObject> sources = Collections.<JavaFileObject>singletonList(new MemorySourceFile("gen.Input", INPUT));
+        VerificationResult result = verify(new GeneratingProcessor(), sources);
+        assertNoDiagnostics(result.getDiagnostics());
+
+        FilerStatistics stats = result.getFilerStatistics();
+        assertEquals(4, stats.getFileCount());
+        assertEquals(3, stats.getFileCount(1));
+        assertEquals(1, stats.getFileCount(2));
+        assertTrue(stats.getBytesWritten(1) > 0);
+        assertTrue(stats.getBytesWritten(2) > 0);
+
+        Map<String,Long> byElement = stats.getBytesWrittenByElement();
+        assertTrue(byElement.get("gen.Input") > 0);
+        assertTrue(byElement.get("gen.Input.method()") > 0);
+        assertTrue(byElement.get("gen.First") > 0);
+
+        List<FilerStatistics.Output> suspicious = stats.getSuspiciousOutputs();
+        assertEquals(1, suspicious.size());
+        assertEquals("gen.Again", suspicious.get(0).getName());
+        assertTrue(suspicious.get(0).isDuplicate());
+        assertFalse(suspicious.get(0).isOverwritten());
+    }
+}
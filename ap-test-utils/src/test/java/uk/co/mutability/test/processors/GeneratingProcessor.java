@@ -0,0 +1,76 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.FilerException;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedSourceVersion;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * This annotation processor generates a source file for each @Generate annotation it sees. It is used to test how VerifyingProcessor records the output of
+ * the processor under test.
+ */
+@SupportedAnnotationTypes("uk.co.mutability.test.processors.Generate")
+@SupportedSourceVersion(SourceVersion.RELEASE_6)
+public class GeneratingProcessor extends AbstractProcessor {
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element annotatedElement : roundEnv.getElementsAnnotatedWith(Generate.class)) {
+            Generate generate = annotatedElement.getAnnotation(Generate.class);
+            for (int i = 0; i < generate.copies(); ++i) {
+                try {
+                    generate(generate, annotatedElement);
+                } catch (FilerException e) {
+                    // Expected when copies > 1
+                } catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to generate " + generate.value() + ": " + e, annotatedElement);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void generate(Generate generate, Element annotatedElement) throws IOException {
+        String name = generate.value();
+        int lastDot = name.lastIndexOf('.');
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(name, annotatedElement);
+        Writer writer = file.openWriter();
+        try {
+            if (lastDot >= 0)
+                writer.write("package " + name.substring(0, lastDot) + ";\n");
+            writer.write(generate.annotations() + "\npublic class " + name.substring(lastDot + 1) + " {}\n");
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedSourceVersion;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * This annotation processor makes the same Elements and Types queries repeatedly for every root element, in the way that a naive processor might. It is
+ * used to test model profiling and memoization in VerifyingProcessor.
+ */
+@SupportedAnnotationTypes("*")
+@SupportedSourceVersion(SourceVersion.RELEASE_6)
+public class LookupProcessor extends AbstractProcessor {
+    /** The number of times each query is repeated per root element */
+    public static final int REPEATS = 5;
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element rootElement : roundEnv.getRootElements()) {
+            if (!(rootElement instanceof TypeElement))
+                continue;
+
+            for (int i = 0; i < REPEATS; ++i) {
+                TypeElement object = processingEnv.getElementUtils().getTypeElement("java.lang.Object");
+                TypeMirror rootType = rootElement.asType();
+                processingEnv.getTypeUtils().isSubtype(rootType, object.asType());
+                processingEnv.getElementUtils().getAllMembers((TypeElement) rootElement).size();
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for {@link MappedJarArchive} and {@link MemoryFileManager#exportArchive}.
+ */
+public class MappedJarArchiveTest {
+    private static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+
+    private static MemoryFileManager compiled;
+    private static byte[] helperClass;
+
+    private static MemoryFileManager newFileManager() {
+        return new MemoryFileManager(COMPILER.getStandardFileManager(null, null, null));
+    }
+
+    @BeforeClass
+    public static void compileHelper() throws IOException {
+        compiled = newFileManager();
+        MemorySourceFile helper = new MemorySourceFile("dep.Helper", "package dep; public class Helper { public static int value() { return 42; } }");
+        MemorySourceFile nested = new MemorySourceFile("dep.inner.Nested", "package dep.inner; public class Nested { }");
+        assertTrue(COMPILER.getTask(null, compiled, null, Arrays.asList("-proc:none"), null, Arrays.asList(helper, nested)).call());
+
+        JavaFileObject file = compiled.getJavaFileForInput(StandardLocation.CLASS_OUTPUT, "dep.Helper", JavaFileObject.Kind.CLASS);
+        helperClass = readAll(file);
+    }
+
+    private static byte[] readAll(JavaFileObject file) throws IOException {
+        InputStream in = file.openInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    private static MappedJarArchive export(boolean compress) throws IOException {
+        return MappedJarArchive.open(exportFile(compress));
+    }
+
+    private static File exportFile(boolean compress) throws IOException {
+        File jar = File.createTempFile("exported", ".jar");
+        jar.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(jar);
+        try {
+            compiled.exportArchive(out.getChannel(), StandardLocation.CLASS_OUTPUT, compress);
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+
+    @Test
+    public void storedEntriesAreServedFromTheMapping() throws IOException {
+        MappedJarArchive archive = export(false);
+        MappedJarArchive.Entry entry = archive.getEntry("dep/Helper.class");
+        assertNotNull(entry);
+        assertTrue(entry.isStored());
+        assertEquals(helperClass.length, archive.getStoredContent(entry).remaining());
+        assertArrayEquals(helperClass, archive.read(entry));
+    }
+
+    @Test
+    public void compressedEntriesAreInflated() throws IOException {
+        MappedJarArchive archive = export(true);
+        MappedJarArchive.Entry entry = archive.getEntry("dep/Helper.class");
+        assertFalse(entry.isStored());
+        assertArrayEquals(helperClass, archive.read(entry));
+    }
+
+    @Test
+    public void directoriesAreIndexed() throws IOException {
+        MappedJarArchive archive = export(true);
+        assertEquals(1, archive.list("dep", false).size());
+        assertEquals(2, archive.list("dep", true).size());
+        assertEquals(0, archive.list("", false).size());
+        assertEquals(2, archive.list("", true).size());
+    }
+
+    @Test
+    public void entryDataPastTheEndOfTheArchiveIsRejected() throws IOException {
+        File jar = exportFile(false);
+        RandomAccessFile file = new RandomAccessFile(jar, "rw");
+        try {
+            // Claim a huge compressed size in each central directory header
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            for (int offset = 0; offset + 4 <= bytes.length; ++offset) {
+                if (buffer.getInt(offset) == 0x02014b50) {
+                    file.seek(offset + 20);
+                    file.write(new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f });
+                }
+            }
+        } finally {
+            file.close();
+        }
+
+        MappedJarArchive archive = MappedJarArchive.open(jar);
+        try {
+            archive.read(archive.getEntry("dep/Helper.class"));
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt local header for dep/Helper.class"));
+        }
+    }
+
+    @Test
+    public void compilesAndLoadsAgainstAnArchiveOnTheClassPath() throws Exception {
+        MemoryFileManager fileManager = newFileManager();
+        fileManager.setIsolated(StandardLocation.CLASS_PATH, true);
+        fileManager.addArchive(StandardLocation.CLASS_PATH, export(false));
+
+        MemorySourceFile main = new MemorySourceFile("app.Main", "package app; public class Main { int v = dep.Helper.value(); }");
+        assertTrue(COMPILER.getTask(null, fileManager, null, Arrays.asList("-proc:none"), null, Arrays.asList(main)).call());
+
+        Class<?> helper = fileManager.getClassLoader(StandardLocation.CLASS_PATH).loadClass("dep.Helper");
+        assertEquals(42, helper.getMethod("value").invoke(null));
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import javax.tools.FileObject;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link MemoryFileManager} storage.
+ */
+public class MemoryFileManagerTest {
+    private static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+
+    private static MemoryFileManager newFileManager() {
+        return new MemoryFileManager(COMPILER.getStandardFileManager(null, null, null));
+    }
+
+    private static FileObject write(MemoryFileManager fileManager, String name, String content) throws IOException {
+        FileObject file = fileManager.getFileForOutput(StandardLocation.CLASS_OUTPUT, "test", name, null);
+        OutputStream out = file.openOutputStream();
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+        return file;
+    }
+
+    private static String read(FileObject file) throws IOException {
+        return new String(readBytes(file), "UTF-8");
+    }
+
+    private static byte[] readBytes(FileObject file) throws IOException {
+        InputStream in = file.openInputStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            bytes.write(buffer, 0, n);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void contentIsReadableWhileWritingAndAfterClose() throws IOException {
+        MemoryFileManager fileManager = newFileManager();
+        FileObject file = fileManager.getFileForOutput(StandardLocation.CLASS_OUTPUT, "test", "partial.txt", null);
+        OutputStream out = file.openOutputStream();
+        out.write("first".getBytes("UTF-8"));
+        assertEquals("first", read(file));
+        out.write(" second".getBytes("UTF-8"));
+        out.close();
+        assertEquals("first second", read(file));
+        assertEquals("first second", read(fileManager.getFileForInput(StandardLocation.CLASS_OUTPUT, "test", "partial.txt")));
+
+        write(fileManager, "partial.txt", "replaced");
+        assertEquals("replaced", read(fileManager.getFileForInput(StandardLocation.CLASS_OUTPUT, "test", "partial.txt")));
+    }
+
+    @Test
+    public void identicalContentIsSharedWhenEnabled() throws IOException {
+        String content = "shared content " + System.nanoTime();
+        MemoryFileManager first = newFileManager();
+        MemoryFileManager second = newFileManager();
+        first.setSharedContent(true);
+        second.setSharedContent(true);
+
+        int before = ContentStore.size();
+        FileObject a = write(first, "a.txt", content);
+        FileObject b = write(second, "b.txt", content);
+        FileObject c = write(second, "c.txt", content);
+        assertEquals(before + 1, ContentStore.size());
+        assertEquals(content, read(a));
+        assertEquals(content, read(b));
+        assertEquals(content, read(c));
+    }
+
+    @Test
+    public void contentIsNotSharedByDefault() throws IOException {
+        int before = ContentStore.size();
+        write(newFileManager(), "unshared.txt", "unshared content " + System.nanoTime());
+        assertEquals(before, ContentStore.size());
+    }
+
+    @Test
+    public void statisticsCountStoredAndWrittenBytes() throws IOException {
+        MemoryFileManager fileManager = newFileManager();
+        write(fileManager, "a.txt", "12345");
+        write(fileManager, "b.txt", "123");
+        write(fileManager, "a.txt", "1");
+
+        MemoryFileManager.Statistics statistics = fileManager.getStatistics();
+        assertEquals(2, statistics.getFileCount(StandardLocation.CLASS_OUTPUT));
+        assertEquals(4, statistics.getStoredBytes(StandardLocation.CLASS_OUTPUT));
+        assertEquals(9, statistics.getWrittenBytes(StandardLocation.CLASS_OUTPUT));
+        assertEquals(8, statistics.getPeakStoredBytes());
+        assertEquals(0, statistics.getFileCount(StandardLocation.SOURCE_OUTPUT));
+    }
+
+    @Test
+    public void replacedFilesStayReadableButAreNotCounted() throws IOException {
+        MemoryFileManager fileManager = newFileManager();
+        FileObject original = write(fileManager, "a.txt", "original");
+        FileObject replacement = write(fileManager, "a.txt", "new");
+
+        assertEquals("original", read(original));
+        assertEquals("new", read(fileManager.getFileForInput(StandardLocation.CLASS_OUTPUT, "test", "a.txt")));
+        assertEquals(3, fileManager.getStatistics().getStoredBytes());
+
+        // Rewriting or deleting the replaced file affects neither the replacement nor the statistics
+        OutputStream out = original.openOutputStream();
+        out.write("rewritten".getBytes("UTF-8"));
+        out.close();
+        assertEquals("rewritten", read(original));
+        assertTrue(original.delete());
+        assertEquals("new", read(replacement));
+        assertEquals(1, fileManager.getStatistics().getFileCount(StandardLocation.CLASS_OUTPUT));
+        assertEquals(3, fileManager.getStatistics().getStoredBytes());
+    }
+
+    @Test
+    public void discardedContentIsCountedButNotKept() throws IOException {
+        MemoryFileManager fileManager = newFileManager();
+        fileManager.setRetention(StandardLocation.CLASS_OUTPUT, MemoryFileManager.Retention.DISCARD);
+        FileObject file = write(fileManager, "discarded.txt", "discarded content");
+
+        MemoryFileManager.Statistics statistics = fileManager.getStatistics();
+        assertEquals(1, statistics.getFileCount());
+        assertEquals(0, statistics.getStoredBytes());
+        assertEquals(17, statistics.getWrittenBytes(StandardLocation.CLASS_OUTPUT));
+        try {
+            read(file);
+            fail("Expected discarded content to be unreadable");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void unreadContentIsReleasedOnFlush() throws IOException {
+        MemoryFileManager fileManager = newFileManager();
+        fileManager.setRetention(StandardLocation.CLASS_OUTPUT, MemoryFileManager.Retention.KEEP_READ);
+        FileObject kept = write(fileManager, "kept.txt", "kept");
+        FileObject released = write(fileManager, "released.txt", "released");
+        assertEquals("kept", read(kept));
+
+        fileManager.flush();
+        assertEquals("kept", read(kept));
+        assertEquals(4, fileManager.getStatistics().getStoredBytes());
+        try {
+            read(released);
+            fail("Expected unread content to be released");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void listFindsOnlyFilesInPackage() throws IOException {
+        MemoryFileManager fileManager = newFileManager();
+        write(fileManager, "a.txt", "a");
+        fileManager.getFileForOutput(StandardLocation.CLASS_OUTPUT, "test.sub", "b.txt", null);
+        fileManager.getFileForOutput(StandardLocation.CLASS_OUTPUT, "other", "c.txt", null);
+
+        EnumSet<JavaFileObject.Kind> kinds = EnumSet.of(JavaFileObject.Kind.OTHER);
+        assertEquals(1, count(fileManager.list(StandardLocation.CLASS_OUTPUT, "test", kinds, false)));
+        assertEquals(2, count(fileManager.list(StandardLocation.CLASS_OUTPUT, "test", kinds, true)));
+        assertEquals(3, count(fileManager.list(StandardLocation.CLASS_OUTPUT, "", kinds, true)));
+    }
+
+    private static int count(Iterable<?> items) {
+        List<Object> list = new ArrayList<Object>();
+        for (Object item : items)
+            list.add(item);
+        return list.size();
+    }
+
+    @Test
+    public void compilesAgainstInMemorySourcePathAndLoadsInMemoryClassPath() throws Exception {
+        MemoryFileManager fileManager = newFileManager();
+        fileManager.setIsolated(StandardLocation.SOURCE_PATH, true);
+        fileManager.addSourceFile("dep.Helper", "package dep; public class Helper { public static int value() { return 42; } }");
+
+        MemorySourceFile main = new MemorySourceFile("app.Main", "package app; public class Main { int v = dep.Helper.value(); }");
+        assertTrue(COMPILER.getTask(null, fileManager, null, Arrays.asList("-proc:none"), null, Arrays.asList(main)).call());
+        JavaFileObject helperClass = fileManager.getJavaFileForInput(StandardLocation.CLASS_OUTPUT, "dep.Helper", JavaFileObject.Kind.CLASS);
+        assertNotNull(helperClass);
+
+        MemoryFileManager loading = newFileManager();
+        loading.setIsolated(StandardLocation.CLASS_PATH, true);
+        loading.addJavaFile(StandardLocation.CLASS_PATH, "dep.Helper", JavaFileObject.Kind.CLASS, readBytes(helperClass));
+        Class<?> helper = loading.getClassLoader(StandardLocation.CLASS_PATH).loadClass("dep.Helper");
+        assertEquals(42, helper.getMethod("value").invoke(null));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link MemoryFileSystem}, the file system view of a {@link MemoryFileManager}.
+ */
+public class MemoryFileSystemTest {
+    private static FileObject write(MemoryFileManager fileManager, String packageName, String name, String content) throws IOException {
+        FileObject file = fileManager.getFileForOutput(StandardLocation.CLASS_OUTPUT, packageName, name, null);
+        OutputStream out = file.openOutputStream();
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+        return file;
+    }
+
+    private static MemoryFileManager newFileManager() throws IOException {
+        MemoryFileManager fileManager = new MemoryFileManager(ToolProvider.getSystemJavaCompiler().getStandardFileManager(null, null, null));
+        write(fileManager, "com.example", "a.txt", "Alpha");
+        write(fileManager, "com.example", "b.txt", "Bravo");
+        write(fileManager, "com.example.sub", "c.txt", "Charlie");
+        fileManager.getJavaFileForOutput(StandardLocation.SOURCE_OUTPUT, "com.example.Gen", JavaFileObject.Kind.SOURCE, null).openOutputStream().close();
+        return fileManager;
+    }
+
+    private static List<String> list(Path directory) throws IOException {
+        List<String> names = new ArrayList<String>();
+        DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+        try {
+            for (Path entry : entries)
+                names.add(entry.getFileName().toString());
+        } finally {
+            entries.close();
+        }
+        return names;
+    }
+
+    @Test
+    public void filesAreReadableByPath() throws IOException {
+        MemoryFileManager fileManager = newFileManager();
+        FileObject file = write(fileManager, "com.example", "d.txt", "Delta");
+
+        Path path = MemoryFileSystem.of(fileManager).getPath(file);
+        assertEquals("/classes/com/example/d.txt", path.toString());
+        assertEquals(file.toUri(), path.toUri());
+        assertEquals(path, MemoryFileSystem.of(fileManager).provider().getPath(file.toUri()));
+        assertArrayEquals("Delta".getBytes("UTF-8"), Files.readAllBytes(path));
+        assertEquals(5, Files.size(path));
+        assertTrue(Files.isRegularFile(path));
+
+        // The view is live
+        FileObject replacement = write(fileManager, "com.example", "d.txt", "Echo!!");
+        assertEquals("Echo!!", new String(Files.readAllBytes(path), "UTF-8"));
+        replacement.delete();
+        assertFalse(Files.exists(path));
+    }
+
+    @Test
+    public void channelsCanSeek() throws IOException {
+        FileSystem fileSystem = MemoryFileSystem.of(newFileManager());
+        SeekableByteChannel channel = Files.newByteChannel(fileSystem.getPath("/classes/com/example/sub/c.txt"));
+        try {
+            assertEquals(7, channel.size());
+            ByteBuffer buffer = ByteBuffer.allocate(3);
+            channel.position(4);
+            assertEquals(3, channel.read(buffer));
+            assertEquals("lie", new String(buffer.array(), "UTF-8"));
+            assertEquals(-1, channel.read(buffer));
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void directoriesAreImpliedByFiles() throws IOException {
+        FileSystem fileSystem = MemoryFileSystem.of(newFileManager());
+        Path root = fileSystem.getRootDirectories().iterator().next();
+        assertEquals(Arrays.asList("classes", "src"), list(root));
+        assertEquals(Arrays.asList("a.txt", "b.txt", "sub"), list(fileSystem.getPath("/classes/com/example")));
+        assertTrue(Files.isDirectory(fileSystem.getPath("classes", "com")));
+        assertFalse(Files.exists(fileSystem.getPath("/classes/org")));
+        try {
+            list(fileSystem.getPath("/classes/org"));
+            fail();
+        } catch (NoSuchFileException e) {
+            // Expected
+        }
+
+        final List<String> walked = new ArrayList<String>();
+        final PathMatcher matcher = fileSystem.getPathMatcher("glob:/classes/**/*.txt");
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (matcher.matches(file))
+                    walked.add(file + " " + attributes.size());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        assertEquals(Arrays.asList("/classes/com/example/a.txt 5", "/classes/com/example/b.txt 5", "/classes/com/example/sub/c.txt 7"), walked);
+    }
+
+    @Test
+    public void theFileSystemIsReadOnly() throws IOException {
+        FileSystem fileSystem = MemoryFileSystem.of(newFileManager());
+        assertTrue(fileSystem.isReadOnly());
+        try {
+            Files.write(fileSystem.getPath("/classes/com/example/a.txt"), new byte[1]);
+            fail();
+        } catch (ReadOnlyFileSystemException e) {
+            // Expected
+        }
+        try {
+            Files.delete(fileSystem.getPath("/classes/com/example/a.txt"));
+            fail();
+        } catch (ReadOnlyFileSystemException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void pathsFollowUnixRules() throws IOException {
+        FileSystem fileSystem = MemoryFileSystem.of(newFileManager());
+        Path path = fileSystem.getPath("/classes/com/../com/./example");
+        assertEquals("/classes/com/example", path.normalize().toString());
+        assertEquals("example/a.txt", fileSystem.getPath("/classes/com").relativize(fileSystem.getPath("/classes/com/example/a.txt")).toString());
+        assertEquals("/classes/x", path.normalize().getParent().resolveSibling("x").toString());
+        assertTrue(path.startsWith("/classes"));
+        assertTrue(path.endsWith("./example"));
+        assertEquals(6, path.getNameCount());
+    }
+}
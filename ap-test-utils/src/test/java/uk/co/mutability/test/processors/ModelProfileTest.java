@@ -0,0 +1,73 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static uk.co.mutability.test.processors.Verifier.*;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.JavaFileObject;
+
+import org.junit.Test;
+
+/**
+ * Tests profiling and memoization of the Elements and Types utilities given to the processor under test.
+ */
+public class ModelProfileTest {
+    private static final List<JavaFileObject> SOURCES = Collections.<JavaFileObject>singletonList(new MemorySourceFile("model.Input",
+        "package model;\n" +
+        "@uk.co.mutability.test.processors.VerifyDiagnostics(uk.co.mutability.test.processors.LookupProcessor.class)\n" +
+        "public class Input {}\n"));
+
+    @Test
+    public void profilingIsOffByDefault() {
+        VerificationResult result = verify(new LookupProcessor(), SOURCES);
+        assertNoDiagnostics(result.getDiagnostics());
+        assertNull(result.getModelProfile());
+    }
+
+    @Test
+    public void callsAreCounted() {
+        VerificationResult result = verify(new LookupProcessor(), SOURCES, "-A" + VerifyingProcessor.PROFILE_MODEL_OPTION_NAME + "=true");
+        assertNoDiagnostics(result.getDiagnostics());
+
+        ModelProfile profile = result.getModelProfile();
+        assertEquals(LookupProcessor.REPEATS, profile.getHotspot("Elements.getTypeElement").getCalls());
+        assertEquals(LookupProcessor.REPEATS, profile.getHotspot("Types.isSubtype").getCalls());
+        assertEquals(0, profile.getHotspot("Types.isSubtype").getCacheHits());
+        assertTrue(profile.getHotspots(2).size() == 2);
+    }
+
+    @Test
+    public void pureLookupsAreMemoized() {
+        VerificationResult result = verify(new LookupProcessor(), SOURCES, "-A" + VerifyingProcessor.MEMOIZE_MODEL_OPTION_NAME + "=true");
+        assertNoDiagnostics(result.getDiagnostics());
+
+        ModelProfile profile = result.getModelProfile();
+        assertEquals(LookupProcessor.REPEATS - 1, profile.getHotspot("Elements.getTypeElement").getCacheHits());
+        assertEquals(LookupProcessor.REPEATS - 1, profile.getHotspot("Types.isSubtype").getCacheHits());
+        assertEquals(LookupProcessor.REPEATS - 1, profile.getHotspot("Elements.getAllMembers").getCacheHits());
+    }
+}
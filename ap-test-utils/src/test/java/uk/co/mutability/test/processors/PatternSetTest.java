@@ -0,0 +1,82 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static uk.co.mutability.test.processors.Verifier.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link PatternSet}.
+ */
+public class PatternSetTest {
+    /** Literals that overlap and nest, with escapes and quoting, and regular expressions, which must be matched separately */
+    private static final String[] PATTERNS = { "he", "she", "his", "hers", "", "a\\.b", "\\Qx(y)\\E", "^start", "end$", "(?i)CASE", "[0-9]+ items?",
+                                               "(a)\\1", "(?<word>w)\\k<word>", "(?x) s p a c e d # comment", "un|quoted", "\\Qopen" };
+
+    private static final String[] MESSAGES = { "ushers", "a.b and x(y)", "axb", "start of the case", "the end", "not the end.", "3 items", "aa ww",
+                                               "spaced", "unquoted open", "\\Qopen", "", "hi" };
+
+    @Test
+    public void findsWhatEachPatternWouldFind() {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (String pattern : PATTERNS)
+            patterns.add(Pattern.compile(pattern));
+        PatternSet set = new PatternSet(patterns);
+
+        for (String message : MESSAGES) {
+            boolean[] found = set.find(message);
+            for (int i = 0; i < PATTERNS.length; ++i)
+                assertEquals(PATTERNS[i] + " in '" + message + "'", patterns.get(i).matcher(message).find(), found[i]);
+        }
+    }
+
+    @Test
+    public void literalsAreRecognised() {
+        assertEquals("a.b", PatternSet.literal("a\\.b"));
+        assertEquals("x(y)z", PatternSet.literal("\\Qx(y)\\Ez"));
+        assertNull(PatternSet.literal("a.b"));
+        assertNull(PatternSet.literal("\\d"));
+    }
+
+    @Test
+    public void elementsWithManyExpectationsAreVerified() {
+        StringBuilder source = new StringBuilder("package many;\n" +
+                                                 "@uk.co.mutability.test.processors.VerifyDiagnostics(uk.co.mutability.test.processors.ComplainingProcessor.class)\n" +
+                                                 "@uk.co.mutability.test.processors.Complaints({\n");
+        StringBuilder expectations = new StringBuilder();
+        for (int i = 0; i < 30; ++i) {
+            source.append("    @uk.co.mutability.test.processors.Complaint(\"Complaint number ").append(i).append(" about this\"),\n");
+            expectations.append("    @uk.co.mutability.test.processors.ExpectDiagnostic(\"")
+                .append(i % 3 == 0 ? "number " + i + " about" : "Complaint number " + i + "\\\\b").append("\"),\n");
+        }
+        source.append("})\n@uk.co.mutability.test.processors.ExpectDiagnostics({\n").append(expectations).append("})\npublic class Input {\n}\n");
+
+        assertNoDiagnostics(checkProcessorDiagnostics(new ComplainingProcessor(), Arrays.asList(new MemorySourceFile("many.Input", source.toString()))));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.mutability.test.processors.Verifier.*;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link PerformanceBudget} limits are enforced.
+ */
+public class PerformanceBudgetTest {
+    private static List<JavaFileObject> input(String budget) {
+        return Collections.<JavaFileObject>singletonList(new MemorySourceFile("budget.Input",
+            "package budget;\n" +
+            "@uk.co.mutability.test.processors.VerifyDiagnostics(uk.co.mutability.test.processors.GeneratingProcessor.class)\n" +
+            "@uk.co.mutability.test.processors.PerformanceBudget(" + budget + ")\n" +
+            "@uk.co.mutability.test.processors.Generate(\"budget.Generated\")\n" +
+            "public class Input {}\n"));
+    }
+
+    @Test
+    public void generousBudgetPasses() {
+        VerificationResult result = verify(new GeneratingProcessor(), input("maxProcessingMillis=60000, maxAllocatedBytes=1000000000, maxRounds=10, " +
+                                                                            "maxGeneratedBytes=100000"));
+        assertNoDiagnostics(result.getDiagnostics());
+        assertEquals(3, result.getRoundCount()); // the input, the generated source, and the final round
+        assertTrue(result.getProcessingNanos() > 0);
+        assertTrue(result.getElapsedNanos() >= result.getProcessingNanos());
+    }
+
+    @Test
+    public void exceededLimitsAreReportedOnce() {
+        VerificationResult result = verify(new GeneratingProcessor(), input("maxRounds=1, maxGeneratedBytes=10"));
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = result.getDiagnostics();
+
+        assertEquals(2, diagnostics.size());
+        assertTrue(diagnostics.get(0).getMessage(null).contains("generated output"));
+        assertTrue(diagnostics.get(1).getMessage(null).contains("rounds"));
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics)
+            assertEquals(Diagnostic.Kind.ERROR, diagnostic.getKind());
+    }
+
+    @Test
+    public void allocationIsMeasured() {
+        VerificationResult result = verify(new GeneratingProcessor(), input("maxAllocatedBytes=1"));
+        assertEquals(1, result.getDiagnostics().size());
+        assertTrue(result.getDiagnostics().get(0).getMessage(null).contains("allocation"));
+        assertTrue(result.getAllocatedBytes() > 1);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.mutability.test.processors.Verifier.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ProcessorComparison}.
+ */
+public class ProcessorComparisonTest {
+    /** A version of ComplainingProcessor that also reports a note */
+    private static final String CANDIDATE_SOURCE = "package uk.co.mutability.test.processors;\n" +
+                                                   "@javax.annotation.processing.SupportedAnnotationTypes(\"*\")\n" +
+                                                   "public class ComplainingProcessor extends javax.annotation.processing.AbstractProcessor {\n" +
+                                                   "    public javax.lang.model.SourceVersion getSupportedSourceVersion() {\n" +
+                                                   "        return javax.lang.model.SourceVersion.latestSupported();\n" +
+                                                   "    }\n" +
+                                                   "    public boolean process(java.util.Set<? extends javax.lang.model.element.TypeElement> annotations,\n" +
+                                                   "                           javax.annotation.processing.RoundEnvironment roundEnv) {\n" +
+                                                   "        if (!roundEnv.processingOver())\n" +
+                                                   "            processingEnv.getMessager().printMessage(javax.tools.Diagnostic.Kind.NOTE, \"Candidate build\");\n" +
+                                                   "        return false;\n" +
+                                                   "    }\n" +
+                                                   "}\n";
+
+    private static File buildCandidate() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        MemoryFileManager fileManager = new MemoryFileManager(compiler.getStandardFileManager(null, null, null));
+        MemorySourceFile source = new MemorySourceFile(ComplainingProcessor.class.getName(), CANDIDATE_SOURCE);
+        assertTrue(compiler.getTask(null, fileManager, null, Arrays.asList("-proc:none"), null, Arrays.asList(source)).call());
+
+        File jar = File.createTempFile("candidate", ".jar");
+        jar.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(jar);
+        try {
+            fileManager.exportArchive(out.getChannel(), StandardLocation.CLASS_OUTPUT, true);
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+
+    @Test
+    public void buildsAreComparedOnTheSameInputs() throws Exception {
+        File baseline = new File(ComplainingProcessor.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        ProcessorComparison comparison = new ProcessorComparison(baseline, buildCandidate());
+        comparison.setWarmups(1);
+        comparison.setIterations(3);
+
+        ComparisonResult result = comparison.run(GenerateAttachedDiagnosticsTest.class);
+        assertNoDiagnostics(result.getBaseline().getDiagnostics());
+        assertEquals(3, result.getCandidate().getIterations());
+        assertTrue(result.getProcessingNanos().getBaselineMean() > 0);
+        assertTrue(result.toString(), result.toString().contains("processing"));
+
+        // The candidate reports a note that the test input does not expect, and none of the expected diagnostics
+        assertTrue(result.getDiagnosticDifferences().toString(),
+                   result.getDiagnosticDifferences().contains(GenerateAttachedDiagnosticsTest.class.getName() +
+                                                              ": candidate only: Unexpected NOTE diagnostic generated by processor: Candidate build"));
+    }
+
+    @Test
+    public void differencesHavePairedConfidenceIntervals() {
+        ComparisonResult.Difference difference = new ComparisonResult.Difference(new long[] { 10, 10, 10, 10 }, new long[] { 12, 11, 13, 12 });
+        assertEquals(2.0, difference.getMeanDifference(), 1e-9);
+        assertEquals(0.2, difference.getRelativeChange(), 1e-9);
+        assertEquals(2.0 - 3.182 * Math.sqrt(2.0 / 3 / 4), difference.getLower(), 1e-9);
+        assertTrue(difference.isSignificant());
+
+        assertTrue(!new ComparisonResult.Difference(new long[] { 10, 12 }, new long[] { 12, 10 }).isSignificant());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.mutability.test.processors.Verifier.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.JavaFileObject;
+
+import org.junit.Test;
+
+/**
+ * Tests that VerifyingProcessor traces which generated files caused extra rounds.
+ */
+public class RoundTraceTest {
+    private static final String INPUT =
+        "package trace;\n" +
+        "@uk.co.mutability.test.processors.VerifyDiagnostics(uk.co.mutability.test.processors.GeneratingProcessor.class)\n" +
+        "@uk.co.mutability.test.processors.Generate(value=\"trace.First\", annotations=\"@uk.co.mutability.test.processors.Generate(\\\"trace.Second\\\")\")\n" +
+        "public class Input {}\n";
+
+    @Test
+    public void generatedTypesAreTracedToTheirOrigins() {
+        List<JavaFileObject> sources = Collections.<JavaFileObject>singletonList(new MemorySourceFile("trace.Input", INPUT));
+        VerificationResult result = verify(new GeneratingProcessor(), sources);
+        assertNoDiagnostics(result.getDiagnostics());
+
+        List<RoundTrace.Round> rounds = result.getRoundTrace().getRounds();
+        assertEquals(4, rounds.size());
+
+        assertEquals(Arrays.asList("trace.Input"), rounds.get(0).getRootElements());
+        assertTrue(rounds.get(0).getIntroducedBy().isEmpty());
+
+        assertEquals(Arrays.asList("trace.First"), rounds.get(1).getRootElements());
+        assertEquals(Arrays.asList("trace.Input"), rounds.get(1).getIntroducedBy().get("trace.First").getOriginatingElements());
+
+        assertEquals(Arrays.asList("trace.Second"), rounds.get(2).getRootElements());
+        assertEquals(Arrays.asList("trace.First"), rounds.get(2).getIntroducedBy().get("trace.Second").getOriginatingElements());
+
+        assertTrue(rounds.get(3).getRootElements().isEmpty());
+
+        String dot = result.getRoundTrace().toDot();
+        assertTrue(dot.contains("\"1:trace.Input\" -> \"2:trace.First\""));
+        assertTrue(dot.contains("\"2:trace.First\" -> \"3:trace.Second\""));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ShardedRunner}, which starts real worker JVMs.
+ */
+public class ShardedRunnerTest {
+    @Test
+    public void discoversIndexedTestClasses() throws Exception {
+        List<String> found = ShardedRunner.discover(System.getProperty("java.class.path"));
+        assertTrue(found.contains(GenerateAttachedDiagnosticsTest.class.getName()));
+        assertTrue(found.contains(GenerateNoDiagnosticsTest.class.getName()));
+        assertTrue(found.contains(GenerateUnattachedDiagnosticsTest.class.getName()));
+    }
+
+    @Test
+    public void runsAcrossWorkersAndMergesResults() throws Exception {
+        ShardedRunner runner = new ShardedRunner();
+        runner.setWorkers(2);
+        List<ShardedRunner.Result> results = runner.run(Arrays.asList(GenerateAttachedDiagnosticsTest.class.getName(),
+                                                                      GenerateNoDiagnosticsTest.class.getName(),
+                                                                      GenerateUnattachedDiagnosticsTest.class.getName(),
+                                                                      "no.such.TestClass"));
+
+        assertEquals(4, results.size());
+        for (int i = 0; i < 3; ++i)
+            assertTrue(results.get(i).toString(), results.get(i).isPassed());
+
+        ShardedRunner.Result missing = results.get(3);
+        assertEquals("no.such.TestClass", missing.getClassName());
+        assertFalse(missing.isPassed());
+        assertEquals(1, missing.getMessages().size());
+    }
+}
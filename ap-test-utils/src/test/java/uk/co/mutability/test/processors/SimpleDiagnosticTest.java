@@ -0,0 +1,98 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.junit.Test;
+
+/**
+ * Tests for detaching diagnostics from their compilation with {@link SimpleDiagnostic#detach}.
+ */
+public class SimpleDiagnosticTest {
+    private static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+
+    /** A source that complains twice about the same file */
+    private static final String SOURCE = "package detach;\n" +
+                                         "@uk.co.mutability.test.processors.Complaint(\"First\")\n" +
+                                         "public class Input {\n" +
+                                         "    @uk.co.mutability.test.processors.Complaint(\"Second\")\n" +
+                                         "    void method() {}\n" +
+                                         "}\n";
+
+    @Test
+    public void snapshotsKeepSourceNamesAndPositions() {
+        DiagnosticCollector<JavaFileObject> collector = new DiagnosticCollector<JavaFileObject>();
+        JavaCompiler.CompilationTask task = COMPILER.getTask(null, null, collector, Arrays.asList("-proc:only"), null,
+                                                             Arrays.asList(new MemorySourceFile("detach.Input", SOURCE)));
+        task.setProcessors(Arrays.asList(new ComplainingProcessor()));
+        task.call();
+
+        List<Diagnostic<? extends JavaFileObject>> original = collector.getDiagnostics();
+        List<Diagnostic<? extends JavaFileObject>> detached = SimpleDiagnostic.detach(original);
+        assertEquals(2, detached.size());
+        for (int i = 0; i < detached.size(); ++i) {
+            Diagnostic<? extends JavaFileObject> diagnostic = detached.get(i);
+            assertTrue(diagnostic instanceof SimpleDiagnostic);
+            assertEquals(original.get(i).getMessage(null), diagnostic.getMessage(null));
+            assertEquals(original.get(i).getLineNumber(), diagnostic.getLineNumber());
+            assertEquals(original.get(i).getStartPosition(), diagnostic.getStartPosition());
+            assertEquals(original.get(i).getSource().getName(), diagnostic.getSource().getName());
+            assertEquals(original.get(i).getSource().toUri(), diagnostic.getSource().toUri());
+        }
+        assertTrue(detached.get(0).getSource() instanceof DetachedFileObject);
+        assertSame(detached.get(0).getSource(), detached.get(1).getSource());
+        assertEquals("/detach/Input.java:5: error: Second", detached.get(1).toString());
+
+        // Detaching again changes nothing
+        assertSame(detached.get(0), SimpleDiagnostic.detach(detached).get(0));
+    }
+
+    @Test
+    public void resultsDoNotKeepTheCompilationReachable() throws Exception {
+        MemoryFileManager fileManager = new MemoryFileManager(COMPILER.getStandardFileManager(null, null, null));
+        WeakReference<MemoryFileManager> reference = new WeakReference<MemoryFileManager>(fileManager);
+        VerificationResult result = Verifier.compile(new VerifyingProcessor(new ComplainingProcessor()), fileManager, null,
+                                                     Arrays.asList(new MemorySourceFile("detach.Input", SOURCE)));
+        fileManager = null;
+        assertEquals(2, result.getDiagnostics().size());
+
+        for (int i = 0; i < 50 && reference.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(reference.get());
+        assertEquals(2, result.getDiagnostics().size());
+    }
+}
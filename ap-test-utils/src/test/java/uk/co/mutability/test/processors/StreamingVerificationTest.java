@@ -0,0 +1,115 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.mutability.test.processors.Verifier.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import org.junit.Test;
+
+/**
+ * Tests for asynchronous verification with live outcome delivery and cancellation.
+ */
+public class StreamingVerificationTest {
+    /** Collects events, and counts down a latch on each */
+    private static class CollectingListener implements VerificationListener {
+        final List<VerificationEvent> events = Collections.synchronizedList(new ArrayList<VerificationEvent>());
+        final CountDownLatch firstEvent = new CountDownLatch(1);
+
+        @Override
+        public void verificationEvent(VerificationEvent event) {
+            events.add(event);
+            firstEvent.countDown();
+        }
+    }
+
+    @Test
+    public void matchesAreStreamed() throws Exception {
+        CollectingListener listener = new CollectingListener();
+        VerificationResult result = startVerification(GenerateAttachedDiagnosticsTest.class, listener).get(60, TimeUnit.SECONDS);
+
+        assertNoDiagnostics(result.getDiagnostics());
+        assertEquals(8, listener.events.size());
+        for (VerificationEvent event : listener.events)
+            assertEquals(VerificationEvent.Type.MATCHED, event.getType());
+    }
+
+    @Test
+    public void failuresAreStreamed() throws Exception {
+        List<JavaFileObject> sources = Collections.<JavaFileObject>singletonList(new MemorySourceFile("stream.Input",
+            "package stream;\n" +
+            "@uk.co.mutability.test.processors.VerifyDiagnostics(uk.co.mutability.test.processors.ComplainingProcessor.class)\n" +
+            "public class Input {\n" +
+            "    @uk.co.mutability.test.processors.Complaint(value=\"Surprise\", kind=javax.tools.Diagnostic.Kind.WARNING)\n" +
+            "    public void surprising() {}\n" +
+            "    @uk.co.mutability.test.processors.ExpectDiagnostic(\"Never generated\")\n" +
+            "    public void missing() {}\n" +
+            "}\n"));
+
+        CollectingListener listener = new CollectingListener();
+        VerificationResult result = startVerification(new ComplainingProcessor(), sources, listener).get(60, TimeUnit.SECONDS);
+
+        assertEquals(2, result.getDiagnostics().size());
+        assertEquals(2, listener.events.size());
+
+        VerificationEvent unexpected = listener.events.get(0);
+        assertEquals(VerificationEvent.Type.UNEXPECTED, unexpected.getType());
+        assertEquals(Diagnostic.Kind.WARNING, unexpected.getKind());
+        assertEquals("Surprise", unexpected.getMessage());
+        assertEquals("stream.Input.surprising()", unexpected.getElement());
+
+        VerificationEvent missing = listener.events.get(1);
+        assertEquals(VerificationEvent.Type.MISSING, missing.getType());
+        assertEquals("Never generated", missing.getPattern());
+        assertEquals("stream.Input.missing()", missing.getElement());
+    }
+
+    @Test
+    public void cancellationStopsTheCompilation() throws Exception {
+        SpinningProcessor.stopped = new CountDownLatch(1);
+        CollectingListener listener = new CollectingListener();
+        List<JavaFileObject> sources = Collections.<JavaFileObject>singletonList(new MemorySourceFile("Spin", "public class Spin {}"));
+        VerificationHandle handle = startVerification(new SpinningProcessor(), sources, listener);
+
+        assertTrue(listener.firstEvent.await(60, TimeUnit.SECONDS));
+        handle.cancel();
+        assertTrue(SpinningProcessor.stopped.await(60, TimeUnit.SECONDS));
+        assertTrue(handle.isCancelled());
+
+        try {
+            handle.get();
+            throw new AssertionError("Expected CancellationException");
+        } catch (CancellationException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SupportClassSet}.
+ */
+public class SupportClassSetTest {
+    private static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+
+    private static MemoryFileManager newIsolatedFileManager() {
+        MemoryFileManager fileManager = new MemoryFileManager(COMPILER.getStandardFileManager(null, null, null));
+        fileManager.setIsolated(StandardLocation.CLASS_PATH, true);
+        return fileManager;
+    }
+
+    private static boolean compiles(MemoryFileManager fileManager, String className, String source) {
+        MemorySourceFile file = new MemorySourceFile(className, source);
+        return COMPILER.getTask(null, fileManager, null, Arrays.asList("-proc:none"), null, Arrays.asList(file)).call();
+    }
+
+    @After
+    public void unregister() {
+        SupportClassSet.register(null);
+    }
+
+    @Test
+    public void registeredSetIsOnClassPathOfNewFileManagers() throws Exception {
+        MemorySourceFile base = new MemorySourceFile("fixtures.Base", "package fixtures; public abstract class Base { public static class Part {} }");
+        SupportClassSet support = SupportClassSet.compile(Arrays.asList(base));
+        assertEquals(new HashSet<String>(Arrays.asList("fixtures.Base", "fixtures.Base$Part")), new HashSet<String>(support.getClassNames()));
+
+        String input = "package app; public class Fixture extends fixtures.Base { Part part; }";
+        assertFalse(compiles(newIsolatedFileManager(), "app.Fixture", input));
+
+        SupportClassSet.register(support);
+        MemoryFileManager fileManager = newIsolatedFileManager();
+        assertSame(support, fileManager.getSupportClasses());
+        assertTrue(compiles(fileManager, "app.Fixture", input));
+        assertTrue(compiles(newIsolatedFileManager(), "app.Fixture", input));
+
+        JavaFileObject found = fileManager.getJavaFileForInput(StandardLocation.CLASS_PATH, "fixtures.Base", JavaFileObject.Kind.CLASS);
+        assertNotNull(found);
+        assertEquals("fixtures.Base", fileManager.inferBinaryName(StandardLocation.CLASS_PATH, found));
+
+        fileManager.setSupportClasses(null);
+        assertFalse(compiles(fileManager, "app.Fixture", input));
+    }
+
+    @Test
+    public void loadCollectsMemberClasses() throws Exception {
+        SupportClassSet support = SupportClassSet.load(getClass().getClassLoader(), MappedJarArchive.class.getName());
+        List<String> names = support.getClassNames();
+        assertTrue(names.toString(), names.contains(MappedJarArchive.class.getName()));
+        assertTrue(names.toString(), names.contains(MappedJarArchive.Entry.class.getName()));
+
+        MemoryFileManager fileManager = newIsolatedFileManager();
+        fileManager.setSupportClasses(support);
+        assertTrue(compiles(fileManager, "app.User", "package app; class User { uk.co.mutability.test.processors.MappedJarArchive.Entry entry; }"));
+    }
+}
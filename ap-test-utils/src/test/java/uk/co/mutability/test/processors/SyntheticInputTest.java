@@ -0,0 +1,77 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.mutability.test.processors.Verifier.*;
+
+import java.util.List;
+
+import javax.tools.JavaFileObject;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link SyntheticInputGenerator} and {@link ScalingDriver}, using {@link ComplainingProcessor} as the processor under test.
+ */
+public class SyntheticInputTest {
+    private static SyntheticInputGenerator newGenerator() {
+        SyntheticInputGenerator generator = new SyntheticInputGenerator(ComplainingProcessor.class.getName());
+        generator.setMembersPerType(6);
+        generator.setNestingDepth(2);
+        generator.setExpectationDensity(0.5);
+        generator.setTriggerFormat("@uk.co.mutability.test.processors.Complaint(\"%s\")");
+        return generator;
+    }
+
+    @Test
+    public void generatedInputVerifies() {
+        SyntheticInputGenerator generator = newGenerator();
+        generator.setTypeCount(3);
+        List<JavaFileObject> sources = generator.generate();
+
+        assertEquals(3, sources.size());
+        assertEquals(3 * (6 + 1 + 6 + 1 + 6), generator.getElementCount());
+        assertTrue(generator.getExpectedDiagnosticCount() > 0);
+        assertNoDiagnostics(checkProcessorDiagnostics(new ComplainingProcessor(), sources));
+    }
+
+    @Test
+    public void missingTriggersAreReported() {
+        SyntheticInputGenerator generator = newGenerator();
+        generator.setTriggerFormat(null);
+        List<JavaFileObject> sources = generator.generate();
+
+        assertEquals(generator.getExpectedDiagnosticCount(), checkProcessorDiagnostics(new ComplainingProcessor(), sources).size());
+    }
+
+    @Test
+    public void scalingDriverRunsEachStep() {
+        List<ScalingDriver.Sample> samples = new ScalingDriver(newGenerator(), ComplainingProcessor.class).run(1, 3, null);
+
+        assertEquals(3, samples.size());
+        for (int i = 0; i < samples.size(); ++i) {
+            assertEquals(1 << i, samples.get(i).typeCount);
+            assertEquals(0, samples.get(i).reportedDiagnosticCount);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TimingHistory} and its use by {@link Verifier}.
+ */
+public class TimingHistoryTest {
+    private static File newHistoryFile() throws IOException {
+        File file = File.createTempFile("timings", ".txt");
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static void seed(TimingHistory history, String key, int samples) throws IOException {
+        for (int i = 0; i < samples; ++i)
+            assertTrue(history.record(key, 1000 + i, 100 + i, 2, 5000).isEmpty());
+    }
+
+    @Test
+    public void samplesAreAppendedAndReloaded() throws IOException {
+        File file = newHistoryFile();
+        seed(new TimingHistory(file), "a.Test", 3);
+        seed(new TimingHistory(file), "b.Test", 2);
+
+        TimingHistory reloaded = new TimingHistory(file);
+        assertEquals(3, reloaded.getSamples("a.Test").size());
+        assertEquals(2, reloaded.getSamples("b.Test").size());
+        assertEquals(102, reloaded.getSamples("a.Test").get(2).getProcessingNanos());
+    }
+
+    @Test
+    public void significantSlowdownsAreRegressions() throws IOException {
+        TimingHistory history = new TimingHistory(newHistoryFile());
+        seed(history, "a.Test", 5);
+
+        assertTrue(history.record("a.Test", 1003, 103, 2, 5000).isEmpty());
+
+        List<TimingHistory.Regression> regressions = history.record("a.Test", 1002, 500, 3, 5000);
+        assertEquals(2, regressions.size());
+        assertEquals("processing time (ns)", regressions.get(0).getMetric());
+        assertEquals(500, regressions.get(0).getCurrent());
+        assertEquals("rounds", regressions.get(1).getMetric());
+    }
+
+    @Test
+    public void baselineIsRolling() throws IOException {
+        TimingHistory history = new TimingHistory(newHistoryFile());
+        history.setWindow(5);
+        seed(history, "a.Test", 5);
+        for (int i = 0; i < 5; ++i)
+            history.record("a.Test", 1000, 1000, 2, 5000);
+
+        // The slow samples have replaced the fast ones in the baseline, so this is no longer a regression
+        assertTrue(history.record("a.Test", 1000, 1000, 2, 5000).isEmpty());
+        assertEquals(5, history.getSamples("a.Test").size());
+    }
+
+    @Test
+    public void verifierReportsRegressionsAsFailures() throws IOException {
+        TimingHistory history = new TimingHistory(newHistoryFile());
+        history.setFailOnRegression(true);
+        for (int i = 0; i < 5; ++i)
+            history.record(GenerateNoDiagnosticsTest.class.getName(), 1, 1, 1, -1);
+
+        Verifier.setTimingHistory(history);
+        try {
+            VerificationResult result = Verifier.verify(GenerateNoDiagnosticsTest.class);
+            assertTrue(result.getRegressions().size() >= 2);
+            assertEquals(result.getRegressions().size(), result.getDiagnostics().size());
+        } finally {
+            Verifier.setTimingHistory(null);
+        }
+    }
+
+    @Test
+    public void unwritableHistoryIsReportedInTheResult() throws IOException {
+        Verifier.setTimingHistory(new TimingHistory(new File(newHistoryFile(), "history.txt")));
+        try {
+            VerificationResult result = Verifier.verify(GenerateNoDiagnosticsTest.class);
+            assertNotNull(result.getTimingHistoryError());
+            assertEquals(0, result.getDiagnostics().size());
+        } finally {
+            Verifier.setTimingHistory(null);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.mutability.test.processors.Verifier.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+
+import javax.management.ObjectName;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link VerifierStatistics}.
+ */
+public class VerifierStatisticsTest {
+    private static final VerifierStatistics STATISTICS = VerifierStatistics.get();
+
+    @Test
+    public void verificationsAreCounted() throws Exception {
+        long compilations = STATISTICS.getCompilations();
+        long matched = STATISTICS.getDiagnosticsMatched();
+        long rounds = STATISTICS.getRoundsProcessed();
+
+        assertNoDiagnostics(checkProcessorDiagnostics(GenerateAttachedDiagnosticsTest.class));
+        assertEquals(compilations + 1, STATISTICS.getCompilations());
+        assertTrue(STATISTICS.getDiagnosticsMatched() > matched);
+        assertTrue(STATISTICS.getRoundsProcessed() > rounds);
+        assertTrue(STATISTICS.getMaxVerificationMillis() <= STATISTICS.getTotalVerificationMillis());
+
+        Object attribute = ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(VerifierStatistics.OBJECT_NAME), "Compilations");
+        assertEquals(STATISTICS.getCompilations(), attribute);
+    }
+
+    /** Collect garbage until the file managers of earlier tests are no longer counted */
+    private static void settle() throws InterruptedException {
+        long previous = -1;
+        for (int i = 0; i < 50 && STATISTICS.getStoredFiles() != previous; ++i) {
+            previous = STATISTICS.getStoredFiles();
+            System.gc();
+            Thread.sleep(20);
+        }
+    }
+
+    private static MemoryFileManager newFileManager() {
+        return new MemoryFileManager(ToolProvider.getSystemJavaCompiler().getStandardFileManager(null, null, null));
+    }
+
+    private static FileObject write(MemoryFileManager fileManager, String name, int size) throws IOException {
+        FileObject file = fileManager.getFileForOutput(StandardLocation.CLASS_OUTPUT, "", name, null);
+        OutputStream out = file.openOutputStream();
+        out.write(new byte[size]);
+        out.close();
+        return file;
+    }
+
+    /** @return a reference to a file manager that holds a file, and is otherwise unreachable */
+    private static WeakReference<MemoryFileManager> abandonFileManager() throws IOException {
+        MemoryFileManager fileManager = newFileManager();
+        write(fileManager, "abandoned.txt", 10);
+        return new WeakReference<MemoryFileManager>(fileManager);
+    }
+
+    @Test
+    public void storedFilesAreCountedUntilTheFileManagerIsCollected() throws Exception {
+        settle();
+        long files = STATISTICS.getStoredFiles();
+        long bytes = STATISTICS.getStoredBytes();
+
+        FileObject file = write(newFileManager(), "counted.txt", 1000);
+        assertEquals(files + 1, STATISTICS.getStoredFiles());
+        assertEquals(bytes + 1000, STATISTICS.getStoredBytes());
+        assertTrue(STATISTICS.getPeakStoredBytes() >= bytes + 1000);
+
+        file.delete();
+        assertEquals(files, STATISTICS.getStoredFiles());
+        assertEquals(bytes, STATISTICS.getStoredBytes());
+
+        WeakReference<MemoryFileManager> reference = abandonFileManager();
+        assertEquals(files + 1, STATISTICS.getStoredFiles());
+        for (int i = 0; i < 50 && reference.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        settle();
+        assertEquals(files, STATISTICS.getStoredFiles());
+    }
+
+    @Test
+    public void stripedCountersSumEveryThread() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; ++i) {
+            final int value = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; ++j)
+                        counter.add(value);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(10000L * (0 + 1 + 2 + 3 + 4 + 5 + 6 + 7), counter.sum());
+        assertEquals(7, counter.max());
+    }
+}
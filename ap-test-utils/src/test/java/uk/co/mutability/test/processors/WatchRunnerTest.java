@@ -0,0 +1,143 @@
+/*
+ * This file is part of the ap-test-utils package.
+ * 
+ * Copyright (C) 2012 Oliver Jowett <oliver@mutability.co.uk>
+ *
+ * ap-test-utils is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ap-test-utils. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.mutability.test.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static uk.co.mutability.test.processors.Verifier.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link WatchRunner}.
+ */
+public class WatchRunnerTest {
+    private File testDirectory;
+    private WatchRunner runner;
+    private final BlockingQueue<VerificationResult> results = new LinkedBlockingQueue<VerificationResult>();
+    /** What the watching thread failed with, if anything */
+    private volatile Exception watchFailure;
+
+    private static String inputSource(String expectedMessage) {
+        return "package watch;\n" +
+               "@uk.co.mutability.test.processors.VerifyDiagnostics(uk.co.mutability.test.processors.ComplainingProcessor.class)\n" +
+               "@uk.co.mutability.test.processors.Complaint(\"Watched\")\n" +
+               "@uk.co.mutability.test.processors.ExpectDiagnostic(\"" + expectedMessage + "\")\n" +
+               "public class Input {\n" +
+               "}\n";
+    }
+
+    /** Compile the test input into the test directory, with its expectation index */
+    private void compileInput(String expectedMessage) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        MemorySourceFile source = new MemorySourceFile("watch.Input", inputSource(expectedMessage));
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, null, Arrays.asList("-d", testDirectory.getPath()), null, Arrays.asList(source));
+        task.setProcessors(Collections.singleton(new ExpectationIndexProcessor()));
+        assertTrue(task.call());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        testDirectory = Files.createTempDirectory("watch").toFile();
+        compileInput("Watched");
+
+        File processorDirectory = new File(ComplainingProcessor.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        runner = new WatchRunner(Collections.singletonList(testDirectory), Collections.singletonList(processorDirectory));
+        runner.setListener(new WatchRunner.Listener() {
+            @Override
+            public void verified(String className, VerificationResult result) {
+                assertEquals("watch.Input", className);
+                results.add(result);
+            }
+
+            @Override
+            public void finished(int verified, long elapsedNanos) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        runner.stop();
+        delete(testDirectory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    @Test
+    public void changesAffectTheInputsThatDependOnThem() throws Exception {
+        assertEquals(0, runner.verifyAll());
+        assertNoDiagnostics(results.take().getDiagnostics());
+
+        assertEquals(Collections.singleton("watch.Input"), runner.affectedBy(Collections.singleton(Complaint.class.getName()), false));
+        assertEquals(Collections.emptySet(), runner.affectedBy(Collections.singleton("java.lang.Thread"), false));
+    }
+
+    @Test
+    public void changedInputsAreReverified() throws Exception {
+        Thread watching = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    runner.watch();
+                } catch (Exception e) {
+                    watchFailure = e;
+                }
+            }
+        };
+        watching.start();
+        VerificationResult first = results.poll(30, TimeUnit.SECONDS);
+        assertNotNull(first);
+        assertNoDiagnostics(first.getDiagnostics());
+
+        // The expectation no longer matches the complaint
+        compileInput("Something else");
+        VerificationResult second = results.poll(30, TimeUnit.SECONDS);
+        assertNotNull("No verification after the change", second);
+        assertTrue(!second.getDiagnostics().isEmpty());
+
+        runner.stop();
+        watching.join(10000);
+        assertNull(watchFailure);
+    }
+}